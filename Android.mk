@@ -54,11 +54,26 @@ ifneq ($(INCREMENTAL_BUILDS),)
     LOCAL_JACK_FLAGS := --multi-dex native
 endif
 
+ifneq ($(wildcard $(LOCAL_PATH)/prebuilt/search_index_snapshot.db),)
+    LOCAL_REQUIRED_MODULES := settings_search_index_snapshot
+endif
+
 include frameworks/opt/setupwizard/library/common-full-support.mk
 include frameworks/base/packages/SettingsLib/common.mk
 
 include $(BUILD_PACKAGE)
 
+# Prebuilt search index snapshot, see SearchIndexSnapshot
+ifneq ($(wildcard $(LOCAL_PATH)/prebuilt/search_index_snapshot.db),)
+include $(CLEAR_VARS)
+LOCAL_MODULE := settings_search_index_snapshot
+LOCAL_MODULE_STEM := search_index_snapshot.db
+LOCAL_MODULE_CLASS := ETC
+LOCAL_MODULE_PATH := $(TARGET_OUT_ETC)/settings
+LOCAL_SRC_FILES := prebuilt/search_index_snapshot.db
+include $(BUILD_PREBUILT)
+endif
+
 # Use the following include to make our test apk.
 ifeq (,$(ONE_SHOT_MAKEFILE))
 include $(call all-makefiles-under,$(LOCAL_PATH))
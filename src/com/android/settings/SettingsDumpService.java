@@ -24,7 +24,14 @@ import android.os.storage.VolumeInfo;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
+import com.android.settings.applications.AppStateAppOpsBridge;
 import com.android.settings.applications.ProcStatsData;
+import com.android.settings.applications.RunningState;
+import com.android.settings.dashboard.SummaryLoader;
+import com.android.settings.fuelgauge.BatteryEntry;
+import com.android.settings.search.DynamicIndexableContentMonitor;
+import com.android.settings.search.Index;
+import com.android.settings.utils.IconCache;
 import com.android.settingslib.net.DataUsageController;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -50,6 +57,13 @@ public class SettingsDumpService extends Service {
             dump.put("storage", dumpStorage());
             dump.put("datausage", dumpDataUsage());
             dump.put("memory", dumpMemory());
+            dump.put("searchproviders", Index.getInstance(this).getRemoteProviderCache().dump());
+            dump.put("searchmonitor", DynamicIndexableContentMonitor.dump());
+            dump.put("summaryproviders", SummaryLoader.dumpStats());
+            dump.put("iconcache", IconCache.getInstance(this).dump());
+            dump.put("appopsbridge", AppStateAppOpsBridge.dumpStats());
+            dump.put("runningstate", RunningState.dumpStats());
+            dump.put("batteryentry", BatteryEntry.dumpStats());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -31,6 +31,9 @@ public class TintablePreference extends Preference {
     }
 
     public void setTint(int color) {
+        if (color == mTintColor) {
+            return;
+        }
         mTintColor = color;
         notifyChanged();
     }
@@ -29,6 +29,7 @@ import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -113,6 +114,8 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public void onReceive(Context context, Intent intent) {
+            // The reload must not see the permissions of before the change.
+            AppOpsPermissionsCache.getInstance(context).invalidate();
             // Tell the loader about the change.
             mLoader.onContentChanged();
         }
@@ -121,11 +124,13 @@ public class AppOpsCategory extends ListFragment implements
     /**
      * A custom Loader that loads all of the installed applications.
      */
-    public static class AppListLoader extends AsyncTaskLoader<List<AppOpEntry>> {
+    public static class AppListLoader extends AsyncTaskLoader<List<AppOpEntry>>
+            implements AppOpsState.ChunkListener {
         final InterestingConfigChanges mLastConfig = new InterestingConfigChanges();
         final AppOpsState mState;
         final AppOpsState.OpsTemplate mTemplate;
         final boolean mUserControlled;
+        final Handler mHandler = new Handler();
 
         List<AppOpEntry> mApps;
         PackageIntentReceiver mPackageObserver;
@@ -139,8 +144,37 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public List<AppOpEntry> loadInBackground() {
+            // Only stream the first load: once a list is shown, replacing it with a partial one
+            // would make it shrink.
             return mState.buildState(mTemplate, 0, null,
-                    mUserControlled ? AppOpsState.LABEL_COMPARATOR : AppOpsState.RECENCY_COMPARATOR);
+                    mUserControlled ? AppOpsState.LABEL_COMPARATOR : AppOpsState.RECENCY_COMPARATOR,
+                    mApps == null ? this : null);
+        }
+
+        /**
+         * Called on the loading thread with the entries built so far.
+         */
+        @Override public void onChunk(final List<AppOpEntry> apps) {
+            if (isLoadInBackgroundCanceled()) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Posted before the final result, but it could have been delivered by a
+                    // previous load meanwhile.
+                    if (isStarted() && mApps == null) {
+                        deliverPartialResult(apps);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Delivers the entries of a load in progress, without keeping them as the result.
+         */
+        void deliverPartialResult(List<AppOpEntry> apps) {
+            super.deliverResult(apps);
         }
 
         /**
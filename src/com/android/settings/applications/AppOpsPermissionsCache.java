@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.util.ArrayUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Process wide cache of the permissions held by the packages, shared by the
+ * {@link AppOpsState#buildState} calls of all the templates.
+ *
+ * The packages holding any permission of {@link AppOpsState#ALL_TEMPLATES} are loaded with a
+ * single call to the package manager, and the PackageInfo of single packages are kept once
+ * loaded. Everything is dropped when a package is added, removed or changed, or when the
+ * permissions granted to an app change.
+ */
+public class AppOpsPermissionsCache extends BroadcastReceiver
+        implements PackageManager.OnPermissionsChangedListener {
+
+    private static final String TAG = "AppOpsPermissionsCache";
+    private static final boolean DEBUG = false;
+
+    // The permissions of the ops of all the templates
+    private static final String[] ALL_PERMISSIONS = getTemplatesPermissions();
+
+    private static AppOpsPermissionsCache sInstance;
+
+    private final PackageManager mPm;
+    // Held while loading from the package manager, so that concurrent builds wait for the
+    // result of the first one instead of doing the same call.
+    private final Object mLoadLock = new Object();
+
+    // Bumped on every invalidation, so that a load racing with one does not cache stale results
+    private int mGeneration;
+    private List<PackageInfo> mHolders;
+    private final ArrayMap<String, PackageInfo> mPackages = new ArrayMap<>();
+
+    private AppOpsPermissionsCache(Context context) {
+        mPm = context.getPackageManager();
+    }
+
+    public static synchronized AppOpsPermissionsCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new AppOpsPermissionsCache(appContext);
+            final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            appContext.registerReceiver(sInstance, filter);
+            final IntentFilter sdFilter = new IntentFilter();
+            sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+            sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+            appContext.registerReceiver(sInstance, sdFilter);
+            sInstance.mPm.addOnPermissionsChangeListener(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the packages holding any of the permissions, with the permissions they hold as
+     * their requested permissions, like {@link PackageManager#getPackagesHoldingPermissions}.
+     * The result can hold packages that hold none of the permissions, and must not be modified.
+     */
+    public List<PackageInfo> getPackagesHoldingPermissions(Collection<String> permissions) {
+        for (String permission : permissions) {
+            if (!ArrayUtils.contains(ALL_PERMISSIONS, permission)) {
+                // Not a permission of the templates, not worth caching.
+                return mPm.getPackagesHoldingPermissions(
+                        permissions.toArray(new String[permissions.size()]), 0);
+            }
+        }
+        synchronized (mLoadLock) {
+            final int generation;
+            synchronized (this) {
+                if (mHolders != null) {
+                    return mHolders;
+                }
+                generation = mGeneration;
+            }
+            final List<PackageInfo> holders = Collections.unmodifiableList(
+                    mPm.getPackagesHoldingPermissions(ALL_PERMISSIONS, 0));
+            if (DEBUG) Log.d(TAG, "Loaded " + holders.size() + " packages");
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mHolders = holders;
+                }
+            }
+            return holders;
+        }
+    }
+
+    /**
+     * Same as {@link PackageManager#getPackageInfo} with {@link PackageManager#GET_PERMISSIONS}.
+     * The result must not be modified.
+     */
+    public PackageInfo getPackageInfo(String packageName) throws NameNotFoundException {
+        final int generation;
+        synchronized (this) {
+            final PackageInfo info = mPackages.get(packageName);
+            if (info != null) {
+                return info;
+            }
+            generation = mGeneration;
+        }
+        final PackageInfo info = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mPackages.put(packageName, info);
+            }
+        }
+        return info;
+    }
+
+    public synchronized void invalidate() {
+        if (DEBUG) Log.d(TAG, "Invalidated");
+        mGeneration++;
+        mHolders = null;
+        mPackages.clear();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        invalidate();
+    }
+
+    @Override
+    public void onPermissionsChanged(int uid) {
+        invalidate();
+    }
+
+    private static String[] getTemplatesPermissions() {
+        final ArraySet<String> permissions = new ArraySet<>();
+        for (AppOpsState.OpsTemplate tpl : AppOpsState.ALL_TEMPLATES) {
+            for (int i = 0; i < tpl.ops.length; i++) {
+                final String permission = AppOpsManager.opToPermission(tpl.ops[i]);
+                if (tpl.showPerms[i] && permission != null) {
+                    permissions.add(permission);
+                }
+            }
+        }
+        return permissions.toArray(new String[permissions.size()]);
+    }
+}
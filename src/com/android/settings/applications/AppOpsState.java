@@ -27,6 +27,7 @@ import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.format.DateUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -44,18 +45,34 @@ public class AppOpsState {
     static final String TAG = "AppOpsState";
     static final boolean DEBUG = false;
 
+    // Number of packages processed before the first chunk is delivered
+    private static final int FIRST_CHUNK_PACKAGES = 16;
+
     final Context mContext;
     final AppOpsManager mAppOps;
     final PackageManager mPm;
+    final AppOpsPermissionsCache mPermissionsCache;
     final CharSequence[] mOpSummaries;
     final CharSequence[] mOpLabels;
 
     List<AppOpEntry> mApps;
 
+    /**
+     * Receives the entries of a build while it runs.
+     */
+    public interface ChunkListener {
+        /**
+         * Called on the thread of the build with the entries of the packages processed so far,
+         * sorted. These entries are not modified anymore by the build.
+         */
+        void onChunk(List<AppOpEntry> entries);
+    }
+
     public AppOpsState(Context context) {
         mContext = context;
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
         mPm = context.getPackageManager();
+        mPermissionsCache = AppOpsPermissionsCache.getInstance(context);
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries);
         mOpLabels = context.getResources().getTextArray(R.array.app_ops_labels);
     }
@@ -528,20 +545,32 @@ public class AppOpsState {
 
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName,
             Comparator<AppOpEntry> comparator) {
+        return buildState(tpl, uid, packageName, comparator, null);
+    }
+
+    /**
+     * Builds the entries of the template, for all the packages or for a single one.
+     *
+     * The entries of a package are complete once it is processed, so the entries built so far
+     * can be delivered to the listener, if any, while the remaining packages are processed.
+     */
+    public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName,
+            Comparator<AppOpEntry> comparator, ChunkListener listener) {
         final Context context = mContext;
 
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
         final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
+        final boolean allowMerge = packageName == null;
 
-        final ArrayList<String> perms = new ArrayList<String>();
-        final ArrayList<Integer> permOps = new ArrayList<Integer>();
+        // Index of the permissions of the ops, so that the permissions of a package are
+        // matched with lookups.
+        final ArrayMap<String, Integer> permToOp = new ArrayMap<String, Integer>();
         final int[] opToOrder = new int[AppOpsManager._NUM_OP];
         for (int i=0; i<tpl.ops.length; i++) {
             if (tpl.showPerms[i]) {
                 String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
-                    perms.add(perm);
-                    permOps.add(tpl.ops[i]);
+                if (perm != null && !permToOp.containsKey(perm)) {
+                    permToOp.put(perm, tpl.ops[i]);
                     opToOrder[tpl.ops[i]] = i;
                 }
             }
@@ -554,78 +583,80 @@ public class AppOpsState {
             pkgs = mAppOps.getPackagesForOps(tpl.ops);
         }
 
-        if (pkgs != null) {
-            for (int i=0; i<pkgs.size(); i++) {
-                AppOpsManager.PackageOps pkgOps = pkgs.get(i);
-                AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null);
-                if (appEntry == null) {
-                    continue;
-                }
-                for (int j=0; j<pkgOps.getOps().size(); j++) {
-                    AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(j);
-                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                            packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                }
-            }
-        }
-
         List<PackageInfo> apps;
         if (packageName != null) {
             apps = new ArrayList<PackageInfo>();
             try {
-                PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-                apps.add(pi);
+                apps.add(mPermissionsCache.getPackageInfo(packageName));
             } catch (NameNotFoundException e) {
             }
+        } else if (!permToOp.isEmpty()) {
+            apps = mPermissionsCache.getPackagesHoldingPermissions(permToOp.keySet());
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
-            apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
+            apps = Collections.emptyList();
+        }
+
+        // Group the ops and the permissions by package, so that each package is processed once.
+        final ArrayMap<String, List<AppOpsManager.PackageOps>> opsByPackage
+                = new ArrayMap<String, List<AppOpsManager.PackageOps>>();
+        for (int i=0; pkgs != null && i<pkgs.size(); i++) {
+            final AppOpsManager.PackageOps pkgOps = pkgs.get(i);
+            List<AppOpsManager.PackageOps> list = opsByPackage.get(pkgOps.getPackageName());
+            if (list == null) {
+                list = new ArrayList<AppOpsManager.PackageOps>(1);
+                opsByPackage.put(pkgOps.getPackageName(), list);
+            }
+            list.add(pkgOps);
         }
+        final ArrayMap<String, PackageInfo> appsByPackage = new ArrayMap<String, PackageInfo>(
+                apps.size());
         for (int i=0; i<apps.size(); i++) {
-            PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo);
-            if (appEntry == null) {
-                continue;
+            appsByPackage.put(apps.get(i).packageName, apps.get(i));
+        }
+
+        int processed = 0;
+        int nextChunk = FIRST_CHUNK_PACKAGES;
+        final int total = opsByPackage.size() + appsByPackage.size();
+        for (int i=0; i<total; i++) {
+            final String pkg;
+            final List<AppOpsManager.PackageOps> pkgOpsList;
+            if (i < opsByPackage.size()) {
+                pkg = opsByPackage.keyAt(i);
+                pkgOpsList = opsByPackage.valueAt(i);
+            } else {
+                pkg = appsByPackage.keyAt(i - opsByPackage.size());
+                if (opsByPackage.containsKey(pkg)) {
+                    // Already processed with its ops.
+                    continue;
+                }
+                pkgOpsList = null;
             }
-            List<AppOpsManager.OpEntry> dummyOps = null;
-            AppOpsManager.PackageOps pkgOps = null;
-            if (appInfo.requestedPermissions != null) {
-                for (int j=0; j<appInfo.requestedPermissions.length; j++) {
-                    if (appInfo.requestedPermissionsFlags != null) {
-                        if ((appInfo.requestedPermissionsFlags[j]
-                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
-                            if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
-                                    + appInfo.requestedPermissions[j] + " not granted; skipping");
-                            continue;
-                        }
-                    }
-                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
-                            + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
-
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0, -1, null);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                    }
+            for (int j=0; pkgOpsList != null && j<pkgOpsList.size(); j++) {
+                AppOpsManager.PackageOps pkgOps = pkgOpsList.get(j);
+                AppEntry appEntry = getAppEntry(context, appEntries, pkg, null);
+                if (appEntry == null) {
+                    continue;
+                }
+                for (int k=0; k<pkgOps.getOps().size(); k++) {
+                    AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(k);
+                    addOp(entries, pkgOps, appEntry, opEntry, allowMerge,
+                            allowMerge ? 0 : opToOrder[opEntry.getOp()]);
                 }
             }
+            final PackageInfo appInfo = appsByPackage.get(pkg);
+            if (appInfo != null) {
+                addPermissionOps(context, entries, appEntries, appInfo, permToOp, opToOrder,
+                        allowMerge);
+            }
+
+            processed++;
+            if (listener != null && processed >= nextChunk) {
+                // Deliver at doubling sizes, so that the copies and sorts stay linearithmic.
+                nextChunk *= 2;
+                final List<AppOpEntry> chunk = new ArrayList<AppOpEntry>(entries);
+                Collections.sort(chunk, comparator);
+                listener.onChunk(chunk);
+            }
         }
 
         // Sort the list.
@@ -634,4 +665,59 @@ public class AppOpsState {
         // Done!
         return entries;
     }
+
+    /**
+     * Adds an entry with the op of each permission of the package that is in the template, if
+     * the package does not have the op yet.
+     */
+    private void addPermissionOps(Context context, List<AppOpEntry> entries,
+            HashMap<String, AppEntry> appEntries, PackageInfo appInfo,
+            ArrayMap<String, Integer> permToOp, int[] opToOrder, boolean allowMerge) {
+        if (appInfo.requestedPermissions == null) {
+            return;
+        }
+        AppEntry appEntry = null;
+        List<AppOpsManager.OpEntry> dummyOps = null;
+        AppOpsManager.PackageOps pkgOps = null;
+        for (int j=0; j<appInfo.requestedPermissions.length; j++) {
+            if (appInfo.requestedPermissionsFlags != null) {
+                if ((appInfo.requestedPermissionsFlags[j]
+                        & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
+                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                            + appInfo.requestedPermissions[j] + " not granted; skipping");
+                    continue;
+                }
+            }
+            final Integer op = permToOp.get(appInfo.requestedPermissions[j]);
+            if (op == null) {
+                continue;
+            }
+            if (appEntry == null) {
+                // Only load the label of the packages that hold a permission of the template.
+                appEntry = getAppEntry(context, appEntries, appInfo.packageName,
+                        appInfo.applicationInfo);
+                if (appEntry == null) {
+                    return;
+                }
+            }
+            if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                    + appInfo.requestedPermissions[j] + " has op " + op + ": "
+                    + appEntry.hasOp(op));
+            if (appEntry.hasOp(op)) {
+                continue;
+            }
+            if (dummyOps == null) {
+                dummyOps = new ArrayList<AppOpsManager.OpEntry>();
+                pkgOps = new AppOpsManager.PackageOps(
+                        appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
+            }
+            AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                    op, AppOpsManager.MODE_ALLOWED, 0, 0, 0, -1, null);
+            dummyOps.add(opEntry);
+            // Like the ops themselves, the permissions of a package are merged together, but
+            // not with its actual ops.
+            addOp(entries, pkgOps, appEntry, opEntry, allowMerge && dummyOps.size() > 1,
+                    allowMerge ? 0 : opToOrder[opEntry.getOp()]);
+        }
+    }
 }
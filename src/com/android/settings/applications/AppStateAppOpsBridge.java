@@ -23,20 +23,35 @@ import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.settings.utils.BackgroundExecutors;
 import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * Connects app ops info to the ApplicationsState. Makes use of AppOpsManager to
@@ -45,6 +60,16 @@ import java.util.Set;
 public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
 
     private static final String TAG = "AppStateAppOpsBridge";
+    private static final boolean DEBUG = false;
+
+    // Parameters of the pool loading the profiles concurrently
+    private static final int PROFILE_POOL_SIZE =
+            Math.max(1, Math.min(BackgroundExecutors.CPU_COUNT - 1, 3));
+
+    private static ExecutorService sProfileExecutor;
+
+    // Stats of the loads of all the apps, by app op name
+    private static final ArrayMap<String, LoadStats> sLoadStats = new ArrayMap<>();
 
     private final IPackageManager mIPackageManager;
     private final UserManager mUserManager;
@@ -64,6 +89,17 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         mAppOpsManager = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
         mAppOpsOpCodes = new int[] {appOpsOpCode};
         mPermissions = permissions;
+        if (appState != null) {
+            enableExtraInfoCache(context, "appops_" + appOpsOpCode, SERIALIZER);
+        }
+    }
+
+    private static synchronized ExecutorService getProfileExecutor() {
+        if (sProfileExecutor == null) {
+            sProfileExecutor = BackgroundExecutors.newPool("AppOpsProfileLoader",
+                    PROFILE_POOL_SIZE, new LinkedBlockingQueue<Runnable>());
+        }
+        return sProfileExecutor;
     }
 
     private boolean isThisUserAProfileOfCurrentUser(final int userId) {
@@ -121,11 +157,12 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
 
     @Override
     protected void loadAllExtraInfo() {
-        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries();
+        final long start = SystemClock.elapsedRealtime();
+        final AtomicInteger ipcs = new AtomicInteger();
+        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries(true, ipcs);
 
         // Load state info.
-        loadPermissionsStates(entries);
-        loadAppOpsStates(entries);
+        loadAppOpsStates(entries, ipcs);
 
         // Map states to application info.
         List<AppEntry> apps = mAppSession.getAllApps();
@@ -133,98 +170,157 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         for (int i = 0; i < N; i++) {
             AppEntry app = apps.get(i);
             int userId = UserHandle.getUserId(app.info.uid);
-            ArrayMap<String, PermissionState> userMap = entries.get(userId);
+            ArrayMap<String, PermissionState> userMap = entries != null ? entries.get(userId)
+                    : null;
             app.extraInfo = userMap != null ? userMap.get(app.info.packageName) : null;
         }
+        recordLoad(ipcs.get(), SystemClock.elapsedRealtime() - start, N);
     }
 
+    private static final ExtraInfoSerializer SERIALIZER = new ExtraInfoSerializer() {
+        @Override
+        public void writeExtraInfo(DataOutputStream out, Object extraInfo) throws IOException {
+            final PermissionState state = (PermissionState) extraInfo;
+            out.writeBoolean(state.staticPermissionGranted);
+            out.writeBoolean(state.permissionDeclared);
+            out.writeInt(state.appOpMode);
+        }
+
+        @Override
+        public Object readExtraInfo(DataInputStream in, AppEntry app) throws IOException {
+            // The package info is not persisted, the list does not need it.
+            final PermissionState state = new PermissionState(app.info.packageName,
+                    new UserHandle(UserHandle.getUserId(app.info.uid)));
+            state.staticPermissionGranted = in.readBoolean();
+            state.permissionDeclared = in.readBoolean();
+            state.appOpMode = in.readInt();
+            return state;
+        }
+    };
+
     /*
      * Gets a sparse array that describes every user on the device and all the associated packages
-     * of each user, together with the packages available for that user.
+     * of each user, together with the packages available for that user. The profiles are loaded
+     * concurrently, with a constant number of calls to the package manager per profile.
+     *
+     * @param loadPermissions whether to also set the packageInfo and staticPermissionGranted
+     *     fields of the entries.
+     * @param ipcs incremented by the number of calls to the package manager.
      */
-    private SparseArray<ArrayMap<String, PermissionState>> getEntries() {
+    private SparseArray<ArrayMap<String, PermissionState>> getEntries(
+            final boolean loadPermissions, final AtomicInteger ipcs) {
+        final Set<String> packagesSet = new HashSet<>();
         try {
-            Set<String> packagesSet = new HashSet<>();
             for (String permission : mPermissions) {
+                ipcs.incrementAndGet();
                 String[] pkgs = mIPackageManager.getAppOpPermissionPackages(permission);
                 if (pkgs != null) {
                     packagesSet.addAll(Arrays.asList(pkgs));
                 }
             }
+        } catch (RemoteException e) {
+            Log.w(TAG, "PackageManager is dead. Can't get list of packages requesting "
+                    + mPermissions[0], e);
+            return null;
+        }
 
-            if (packagesSet.isEmpty()) {
-                // No packages are requesting permission as specified by mPermissions.
-                return null;
-            }
+        if (packagesSet.isEmpty()) {
+            // No packages are requesting permission as specified by mPermissions.
+            return null;
+        }
 
-            // Create a sparse array that maps profileIds to an ArrayMap that maps package names to
-            // an associated PermissionState object
-            SparseArray<ArrayMap<String, PermissionState>> entries = new SparseArray<>();
-            for (final UserHandle profile : mProfiles) {
-                final ArrayMap<String, PermissionState> entriesForProfile = new ArrayMap<>();
-                final int profileId = profile.getIdentifier();
-                entries.put(profileId, entriesForProfile);
-                for (final String packageName : packagesSet) {
-                    final boolean isAvailable = mIPackageManager.isPackageAvailable(packageName,
-                            profileId);
-                    if (!shouldIgnorePackage(packageName) && isAvailable) {
-                        final PermissionState newEntry = new PermissionState(packageName, profile);
-                        entriesForProfile.put(packageName, newEntry);
-                    }
+        // Create a sparse array that maps profileIds to an ArrayMap that maps package names to
+        // an associated PermissionState object. The other profiles are loaded on the pool while
+        // this thread loads the first one.
+        final int profileCount = mProfiles.size();
+        final SparseArray<ArrayMap<String, PermissionState>> entries =
+                new SparseArray<>(profileCount);
+        final List<Future<ArrayMap<String, PermissionState>>> futures = new ArrayList<>();
+        for (int i = 1; i < profileCount; i++) {
+            final UserHandle profile = mProfiles.get(i);
+            futures.add(getProfileExecutor().submit(
+                    new Callable<ArrayMap<String, PermissionState>>() {
+                @Override
+                public ArrayMap<String, PermissionState> call() throws RemoteException {
+                    return getProfileEntries(profile, packagesSet, loadPermissions, ipcs);
                 }
+            }));
+        }
+        try {
+            if (profileCount > 0) {
+                final UserHandle profile = mProfiles.get(0);
+                entries.put(profile.getIdentifier(),
+                        getProfileEntries(profile, packagesSet, loadPermissions, ipcs));
+            }
+            for (int i = 1; i < profileCount; i++) {
+                entries.put(mProfiles.get(i).getIdentifier(), futures.get(i - 1).get());
             }
-
-            return entries;
         } catch (RemoteException e) {
-            Log.w(TAG, "PackageManager is dead. Can't get list of packages requesting "
-                    + mPermissions[0], e);
+            Log.w(TAG, "PackageManager is dead. Can't get packages of profiles", e);
+            return null;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "PackageManager is dead. Can't get packages of profiles", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
         }
+        return entries;
     }
 
     /*
-     * This method will set the packageInfo and staticPermissionGranted field of the associated
-     * PermissionState, which describes a particular package.
+     * Gets the packages of the set that are available for the profile, i.e. installed and not
+     * hidden, which is what isPackageAvailable() checks, with one call instead of one per
+     * package. If loadPermissions is set, also sets the packageInfo and staticPermissionGranted
+     * fields of the packages that have been granted the permission specified in mPermissions.
      */
-    private void loadPermissionsStates(SparseArray<ArrayMap<String, PermissionState>> entries) {
-        // Load the packages that have been granted the permission specified in mPermission.
-        if (entries == null) {
-            return;
+    private ArrayMap<String, PermissionState> getProfileEntries(UserHandle profile,
+            Set<String> packagesSet, boolean loadPermissions, AtomicInteger ipcs)
+            throws RemoteException {
+        final int profileId = profile.getIdentifier();
+        final ArrayMap<String, PermissionState> entriesForProfile = new ArrayMap<>();
+        ipcs.incrementAndGet();
+        @SuppressWarnings("unchecked")
+        final List<PackageInfo> installed = mIPackageManager.getInstalledPackages(0, profileId)
+                .getList();
+        final int installedCount = installed != null ? installed.size() : 0;
+        for (int i = 0; i < installedCount; i++) {
+            final String packageName = installed.get(i).packageName;
+            if (packagesSet.contains(packageName) && !shouldIgnorePackage(packageName)) {
+                entriesForProfile.put(packageName, new PermissionState(packageName, profile));
+            }
+        }
+        if (!loadPermissions || entriesForProfile.isEmpty()) {
+            return entriesForProfile;
         }
 
-        try {
-            for (final UserHandle profile : mProfiles) {
-                final int profileId = profile.getIdentifier();
-                final ArrayMap<String, PermissionState> entriesForProfile = entries.get(profileId);
-                if (entriesForProfile == null) {
-                    continue;
-                }
-                @SuppressWarnings("unchecked")
-                final List<PackageInfo> packageInfos = mIPackageManager
-                        .getPackagesHoldingPermissions(mPermissions, 0, profileId).getList();
-                final int packageInfoCount = packageInfos != null ? packageInfos.size() : 0;
-                for (int i = 0; i < packageInfoCount; i++) {
-                    final PackageInfo packageInfo = packageInfos.get(i);
-                    final PermissionState pe = entriesForProfile.get(packageInfo.packageName);
-                    if (pe != null) {
-                        pe.packageInfo = packageInfo;
-                        pe.staticPermissionGranted = true;
-                    }
-                }
+        ipcs.incrementAndGet();
+        @SuppressWarnings("unchecked")
+        final List<PackageInfo> packageInfos = mIPackageManager
+                .getPackagesHoldingPermissions(mPermissions, 0, profileId).getList();
+        final int packageInfoCount = packageInfos != null ? packageInfos.size() : 0;
+        for (int i = 0; i < packageInfoCount; i++) {
+            final PackageInfo packageInfo = packageInfos.get(i);
+            final PermissionState pe = entriesForProfile.get(packageInfo.packageName);
+            if (pe != null) {
+                pe.packageInfo = packageInfo;
+                pe.staticPermissionGranted = true;
             }
-        } catch (RemoteException e) {
-            Log.w(TAG, "PackageManager is dead. Can't get list of packages granted "
-                    + mPermissions, e);
-            return;
         }
+        return entriesForProfile;
     }
 
     /*
      * This method will set the appOpMode field of the associated PermissionState, which describes
      * a particular package.
      */
-    private void loadAppOpsStates(SparseArray<ArrayMap<String, PermissionState>> entries) {
-        // Find out which packages have been granted permission from AppOps.
+    private void loadAppOpsStates(SparseArray<ArrayMap<String, PermissionState>> entries,
+            AtomicInteger ipcs) {
+        if (entries == null) {
+            return;
+        }
+        // Find out which packages have been granted permission from AppOps, for all the users.
+        ipcs.incrementAndGet();
         final List<AppOpsManager.PackageOps> packageOps = mAppOpsManager.getPackagesForOps(
                 mAppOpsOpCodes);
         final int packageOpsCount = packageOps != null ? packageOps.size() : 0;
@@ -264,7 +360,8 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
     }
 
     public int getNumPackagesDeclaredPermission() {
-        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries();
+        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries(false,
+                new AtomicInteger());
         if (entries == null) {
             return 0;
         }
@@ -277,12 +374,12 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
     }
 
     public int getNumPackagesAllowedByAppOps() {
-        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries();
+        final AtomicInteger ipcs = new AtomicInteger();
+        SparseArray<ArrayMap<String, PermissionState>> entries = getEntries(true, ipcs);
         if (entries == null) {
             return 0;
         }
-        loadPermissionsStates(entries);
-        loadAppOpsStates(entries);
+        loadAppOpsStates(entries, ipcs);
         final ArrayMap<String, PermissionState> entriesForProfile = entries.get(mUserManager
                 .getUserHandle());
         if (entriesForProfile == null) {
@@ -298,6 +395,57 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         return result;
     }
 
+    private void recordLoad(int ipcs, long wallMs, int appCount) {
+        final String op = AppOpsManager.opToName(mAppOpsOpCodes[0]);
+        synchronized (sLoadStats) {
+            LoadStats stats = sLoadStats.get(op);
+            if (stats == null) {
+                stats = new LoadStats();
+                sLoadStats.put(op, stats);
+            }
+            stats.loads++;
+            stats.lastIpcs = ipcs;
+            stats.totalIpcs += ipcs;
+            stats.lastWallMs = wallMs;
+            stats.maxWallMs = Math.max(stats.maxWallMs, wallMs);
+            stats.lastProfiles = mProfiles.size();
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Loaded " + op + " for " + appCount + " apps and " + mProfiles.size()
+                    + " profiles with " + ipcs + " IPCs in " + wallMs + "ms");
+        }
+    }
+
+    /**
+     * Returns the IPC counts and wall times of the loads of all the apps, by app op.
+     */
+    public static JSONObject dumpStats() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        synchronized (sLoadStats) {
+            for (int i = 0; i < sLoadStats.size(); i++) {
+                final LoadStats stats = sLoadStats.valueAt(i);
+                final JSONObject op = new JSONObject();
+                op.put("loads", stats.loads);
+                op.put("profiles", stats.lastProfiles);
+                op.put("lastIpcs", stats.lastIpcs);
+                op.put("totalIpcs", stats.totalIpcs);
+                op.put("lastWallMs", stats.lastWallMs);
+                op.put("maxWallMs", stats.maxWallMs);
+                obj.put(sLoadStats.keyAt(i), op);
+            }
+        }
+        return obj;
+    }
+
+    private static class LoadStats {
+        public int loads;
+        public int lastProfiles;
+        public int lastIpcs;
+        public long totalIpcs;
+        public long lastWallMs;
+        public long maxWallMs;
+    }
+
     public static class PermissionState {
         public final String packageName;
         public final UserHandle userHandle;
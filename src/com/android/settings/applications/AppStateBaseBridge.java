@@ -15,6 +15,7 @@
  */
 package com.android.settings.applications;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -23,6 +24,9 @@ import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.Session;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -36,6 +40,10 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     protected final BackgroundHandler mHandler;
     protected final MainHandler mMainHandler;
 
+    // Accessed on the background thread only
+    private AppStateExtraInfoCache mExtraInfoCache;
+    private boolean mLiveInfoLoaded;
+
     public AppStateBaseBridge(ApplicationsState appState, Callback callback) {
         mAppState = appState;
         mAppSession = mAppState != null ? mAppState.newSession(this) : null;
@@ -105,6 +113,16 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
         // No op.
     }
 
+    /**
+     * Persists the extra info of the apps under the given name, so that it is shown right away
+     * the next time the bridge is resumed, while the live info is loaded.
+     */
+    protected void enableExtraInfoCache(Context context, String name,
+            ExtraInfoSerializer serializer) {
+        mExtraInfoCache = new AppStateExtraInfoCache(context.getApplicationContext(), name,
+                serializer, mHandler.getLooper());
+    }
+
     protected abstract void loadAllExtraInfo();
     protected abstract void updateExtraInfo(AppEntry app, String pkg, int uid);
 
@@ -133,8 +151,22 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_LOAD_ALL:
+                    if (mExtraInfoCache == null) {
+                        loadAllExtraInfo();
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+                        break;
+                    }
+                    if (!mLiveInfoLoaded
+                            && mExtraInfoCache.apply(mAppSession.getAllApps()) > 0) {
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+                    }
                     loadAllExtraInfo();
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
+                    ArrayList<AppEntry> loaded = mAppSession.getAllApps();
+                    if (!loaded.isEmpty()) {
+                        mLiveInfoLoaded = true;
+                        mExtraInfoCache.store(loaded);
+                    }
                     break;
                 case MSG_FORCE_LOAD_PKG:
                     ArrayList<AppEntry> apps = mAppSession.getAllApps();
@@ -145,6 +177,9 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
                         AppEntry app = apps.get(i);
                         if (app.info.uid == uid && pkg.equals(app.info.packageName)) {
                             updateExtraInfo(app, pkg, uid);
+                            if (mExtraInfoCache != null) {
+                                mExtraInfoCache.update(app);
+                            }
                         }
                     }
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_INFO_UPDATED);
@@ -157,4 +192,16 @@ public abstract class AppStateBaseBridge implements ApplicationsState.Callbacks
     public interface Callback {
         void onExtraInfoUpdated();
     }
+
+    /**
+     * Writes and reads back the extra info of the apps of a bridge with a persisted cache.
+     */
+    public interface ExtraInfoSerializer {
+        void writeExtraInfo(DataOutputStream out, Object extraInfo) throws IOException;
+
+        /**
+         * @param app the app the extra info is read for, without its extra info set.
+         */
+        Object readExtraInfo(DataInputStream in, AppEntry app) throws IOException;
+    }
 }
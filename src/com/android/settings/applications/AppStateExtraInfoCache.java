@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.settings.applications.AppStateBaseBridge.ExtraInfoSerializer;
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persisted extra info of the apps of an {@link AppStateBaseBridge}, so that a list can show it
+ * as soon as it is resumed, while the bridge loads the live info.
+ *
+ * Entries are keyed by package and uid, and are only used while the lastUpdateTime of the
+ * package is the one they were stored with. The extra info itself is serialized by the
+ * {@link ExtraInfoSerializer} of the bridge. The lastUpdateTime of the packages is only looked up
+ * for the apps without an entry, and entries found outdated when applied are dropped.
+ * All the methods are called on the background thread of the bridge, except for the file
+ * writes which are queued on {@link AsyncTask#SERIAL_EXECUTOR}. Writes after single app updates
+ * are delayed, so that a burst of updates is written once.
+ */
+public class AppStateExtraInfoCache {
+
+    private static final String TAG = "AppStateExtraInfoCache";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_PREFIX = "app_extra_info_";
+    private static final int VERSION = 1;
+
+    // Updates of single apps within this delay are written together
+    private static final long UPDATE_WRITE_DELAY_MS = 1000;
+
+    private static final int PACKAGE_FLAGS = PackageManager.MATCH_DISABLED_COMPONENTS
+            | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS
+            | PackageManager.MATCH_UNINSTALLED_PACKAGES;
+
+    private final PackageManager mPm;
+    private final AtomicFile mFile;
+    private final ExtraInfoSerializer mSerializer;
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    private final Handler mHandler;
+    private boolean mLoaded;
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private static class Entry {
+        public final long lastUpdateTime;
+        // The serialized extra info, null if the app has none
+        public final byte[] data;
+
+        public Entry(long lastUpdateTime, byte[] data) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param looper the looper of the background thread of the bridge.
+     */
+    public AppStateExtraInfoCache(Context context, String name, ExtraInfoSerializer serializer,
+            Looper looper) {
+        mPm = context.getPackageManager();
+        mHandler = new Handler(looper);
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_PREFIX + name));
+        mSerializer = serializer;
+    }
+
+    /**
+     * Sets the cached extra info on the apps whose package did not change since it was stored.
+     *
+     * @return the number of apps updated.
+     */
+    public int apply(List<AppEntry> apps) {
+        ensureLoaded();
+        if (mEntries.isEmpty() || apps.isEmpty()) {
+            return 0;
+        }
+        final SparseArray<ArrayMap<String, Long>> lastUpdateTimes = getLastUpdateTimes(apps);
+        int count = 0;
+        for (int i = 0; i < apps.size(); i++) {
+            final AppEntry app = apps.get(i);
+            final Entry entry = mEntries.get(buildKey(app.info.packageName, app.info.uid));
+            final Long lastUpdateTime = lastUpdateTimes.get(UserHandle.getUserId(app.info.uid))
+                    .get(app.info.packageName);
+            if (entry == null) {
+                continue;
+            }
+            if (lastUpdateTime == null || entry.lastUpdateTime != lastUpdateTime) {
+                // Stored before the package was updated, looked up again by the next store.
+                mEntries.remove(buildKey(app.info.packageName, app.info.uid));
+                continue;
+            }
+            try {
+                app.extraInfo = (entry.data != null) ? mSerializer.readExtraInfo(
+                        new DataInputStream(new ByteArrayInputStream(entry.data)), app) : null;
+                count++;
+            } catch (IOException e) {
+                Log.w(TAG, "Problem reading extra info of " + app.info.packageName, e);
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Applied " + count + " of " + apps.size() + " apps");
+        return count;
+    }
+
+    /**
+     * Replaces the entries with the extra info of the apps, and writes them if they changed.
+     * The package manager is only asked for the lastUpdateTime of the apps without an entry.
+     */
+    public void store(List<AppEntry> apps) {
+        ensureLoaded();
+        if (apps.isEmpty()) {
+            // The apps are not loaded yet, keep the entries for when they are.
+            return;
+        }
+        ArrayList<AppEntry> missing = null;
+        for (int i = 0; i < apps.size(); i++) {
+            final AppEntry app = apps.get(i);
+            if (!mEntries.containsKey(buildKey(app.info.packageName, app.info.uid))) {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(app);
+            }
+        }
+        final SparseArray<ArrayMap<String, Long>> lastUpdateTimes = (missing != null)
+                ? getLastUpdateTimes(missing) : null;
+        final ArrayMap<String, Entry> entries = new ArrayMap<>(apps.size());
+        for (int i = 0; i < apps.size(); i++) {
+            final AppEntry app = apps.get(i);
+            final String key = buildKey(app.info.packageName, app.info.uid);
+            final Entry current = mEntries.get(key);
+            final Long lastUpdateTime = (current != null) ? current.lastUpdateTime
+                    : lastUpdateTimes.get(UserHandle.getUserId(app.info.uid))
+                            .get(app.info.packageName);
+            if (lastUpdateTime == null) {
+                continue;
+            }
+            entries.put(key, new Entry(lastUpdateTime, serialize(app)));
+        }
+        if (sameEntries(entries)) {
+            return;
+        }
+        mEntries.clear();
+        mEntries.putAll(entries);
+        mHandler.removeCallbacks(mWrite);
+        write();
+    }
+
+    /**
+     * Replaces the entry of a single app, after its extra info was reloaded. The entries are
+     * written after a delay, with the updates of the other apps made meanwhile.
+     */
+    public void update(AppEntry app) {
+        ensureLoaded();
+        final String key = buildKey(app.info.packageName, app.info.uid);
+        mEntries.remove(key);
+        try {
+            final long lastUpdateTime = mPm.getPackageInfoAsUser(app.info.packageName,
+                    PACKAGE_FLAGS, UserHandle.getUserId(app.info.uid)).lastUpdateTime;
+            mEntries.put(key, new Entry(lastUpdateTime, serialize(app)));
+        } catch (PackageManager.NameNotFoundException e) {
+            // Removed, drop its entry.
+        }
+        mHandler.removeCallbacks(mWrite);
+        mHandler.postDelayed(mWrite, UPDATE_WRITE_DELAY_MS);
+    }
+
+    /**
+     * Returns the lastUpdateTime of every package of the users of the apps, with a single call to
+     * the package manager per user.
+     */
+    private SparseArray<ArrayMap<String, Long>> getLastUpdateTimes(List<AppEntry> apps) {
+        final SparseArray<ArrayMap<String, Long>> result = new SparseArray<>();
+        for (int i = 0; i < apps.size(); i++) {
+            final int userId = UserHandle.getUserId(apps.get(i).info.uid);
+            if (result.get(userId) != null) {
+                continue;
+            }
+            final List<PackageInfo> packages = mPm.getInstalledPackagesAsUser(PACKAGE_FLAGS,
+                    userId);
+            final ArrayMap<String, Long> times = new ArrayMap<>(packages.size());
+            for (int j = 0; j < packages.size(); j++) {
+                final PackageInfo info = packages.get(j);
+                times.put(info.packageName, info.lastUpdateTime);
+            }
+            result.put(userId, times);
+        }
+        return result;
+    }
+
+    private byte[] serialize(AppEntry app) {
+        if (app.extraInfo == null) {
+            return null;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            mSerializer.writeExtraInfo(out, app.extraInfo);
+            out.flush();
+        } catch (IOException e) {
+            // Cannot happen, writing to memory
+            Log.w(TAG, "Problem serializing extra info of " + app.info.packageName, e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private boolean sameEntries(ArrayMap<String, Entry> entries) {
+        if (entries.size() != mEntries.size()) {
+            return false;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.valueAt(i);
+            final Entry current = mEntries.get(entries.keyAt(i));
+            if (current == null || current.lastUpdateTime != entry.lastUpdateTime
+                    || !Arrays.equals(current.data, entry.data)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        final byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading " + mFile.getBaseFile(), e);
+            return;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() != VERSION || !TextUtils.equals(in.readUTF(), Build.FINGERPRINT)) {
+                if (DEBUG) Log.d(TAG, "Ignoring " + mFile.getBaseFile() + " of another build");
+                return;
+            }
+            final int count = in.readInt();
+            mEntries.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final long lastUpdateTime = in.readLong();
+                final int length = in.readInt();
+                byte[] entryData = null;
+                if (length >= 0) {
+                    entryData = new byte[length];
+                    in.readFully(entryData);
+                }
+                mEntries.put(key, new Entry(lastUpdateTime, entryData));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading " + mFile.getBaseFile(), e);
+            mEntries.clear();
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + mEntries.size() + " entries");
+    }
+
+    private void write() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                out.writeUTF(mEntries.keyAt(i));
+                out.writeLong(entry.lastUpdateTime);
+                if (entry.data != null) {
+                    out.writeInt(entry.data.length);
+                    out.write(entry.data);
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Cannot happen, writing to memory
+            Log.w(TAG, "Problem serializing entries", e);
+            return;
+        }
+        final byte[] data = bytes.toByteArray();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream fos = null;
+                try {
+                    fos = mFile.startWrite();
+                    fos.write(data);
+                    mFile.finishWrite(fos);
+                } catch (IOException e) {
+                    Log.w(TAG, "Problem writing " + mFile.getBaseFile(), e);
+                    if (fos != null) {
+                        mFile.failWrite(fos);
+                    }
+                }
+            }
+        });
+    }
+
+    private static String buildKey(String pkg, int uid) {
+        return uid + ":" + pkg;
+    }
+}
@@ -28,6 +28,9 @@ import com.android.settingslib.applications.ApplicationsState;
 import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.AppFilter;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -46,6 +49,7 @@ public class AppStateNotificationBridge extends AppStateBaseBridge {
         mContext = context;
         mPm = mContext.getPackageManager();
         mNotifBackend = notifBackend;
+        enableExtraInfoCache(context, "notification", SERIALIZER);
     }
 
     @Override
@@ -63,6 +67,34 @@ public class AppStateNotificationBridge extends AppStateBaseBridge {
         app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
     }
 
+    private static final ExtraInfoSerializer SERIALIZER = new ExtraInfoSerializer() {
+        @Override
+        public void writeExtraInfo(DataOutputStream out, Object extraInfo) throws IOException {
+            final AppRow row = (AppRow) extraInfo;
+            out.writeBoolean(row.banned);
+            out.writeInt(row.appImportance);
+            out.writeBoolean(row.appBypassDnd);
+            out.writeInt(row.appVisOverride);
+            out.writeBoolean(row.lockScreenSecure);
+        }
+
+        @Override
+        public Object readExtraInfo(DataInputStream in, AppEntry app) throws IOException {
+            // Same as NotificationBackend#loadAppRow(), with the label and icon of the entry.
+            final AppRow row = new AppRow();
+            row.pkg = app.info.packageName;
+            row.uid = app.info.uid;
+            row.label = app.label != null ? app.label : row.pkg;
+            row.icon = app.icon;
+            row.banned = in.readBoolean();
+            row.appImportance = in.readInt();
+            row.appBypassDnd = in.readBoolean();
+            row.appVisOverride = in.readInt();
+            row.lockScreenSecure = in.readBoolean();
+            return row;
+        }
+    };
+
     public static final AppFilter FILTER_APP_NOTIFICATION_BLOCKED = new AppFilter() {
         @Override
         public void init() {
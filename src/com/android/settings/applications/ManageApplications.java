@@ -32,6 +32,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceFrameLayout;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -811,28 +812,53 @@ public class ManageApplications extends InstrumentedFragment
         private AlphabeticIndex.ImmutableIndex<Locale> mIndex;
         private SectionInfo[] mSections = EMPTY_SECTIONS;
         private int[] mPositionToSectionIndex;
+        // Bucket of the labels already seen, guarded by itself
+        private final ArrayMap<String, Integer> mBucketCache = new ArrayMap<>();
+        // Read off the main thread, so that sections can be built there
+        private volatile boolean mFastScrollEnabled;
 
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
-                ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                final ArrayList<AppEntry> baseEntries = mBaseEntries;
+                final ListState state = computeListState(baseEntries,
+                        applyPrefixFilter(constraint, baseEntries), null);
                 FilterResults fr = new FilterResults();
-                fr.values = entries;
-                fr.count = entries.size();
+                fr.values = state;
+                fr.count = state.entries.size();
                 return fr;
             }
 
             @Override
-            @SuppressWarnings("unchecked")
             protected void publishResults(CharSequence constraint, FilterResults results) {
                 mCurFilterPrefix = constraint;
-                mEntries = (ArrayList<ApplicationsState.AppEntry>) results.values;
-                rebuildSections();
-                notifyDataSetChanged();
+                applyListState((ListState) results.values);
             }
         };
 
+        /**
+         * The entries to display and their sections, computed off the main thread.
+         */
+        private static class ListState {
+            final ArrayList<AppEntry> baseEntries;
+            final ArrayList<AppEntry> entries;
+            final SectionInfo[] sections;
+            final int[] positionToSectionIndex;
+            // The list displayed when the state was computed, if it holds the same entries in
+            // the same order
+            final ArrayList<AppEntry> sameAs;
+
+            ListState(ArrayList<AppEntry> baseEntries, ArrayList<AppEntry> entries,
+                    SectionInfo[] sections, int[] positionToSectionIndex,
+                    ArrayList<AppEntry> sameAs) {
+                this.baseEntries = baseEntries;
+                this.entries = entries;
+                this.sections = sections;
+                this.positionToSectionIndex = positionToSectionIndex;
+                this.sameAs = sameAs;
+            }
+        }
+
         public ApplicationsAdapter(ApplicationsState state, ManageApplications manageApplications,
                                    int filterMode) {
             mState = state;
@@ -961,15 +987,107 @@ public class ManageApplications extends InstrumentedFragment
             filterObj = new CompoundFilter(filterObj, ApplicationsState.FILTER_NOT_HIDE);
 
             AppFilter finalFilterObj = filterObj;
+            final CharSequence prefix = mCurFilterPrefix;
+            final ArrayList<AppEntry> previous = mEntries;
+            mFastScrollEnabled = mManageApplications.mListView.isFastScrollEnabled();
             mBgHandler.post(() -> {
                 final ArrayList<AppEntry> entries = mSession.rebuild(finalFilterObj,
                         comparatorObj, false);
                 if (entries != null) {
-                    mFgHandler.post(() -> onRebuildComplete(entries));
+                    final ListState state = computeListState(entries, prefix, previous);
+                    mFgHandler.post(() -> {
+                        if (!TextUtils.equals(prefix, mCurFilterPrefix)) {
+                            // The filter changed meanwhile, apply it on the main thread.
+                            onRebuildComplete(entries);
+                        } else {
+                            applyListState(state);
+                        }
+                    });
                 }
             });
         }
 
+        private ListState computeListState(ArrayList<AppEntry> entries, CharSequence prefix,
+                ArrayList<AppEntry> previous) {
+            if (mFilterMode == FILTER_APPS_POWER_WHITELIST ||
+                    mFilterMode == FILTER_APPS_POWER_WHITELIST_ALL) {
+                entries = removeDuplicateIgnoringUser(entries);
+            }
+            return computeListState(entries, applyPrefixFilter(prefix, entries), previous);
+        }
+
+        private ListState computeListState(ArrayList<AppEntry> baseEntries,
+                ArrayList<AppEntry> entries, ArrayList<AppEntry> previous) {
+            if (entries == null) {
+                return new ListState(baseEntries, null, EMPTY_SECTIONS, null, null);
+            }
+            SectionInfo[] sections = EMPTY_SECTIONS;
+            int[] positionToSectionIndex = null;
+            if (mFastScrollEnabled) {
+                ArrayList<SectionInfo> sectionList = new ArrayList<>();
+                int lastSecId = -1;
+                int totalEntries = entries.size();
+                positionToSectionIndex = new int[totalEntries];
+
+                for (int pos = 0; pos < totalEntries; pos++) {
+                    int secId = getBucketIndex(entries.get(pos).label);
+                    if (secId != lastSecId) {
+                        lastSecId = secId;
+                        sectionList.add(new SectionInfo(getIndex().getBucket(secId).getLabel(),
+                                pos));
+                    }
+                    positionToSectionIndex[pos] = sectionList.size() - 1;
+                }
+                sections = sectionList.toArray(EMPTY_SECTIONS);
+            }
+            return new ListState(baseEntries, entries, sections, positionToSectionIndex,
+                    hasSameEntries(entries, previous) ? previous : null);
+        }
+
+        private static boolean hasSameEntries(ArrayList<AppEntry> entries,
+                ArrayList<AppEntry> previous) {
+            if (previous == null || entries.size() != previous.size()) {
+                return false;
+            }
+            final int count = entries.size();
+            for (int i = 0; i < count; i++) {
+                if (entries.get(i) != previous.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int getBucketIndex(String label) {
+            final String key = TextUtils.isEmpty(label) ? "" : label;
+            synchronized (mBucketCache) {
+                Integer bucket = mBucketCache.get(key);
+                if (bucket == null) {
+                    bucket = getIndex().getBucketIndex(key);
+                    mBucketCache.put(key, bucket);
+                }
+                return bucket;
+            }
+        }
+
+        private synchronized AlphabeticIndex.ImmutableIndex<Locale> getIndex() {
+            if (mIndex == null) {
+                LocaleList locales = mContext.getResources().getConfiguration().getLocales();
+                if (locales.size() == 0) {
+                    locales = new LocaleList(Locale.ENGLISH);
+                }
+                AlphabeticIndex<Locale> index = new AlphabeticIndex<>(locales.get(0));
+                int localeCount = locales.size();
+                for (int i = 1; i < localeCount; i++) {
+                    index.addLabels(locales.get(i));
+                }
+                // Ensure we always have some base English locale buckets
+                index.addLabels(Locale.ENGLISH);
+                mIndex = index.buildImmutableIndex();
+            }
+            return mIndex;
+        }
+
 
         static private boolean packageNameEquals(PackageItemInfo info1, PackageItemInfo info2) {
             if (info1 == null || info2 == null) {
@@ -1005,22 +1123,24 @@ public class ManageApplications extends InstrumentedFragment
 
         @Override
         public void onRebuildComplete(ArrayList<AppEntry> entries) {
-            if (mFilterMode == FILTER_APPS_POWER_WHITELIST ||
-                    mFilterMode == FILTER_APPS_POWER_WHITELIST_ALL) {
-                entries = removeDuplicateIgnoringUser(entries);
-            }
-            mBaseEntries = entries;
-            if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-                rebuildSections();
+            mFastScrollEnabled = mManageApplications.mListView.isFastScrollEnabled();
+            applyListState(entries != null
+                    ? computeListState(entries, mCurFilterPrefix, mEntries)
+                    : new ListState(null, null, EMPTY_SECTIONS, null, null));
+        }
+
+        private void applyListState(ListState state) {
+            mBaseEntries = state.baseEntries;
+            mSections = state.sections;
+            mPositionToSectionIndex = state.positionToSectionIndex;
+            if (state.sameAs != null && state.sameAs == mEntries) {
+                // Same rows in the same order, only rebind the visible rows.
+                refreshActiveViews();
             } else {
-                mEntries = null;
-                mSections = EMPTY_SECTIONS;
-                mPositionToSectionIndex = null;
+                mEntries = state.entries;
+                notifyDataSetChanged();
             }
 
-            notifyDataSetChanged();
-
             if (mSession.getAllApps().size() != 0
                     && mManageApplications.mListContainer.getVisibility() != View.VISIBLE) {
                 Utils.handleLoadingContainer(mManageApplications.mLoadingContainer,
@@ -1034,42 +1154,11 @@ public class ManageApplications extends InstrumentedFragment
             mManageApplications.setHasDisabled(mState.haveDisabledApps());
         }
 
-        private void rebuildSections() {
-            if (mEntries!= null && mManageApplications.mListView.isFastScrollEnabled()) {
-                // Rebuild sections
-                if (mIndex == null) {
-                    LocaleList locales = mContext.getResources().getConfiguration().getLocales();
-                    if (locales.size() == 0) {
-                        locales = new LocaleList(Locale.ENGLISH);
-                    }
-                    AlphabeticIndex<Locale> index = new AlphabeticIndex<>(locales.get(0));
-                    int localeCount = locales.size();
-                    for (int i = 1; i < localeCount; i++) {
-                        index.addLabels(locales.get(i));
-                    }
-                    // Ensure we always have some base English locale buckets
-                    index.addLabels(Locale.ENGLISH);
-                    mIndex = index.buildImmutableIndex();
-                }
-
-                ArrayList<SectionInfo> sections = new ArrayList<>();
-                int lastSecId = -1;
-                int totalEntries = mEntries.size();
-                mPositionToSectionIndex = new int[totalEntries];
-
-                for (int pos = 0; pos < totalEntries; pos++) {
-                    String label = mEntries.get(pos).label;
-                    int secId = mIndex.getBucketIndex(TextUtils.isEmpty(label) ? "" : label);
-                    if (secId != lastSecId) {
-                        lastSecId = secId;
-                        sections.add(new SectionInfo(mIndex.getBucket(secId).getLabel(), pos));
-                    }
-                    mPositionToSectionIndex[pos] = sections.size() - 1;
-                }
-                mSections = sections.toArray(EMPTY_SECTIONS);
-            } else {
-                mSections = EMPTY_SECTIONS;
-                mPositionToSectionIndex = null;
+        private void refreshActiveViews() {
+            for (int i = 0; i < mActive.size(); i++) {
+                final View view = mActive.get(i);
+                final AppViewHolder holder = (AppViewHolder) view.getTag();
+                bindView(holder, holder.entry);
             }
         }
 
@@ -1201,7 +1290,14 @@ public class ManageApplications extends InstrumentedFragment
             convertView = holder.rootView;
 
             // Bind the data efficiently with the holder
-            ApplicationsState.AppEntry entry = mEntries.get(position);
+            bindView(holder, mEntries.get(position));
+            mActive.remove(convertView);
+            mActive.add(convertView);
+            convertView.setEnabled(isEnabled(position));
+            return convertView;
+        }
+
+        private void bindView(AppViewHolder holder, AppEntry entry) {
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
@@ -1222,10 +1318,6 @@ public class ManageApplications extends InstrumentedFragment
                     holder.disabled.setVisibility(View.GONE);
                 }
             }
-            mActive.remove(convertView);
-            mActive.add(convertView);
-            convertView.setEnabled(isEnabled(position));
-            return convertView;
         }
 
         private void updateSummary(AppViewHolder holder) {
@@ -31,6 +31,8 @@ import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AbsListView.RecyclerListener;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
@@ -59,6 +61,9 @@ public class RunningProcessesView extends FrameLayout
     
     final HashMap<View, ActiveItem> mActiveItems = new HashMap<View, ActiveItem>();
 
+    // The items of mActiveItems, reported to the state on every time update.
+    final ArrayList<RunningState.BaseItem> mVisibleItems = new ArrayList<RunningState.BaseItem>();
+
     ActivityManager mAm;
     
     RunningState mState;
@@ -228,6 +233,7 @@ public class RunningProcessesView extends FrameLayout
             if (mShowBackground != showBackground) {
                 mShowBackground = showBackground;
                 mState.setWatchingBackgroundItems(showBackground);
+                mState.onUserInteraction();
                 refreshItems();
                 refreshUi(true);
             }
@@ -444,6 +450,19 @@ public class RunningProcessesView extends FrameLayout
         }
         mListView.setOnItemClickListener(this);
         mListView.setRecyclerListener(this);
+        mListView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState != SCROLL_STATE_IDLE) {
+                    mState.onUserInteraction();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+            }
+        });
         mAdapter = new ServiceListAdapter(mState);
         mListView.setAdapter(mAdapter);
         mHeader = inflater.inflate(R.layout.running_processes_header, null);
@@ -485,6 +504,7 @@ public class RunningProcessesView extends FrameLayout
     }
 
     void updateTimes() {
+        mVisibleItems.clear();
         Iterator<ActiveItem> it = mActiveItems.values().iterator();
         while (it.hasNext()) {
             ActiveItem ai = it.next();
@@ -494,7 +514,10 @@ public class RunningProcessesView extends FrameLayout
                 continue;
             }
             ai.updateTime(getContext(), mBuilder);
+            mVisibleItems.add(ai.mItem);
         }
+        // Only the memory use of the processes shown is sampled at every update.
+        mState.setVisibleItems(mVisibleItems);
     }
 
     @Override
@@ -38,22 +38,31 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.settings.R;
+import com.android.settings.utils.IconCache;
 import com.android.settingslib.Utils;
 import com.android.settingslib.applications.InterestingConfigChanges;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Singleton for retrieving and monitoring the state about all running
@@ -62,6 +71,7 @@ import java.util.List;
 public class RunningState {
     static final String TAG = "RunningState";
     static final boolean DEBUG_COMPARE = false;
+    static final boolean DEBUG_STATS = false;
 
     static Object sGlobalLock = new Object();
     static RunningState sInstance;
@@ -70,10 +80,18 @@ public class RunningState {
     static final int MSG_UPDATE_CONTENTS = 2;
     static final int MSG_REFRESH_UI = 3;
     static final int MSG_UPDATE_TIME = 4;
+    static final int MSG_RESET_UPDATE_DELAY = 5;
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // The contents are updated less and less often while they do not change, up to this delay.
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+
+    // The memory use of the processes that are not visible is only sampled every that many
+    // updates, to keep the totals of the header current.
+    static final int FULL_PSS_SAMPLE_INTERVAL = 5;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -126,20 +144,63 @@ public class RunningState {
     final SparseArray<MergedItem> mOtherUserBackgroundItems = new SparseArray<MergedItem>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
         AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
         }
+
+        void set(ActivityManager.RunningAppProcessInfo _info) {
+            info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
+        }
     }
 
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    // Recycled entries of mTmpAppProcesses.
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+
     int mSequence = 0;
 
+    // Fingerprint of the running services and processes the items were last built from.
+    long mFingerprint;
+    boolean mHaveFingerprint;
+
+    // Number of item objects allocated by the current update.
+    int mAllocations;
+
+    // Whether the last update kept the items because nothing changed.
+    boolean mLastUpdateSkipped;
+
+    // Delay until the next update of the contents, and when it is scheduled.
+    long mUpdateDelay = CONTENTS_UPDATE_DELAY;
+    long mNextUpdateTime;
+
+    // Number of updates since the memory use of all the processes was last sampled.
+    int mUpdatesSinceFullPssSample = FULL_PSS_SAMPLE_INTERVAL;
+
+    static final class UpdateStats {
+        int updates;
+        int skipped;
+        int refreshes;
+        long lastMs;
+        long maxMs;
+        long totalMs;
+        int lastAllocations;
+        long totalAllocations;
+        int lastPssSampled;
+        int lastPssTotal;
+        long lastDelayMs;
+    }
+
+    // Stats of the updates, guarded by itself.
+    static final UpdateStats sStats = new UpdateStats();
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -207,6 +268,9 @@ public class RunningState {
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
 
+    // Processes shown in the visible rows of the list, empty if unknown.
+    final ArraySet<ProcessItem> mVisibleProcesses = new ArraySet<ProcessItem>();
+
     ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
@@ -239,15 +303,38 @@ public class RunningState {
                             return;
                         }
                     }
-                    Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
-                    mHandler.sendMessage(cmd);
-                    removeMessages(MSG_UPDATE_CONTENTS);
-                    msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    final int refresh = update(mApplicationContext, mAm);
+                    if (refresh != OnRefreshUiListener.REFRESH_TIME) {
+                        Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
+                        cmd.arg1 = refresh == OnRefreshUiListener.REFRESH_STRUCTURE ? 1 : 0;
+                        mHandler.sendMessage(cmd);
+                    }
+                    // Back off while nothing changes, start over as soon as something does.
+                    if (mLastUpdateSkipped) {
+                        mUpdateDelay = Math.min(mUpdateDelay * 2, MAX_CONTENTS_UPDATE_DELAY);
+                    } else {
+                        mUpdateDelay = CONTENTS_UPDATE_DELAY;
+                    }
+                    scheduleUpdate(mUpdateDelay);
+                    break;
+                case MSG_RESET_UPDATE_DELAY:
+                    mUpdateDelay = CONTENTS_UPDATE_DELAY;
+                    if (hasMessages(MSG_UPDATE_CONTENTS) && mNextUpdateTime
+                            - SystemClock.uptimeMillis() > CONTENTS_UPDATE_DELAY) {
+                        scheduleUpdate(CONTENTS_UPDATE_DELAY);
+                    }
                     break;
             }
         }
+
+        private void scheduleUpdate(long delay) {
+            removeMessages(MSG_UPDATE_CONTENTS);
+            sendEmptyMessageDelayed(MSG_UPDATE_CONTENTS, delay);
+            mNextUpdateTime = SystemClock.uptimeMillis() + delay;
+            synchronized (sStats) {
+                sStats.lastDelayMs = delay;
+            }
+        }
     };
 
     final BackgroundHandler mBackgroundHandler;
@@ -359,11 +446,22 @@ public class RunningState {
             mUserId = userId;
         }
 
-        public Drawable loadIcon(Context context, RunningState state) {
+        public Drawable loadIcon(Context context, final RunningState state) {
             if (mPackageInfo != null) {
-                Drawable unbadgedIcon = mPackageInfo.loadUnbadgedIcon(state.mPm);
-                Drawable icon = state.mPm.getUserBadgedIcon(unbadgedIcon, new UserHandle(mUserId));
-                return icon;
+                final PackageItemInfo packageInfo = mPackageInfo;
+                return IconCache.getInstance(context).getIcon(
+                        IconCache.getPackageKey(packageInfo.packageName,
+                                packageInfo.name + "/" + mUserId),
+                        context.getResources().getDimensionPixelSize(
+                                android.R.dimen.app_icon_size),
+                        new IconCache.IconLoader() {
+                            @Override
+                            public Drawable loadIcon() {
+                                Drawable unbadgedIcon = packageInfo.loadUnbadgedIcon(state.mPm);
+                                return state.mPm.getUserBadgedIcon(unbadgedIcon,
+                                        new UserHandle(mUserId));
+                            }
+                        });
             }
             return null;
         }
@@ -803,6 +901,7 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
+            mBackgroundHandler.sendEmptyMessage(MSG_RESET_UPDATE_DELAY);
             if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
                 mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             }
@@ -810,6 +909,46 @@ public class RunningState {
         }
     }
 
+    /**
+     * Updates the contents at the fastest rate again, e.g. because the user is interacting
+     * with the list.
+     */
+    void onUserInteraction() {
+        synchronized (mLock) {
+            if (mResumed && !mBackgroundHandler.hasMessages(MSG_RESET_UPDATE_DELAY)) {
+                mBackgroundHandler.sendEmptyMessage(MSG_RESET_UPDATE_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Sets the items shown in the visible rows of the list. Only the memory use of their
+     * processes is sampled at every update.
+     */
+    void setVisibleItems(Collection<? extends BaseItem> items) {
+        synchronized (mLock) {
+            mVisibleProcesses.clear();
+            for (BaseItem item : items) {
+                addVisibleProcesses(item);
+            }
+        }
+    }
+
+    private void addVisibleProcesses(BaseItem item) {
+        if (item instanceof ProcessItem) {
+            mVisibleProcesses.add((ProcessItem) item);
+        } else if (item instanceof MergedItem) {
+            final MergedItem mergedItem = (MergedItem) item;
+            if (mergedItem.mProcess != null) {
+                mVisibleProcesses.add(mergedItem.mProcess);
+            }
+            mVisibleProcesses.addAll(mergedItem.mOtherProcesses);
+            for (int i = 0; i < mergedItem.mChildren.size(); i++) {
+                addVisibleProcesses(mergedItem.mChildren.get(i));
+            }
+        }
+    }
+
     void updateNow() {
         synchronized (mLock) {
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
@@ -838,6 +977,7 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = false;
             mRefreshUiListener = null;
+            mVisibleProcesses.clear();
             mHandler.removeMessages(MSG_UPDATE_TIME);
         }
     }
@@ -857,6 +997,7 @@ public class RunningState {
     }
 
     private void reset() {
+        mHaveFingerprint = false;
         mServiceProcessesByName.clear();
         mServiceProcessesByPid.clear();
         mInterestingProcesses.clear();
@@ -879,6 +1020,7 @@ public class RunningState {
                 return;
             }
             if (userItem == null) {
+                mAllocations++;
                 userItem = new MergedItem(newItem.mUserId);
                 userItems.put(newItem.mUserId, userItem);
             } else {
@@ -894,12 +1036,14 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
-        final PackageManager pm = context.getPackageManager();
-
-        mSequence++;
-        
-        boolean changed = false;
+    /**
+     * Updates the items from the running services and processes, and their memory use.
+     *
+     * @return the {@link OnRefreshUiListener} refresh that the UI needs.
+     */
+    private int update(Context context, ActivityManager am) {
+        final long start = SystemClock.uptimeMillis();
+        mAllocations = 0;
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
@@ -928,15 +1072,211 @@ public class RunningState {
             }
         }
 
-        // Retrieve list of running processes, organizing them into a sparse
-        // array for easy retrieval.
+        // Retrieve list of running processes.
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
+
+        // Nothing the items are built from changed since the last update: keep them, only
+        // their memory use needs to be updated.
+        final long fingerprint = computeFingerprint(services, processes);
+        final boolean skipped = mHaveFingerprint && fingerprint == mFingerprint;
+        mLastUpdateSkipped = skipped;
+        boolean changed = false;
+        if (!skipped) {
+            changed = updateItems(context, services, processes);
+            mFingerprint = fingerprint;
+            mHaveFingerprint = true;
+        }
+
+        // Count number of interesting other (non-active) processes, and
+        // build a list of all processes we will retrieve memory for.
+        mAllProcessItems.clear();
+        mAllProcessItems.addAll(mProcessItems);
+        int numBackgroundProcesses = 0;
+        int numForegroundProcesses = 0;
+        int numServiceProcesses = 0;
+        int NRP = mRunningProcesses.size();
+        for (int i=0; i<NRP; i++) {
+            ProcessItem proc = mRunningProcesses.valueAt(i);
+            if (proc.mCurSeq != mSequence) {
+                // We didn't hit this process as a dependency on one
+                // of our active ones, so add it up if needed.
+                if (proc.mRunningProcessInfo.importance >=
+                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
+                    numBackgroundProcesses++;
+                    mAllProcessItems.add(proc);
+                } else if (proc.mRunningProcessInfo.importance <=
+                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
+                    numForegroundProcesses++;
+                    mAllProcessItems.add(proc);
+                } else {
+                    Log.i("RunningState", "Unknown non-service process: "
+                            + proc.mProcessName + " #" + proc.mPid);
+                }
+            } else {
+                numServiceProcesses++;
+            }
+        }
+        
+        long backgroundProcessMemory = 0;
+        long foregroundProcessMemory = 0;
+        long serviceProcessMemory = 0;
+        ArrayList<MergedItem> newBackgroundItems = null;
+        ArrayList<MergedItem> newUserBackgroundItems = null;
+        boolean diffUsers = false;
+        try {
+            final long[] pss = sampleProcessPss(!skipped);
+            int bgIndex = 0;
+            for (int i=0; i<pss.length; i++) {
+                ProcessItem proc = mAllProcessItems.get(i);
+                changed |= proc.updateSize(context, pss[i], mSequence);
+                if (proc.mCurSeq == mSequence) {
+                    serviceProcessMemory += proc.mSize;
+                } else if (proc.mRunningProcessInfo.importance >=
+                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
+                    backgroundProcessMemory += proc.mSize;
+                    MergedItem mergedItem;
+                    if (newBackgroundItems != null) {
+                        mergedItem = obtainBackgroundItem(proc);
+                        diffUsers |= mergedItem.mUserId != mMyUserId;
+                        newBackgroundItems.add(mergedItem);
+                    } else {
+                        if (bgIndex >= mBackgroundItems.size()
+                                || mBackgroundItems.get(bgIndex).mProcess != proc) {
+                            newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
+                            for (int bgi=0; bgi<bgIndex; bgi++) {
+                                mergedItem = mBackgroundItems.get(bgi);
+                                diffUsers |= mergedItem.mUserId != mMyUserId;
+                                newBackgroundItems.add(mergedItem);
+                            }
+                            mergedItem = obtainBackgroundItem(proc);
+                            diffUsers |= mergedItem.mUserId != mMyUserId;
+                            newBackgroundItems.add(mergedItem);
+                        } else {
+                            mergedItem = mBackgroundItems.get(bgIndex);
+                        }
+                    }
+                    mergedItem.update(context, true);
+                    mergedItem.updateSize(context);
+                    bgIndex++;
+                } else if (proc.mRunningProcessInfo.importance <=
+                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
+                    foregroundProcessMemory += proc.mSize;
+                }
+            }
+        } catch (RemoteException e) {
+        }
+        
+        if (newBackgroundItems == null) {
+            // One or more at the bottom may no longer exist.
+            if (mBackgroundItems.size() > numBackgroundProcesses) {
+                newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
+                for (int bgi=0; bgi<numBackgroundProcesses; bgi++) {
+                    MergedItem mergedItem = mBackgroundItems.get(bgi);
+                    diffUsers |= mergedItem.mUserId != mMyUserId;
+                    newBackgroundItems.add(mergedItem);
+                }
+            }
+        }
+
+        if (newBackgroundItems != null) {
+            // The background items have changed; we need to re-build the
+            // per-user items.
+            if (!diffUsers) {
+                // Easy: there are no other users, we can just use the same array.
+                newUserBackgroundItems = newBackgroundItems;
+            } else {
+                // We now need to re-build the per-user list so that background
+                // items for users are collapsed together.
+                newUserBackgroundItems = new ArrayList<MergedItem>();
+                final int NB = newBackgroundItems.size();
+                for (int i=0; i<NB; i++) {
+                    MergedItem mergedItem = newBackgroundItems.get(i);
+                    if (mergedItem.mUserId != mMyUserId) {
+                        addOtherUserItem(context, newUserBackgroundItems,
+                                mOtherUserBackgroundItems, mergedItem);
+                    } else {
+                        newUserBackgroundItems.add(mergedItem);
+                    }
+                }
+                // And user aggregated merged items need to be
+                // updated now that they have all of their children.
+                final int NU = mOtherUserBackgroundItems.size();
+                for (int i=0; i<NU; i++) {
+                    MergedItem user = mOtherUserBackgroundItems.valueAt(i);
+                    if (user.mCurSeq == mSequence) {
+                        user.update(context, true);
+                        user.updateSize(context);
+                    }
+                }
+            }
+        }
+
+        for (int i=0; i<mMergedItems.size(); i++) {
+            mMergedItems.get(i).updateSize(context);
+        }
+        
+        final boolean dataChanged;
+        synchronized (mLock) {
+            dataChanged = newBackgroundItems != null
+                    || mNumBackgroundProcesses != numBackgroundProcesses
+                    || mNumForegroundProcesses != numForegroundProcesses
+                    || mNumServiceProcesses != numServiceProcesses
+                    || mBackgroundProcessMemory != backgroundProcessMemory
+                    || mForegroundProcessMemory != foregroundProcessMemory
+                    || mServiceProcessMemory != serviceProcessMemory
+                    || !mHaveData;
+            mNumBackgroundProcesses = numBackgroundProcesses;
+            mNumForegroundProcesses = numForegroundProcesses;
+            mNumServiceProcesses = numServiceProcesses;
+            mBackgroundProcessMemory = backgroundProcessMemory;
+            mForegroundProcessMemory = foregroundProcessMemory;
+            mServiceProcessMemory = serviceProcessMemory;
+            if (newBackgroundItems != null) {
+                mBackgroundItems = newBackgroundItems;
+                mUserBackgroundItems = newUserBackgroundItems;
+                if (mWatchingBackgroundItems) {
+                    changed = true;
+                }
+            }
+            if (!mHaveData) {
+                mHaveData = true;
+                mLock.notifyAll();
+            }
+        }
+        
+        final int refresh = changed ? OnRefreshUiListener.REFRESH_STRUCTURE
+                : dataChanged ? OnRefreshUiListener.REFRESH_DATA
+                : OnRefreshUiListener.REFRESH_TIME;
+        recordStats(SystemClock.uptimeMillis() - start, skipped, refresh);
+        return refresh;
+    }
+    
+    /**
+     * Rebuilds the items from the running services and processes.
+     *
+     * @return true if the structure of the items changed.
+     */
+    private boolean updateItems(Context context,
+            List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        final PackageManager pm = context.getPackageManager();
+
+        mSequence++;
+
+        boolean changed = false;
+
+        final int NS = services != null ? services.size() : 0;
+
+        // Organize the running processes into a sparse array for easy retrieval.
         final int NP = processes != null ? processes.size() : 0;
+        for (int i=0; i<mTmpAppProcesses.size(); i++) {
+            mAppProcessInfoPool.add(mTmpAppProcesses.valueAt(i));
+        }
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            mTmpAppProcesses.put(pi.pid, obtainAppProcessInfo(pi));
         }
 
         // Initial iteration through running services to collect per-process
@@ -999,6 +1339,7 @@ public class RunningState {
             ProcessItem proc = procs.get(si.process);
             if (proc == null) {
                 changed = true;
+                mAllocations++;
                 proc = new ProcessItem(context, si.uid, si.process);
                 procs.put(si.process, proc);
             }
@@ -1035,6 +1376,7 @@ public class RunningState {
                 proc = mRunningProcesses.get(pi.pid);
                 if (proc == null) {
                     changed = true;
+                    mAllocations++;
                     proc = new ProcessItem(context, pi.uid, pi.processName);
                     proc.mPid = pi.pid;
                     mRunningProcesses.put(pi.pid, proc);
@@ -1221,6 +1563,7 @@ public class RunningState {
                 if (!haveAllMerged || mergedItem == null
                         || mergedItem.mServices.size() != pi.mServices.size()) {
                     // Whoops, we need to build a new MergedItem!
+                    mAllocations++;
                     mergedItem = new MergedItem(pi.mUserId);
                     for (ServiceItem si : pi.mServices.values()) {
                         mergedItem.mServices.add(si);
@@ -1248,6 +1591,7 @@ public class RunningState {
                 ProcessItem proc = mInterestingProcesses.get(i);
                 if (proc.mClient == null && proc.mServices.size() <= 0) {
                     if (proc.mMergedItem == null) {
+                        mAllocations++;
                         proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                     }
@@ -1278,163 +1622,167 @@ public class RunningState {
             }
         }
         
-        // Count number of interesting other (non-active) processes, and
-        // build a list of all processes we will retrieve memory for.
-        mAllProcessItems.clear();
-        mAllProcessItems.addAll(mProcessItems);
-        int numBackgroundProcesses = 0;
-        int numForegroundProcesses = 0;
-        int numServiceProcesses = 0;
-        NRP = mRunningProcesses.size();
-        for (int i=0; i<NRP; i++) {
-            ProcessItem proc = mRunningProcesses.valueAt(i);
-            if (proc.mCurSeq != mSequence) {
-                // We didn't hit this process as a dependency on one
-                // of our active ones, so add it up if needed.
-                if (proc.mRunningProcessInfo.importance >=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
-                    numBackgroundProcesses++;
-                    mAllProcessItems.add(proc);
-                } else if (proc.mRunningProcessInfo.importance <=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
-                    numForegroundProcesses++;
-                    mAllProcessItems.add(proc);
-                } else {
-                    Log.i("RunningState", "Unknown non-service process: "
-                            + proc.mProcessName + " #" + proc.mPid);
-                }
-            } else {
-                numServiceProcesses++;
+        return changed;
+    }
+
+    /**
+     * Returns the memory use in KB of the processes of mAllProcessItems. Only the processes shown
+     * in the visible rows and the new ones are sampled, the others keep their last sample,
+     * unless the structure changed or they were not sampled for FULL_PSS_SAMPLE_INTERVAL
+     * updates.
+     */
+    private long[] sampleProcessPss(boolean sampleAll) throws RemoteException {
+        final int numProc = mAllProcessItems.size();
+        final long[] pss = new long[numProc];
+        synchronized (mLock) {
+            if (++mUpdatesSinceFullPssSample >= FULL_PSS_SAMPLE_INTERVAL
+                    || mVisibleProcesses.isEmpty()) {
+                sampleAll = true;
             }
-        }
-        
-        long backgroundProcessMemory = 0;
-        long foregroundProcessMemory = 0;
-        long serviceProcessMemory = 0;
-        ArrayList<MergedItem> newBackgroundItems = null;
-        ArrayList<MergedItem> newUserBackgroundItems = null;
-        boolean diffUsers = false;
-        try {
-            final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            int numSampled = 0;
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
-            }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
-            int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
-                if (proc.mCurSeq == mSequence) {
-                    serviceProcessMemory += proc.mSize;
-                } else if (proc.mRunningProcessInfo.importance >=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
-                    backgroundProcessMemory += proc.mSize;
-                    MergedItem mergedItem;
-                    if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
-                        diffUsers |= mergedItem.mUserId != mMyUserId;
-                        newBackgroundItems.add(mergedItem);
-                    } else {
-                        if (bgIndex >= mBackgroundItems.size()
-                                || mBackgroundItems.get(bgIndex).mProcess != proc) {
-                            newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
-                            for (int bgi=0; bgi<bgIndex; bgi++) {
-                                mergedItem = mBackgroundItems.get(bgi);
-                                diffUsers |= mergedItem.mUserId != mMyUserId;
-                                newBackgroundItems.add(mergedItem);
-                            }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
-                            diffUsers |= mergedItem.mUserId != mMyUserId;
-                            newBackgroundItems.add(mergedItem);
-                        } else {
-                            mergedItem = mBackgroundItems.get(bgIndex);
-                        }
-                    }
-                    mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
-                    bgIndex++;
-                } else if (proc.mRunningProcessInfo.importance <=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
-                    foregroundProcessMemory += proc.mSize;
+                if (sampleAll || proc.mSize == 0 || mVisibleProcesses.contains(proc)) {
+                    numSampled++;
+                    pss[i] = -1;
+                } else {
+                    pss[i] = proc.mSize / 1024;
                 }
             }
-        } catch (RemoteException e) {
+            if (sampleAll) {
+                mUpdatesSinceFullPssSample = 0;
+            }
+            synchronized (sStats) {
+                sStats.lastPssSampled = numSampled;
+                sStats.lastPssTotal = numProc;
+            }
+            if (numSampled == 0) {
+                return pss;
+            }
         }
-        
-        if (newBackgroundItems == null) {
-            // One or more at the bottom may no longer exist.
-            if (mBackgroundItems.size() > numBackgroundProcesses) {
-                newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
-                for (int bgi=0; bgi<numBackgroundProcesses; bgi++) {
-                    MergedItem mergedItem = mBackgroundItems.get(bgi);
-                    diffUsers |= mergedItem.mUserId != mMyUserId;
-                    newBackgroundItems.add(mergedItem);
-                }
+        int[] pids = new int[numProc];
+        int numSampled = 0;
+        for (int i=0; i<numProc; i++) {
+            if (pss[i] < 0) {
+                pids[numSampled++] = mAllProcessItems.get(i).mPid;
             }
         }
-
-        if (newBackgroundItems != null) {
-            // The background items have changed; we need to re-build the
-            // per-user items.
-            if (!diffUsers) {
-                // Easy: there are no other users, we can just use the same array.
-                newUserBackgroundItems = newBackgroundItems;
-            } else {
-                // We now need to re-build the per-user list so that background
-                // items for users are collapsed together.
-                newUserBackgroundItems = new ArrayList<MergedItem>();
-                final int NB = newBackgroundItems.size();
-                for (int i=0; i<NB; i++) {
-                    MergedItem mergedItem = newBackgroundItems.get(i);
-                    if (mergedItem.mUserId != mMyUserId) {
-                        addOtherUserItem(context, newUserBackgroundItems,
-                                mOtherUserBackgroundItems, mergedItem);
-                    } else {
-                        newUserBackgroundItems.add(mergedItem);
-                    }
-                }
-                // And user aggregated merged items need to be
-                // updated now that they have all of their children.
-                final int NU = mOtherUserBackgroundItems.size();
-                for (int i=0; i<NU; i++) {
-                    MergedItem user = mOtherUserBackgroundItems.valueAt(i);
-                    if (user.mCurSeq == mSequence) {
-                        user.update(context, true);
-                        user.updateSize(context);
-                    }
-                }
+        if (numSampled < numProc) {
+            pids = Arrays.copyOf(pids, numSampled);
+        }
+        final long[] sampled = ActivityManagerNative.getDefault().getProcessPss(pids);
+        numSampled = 0;
+        for (int i=0; i<numProc; i++) {
+            if (pss[i] < 0) {
+                pss[i] = sampled[numSampled++];
             }
         }
+        return pss;
+    }
 
-        for (int i=0; i<mMergedItems.size(); i++) {
-            mMergedItems.get(i).updateSize(context);
+    private AppProcessInfo obtainAppProcessInfo(ActivityManager.RunningAppProcessInfo pi) {
+        final int N = mAppProcessInfoPool.size();
+        if (N > 0) {
+            final AppProcessInfo ainfo = mAppProcessInfoPool.remove(N - 1);
+            ainfo.set(pi);
+            return ainfo;
         }
-        
-        synchronized (mLock) {
-            mNumBackgroundProcesses = numBackgroundProcesses;
-            mNumForegroundProcesses = numForegroundProcesses;
-            mNumServiceProcesses = numServiceProcesses;
-            mBackgroundProcessMemory = backgroundProcessMemory;
-            mForegroundProcessMemory = foregroundProcessMemory;
-            mServiceProcessMemory = serviceProcessMemory;
-            if (newBackgroundItems != null) {
-                mBackgroundItems = newBackgroundItems;
-                mUserBackgroundItems = newUserBackgroundItems;
-                if (mWatchingBackgroundItems) {
-                    changed = true;
-                }
+        mAllocations++;
+        return new AppProcessInfo(pi);
+    }
+
+    /**
+     * Returns the merged item showing a background process, reusing the one of the process if
+     * it was already shown as a background item.
+     */
+    private MergedItem obtainBackgroundItem(ProcessItem proc) {
+        if (proc.mMergedItem == null || proc.mMergedItem.mProcess != proc
+                || !proc.mMergedItem.mBackground || proc.mMergedItem.mServices.size() > 0) {
+            mAllocations++;
+            proc.mMergedItem = new MergedItem(proc.mUserId);
+            proc.mMergedItem.mProcess = proc;
+        }
+        return proc.mMergedItem;
+    }
+
+    /**
+     * Returns a hash of everything {@link #updateItems} reads from the running services and
+     * processes, so that rebuilding the items can be skipped when it did not change.
+     */
+    private static long computeFingerprint(List<ActivityManager.RunningServiceInfo> services,
+            List<ActivityManager.RunningAppProcessInfo> processes) {
+        long hash = 17;
+        final int NS = services != null ? services.size() : 0;
+        for (int i=0; i<NS; i++) {
+            ActivityManager.RunningServiceInfo si = services.get(i);
+            hash = 31 * hash + si.service.hashCode();
+            hash = 31 * hash + si.uid;
+            hash = 31 * hash + si.pid;
+            hash = 31 * hash + Objects.hashCode(si.process);
+            hash = 31 * hash + (si.started ? 1 : 0) + (si.foreground ? 2 : 0);
+            hash = 31 * hash + si.flags;
+            hash = 31 * hash + si.restarting;
+            hash = 31 * hash + si.activeSince;
+            hash = 31 * hash + si.clientLabel;
+            hash = 31 * hash + Objects.hashCode(si.clientPackage);
+        }
+        hash = 31 * hash + NS;
+        final int NP = processes != null ? processes.size() : 0;
+        for (int i=0; i<NP; i++) {
+            ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            hash = 31 * hash + pi.pid;
+            hash = 31 * hash + pi.uid;
+            hash = 31 * hash + Objects.hashCode(pi.processName);
+            hash = 31 * hash + pi.importance;
+            hash = 31 * hash + pi.importanceReasonCode;
+            hash = 31 * hash + pi.importanceReasonPid;
+            hash = 31 * hash + pi.flags;
+            hash = 31 * hash + pi.lru;
+        }
+        hash = 31 * hash + NP;
+        return hash;
+    }
+
+    private void recordStats(long durationMs, boolean skipped, int refresh) {
+        synchronized (sStats) {
+            sStats.updates++;
+            if (skipped) {
+                sStats.skipped++;
             }
-            if (!mHaveData) {
-                mHaveData = true;
-                mLock.notifyAll();
+            if (refresh != OnRefreshUiListener.REFRESH_TIME) {
+                sStats.refreshes++;
             }
+            sStats.lastMs = durationMs;
+            sStats.maxMs = Math.max(sStats.maxMs, durationMs);
+            sStats.totalMs += durationMs;
+            sStats.lastAllocations = mAllocations;
+            sStats.totalAllocations += mAllocations;
         }
-        
-        return changed;
+        if (DEBUG_STATS) {
+            Log.d(TAG, "Update " + (skipped ? "skipped rebuild" : "rebuilt items") + " in "
+                    + durationMs + "ms, " + mAllocations + " allocations");
+        }
+    }
+
+    /**
+     * Returns the stats of the updates of the running state.
+     */
+    public static JSONObject dumpStats() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        synchronized (sStats) {
+            obj.put("updates", sStats.updates);
+            obj.put("skipped", sStats.skipped);
+            obj.put("refreshes", sStats.refreshes);
+            obj.put("lastMs", sStats.lastMs);
+            obj.put("maxMs", sStats.maxMs);
+            obj.put("avgMs", sStats.updates > 0 ? sStats.totalMs / sStats.updates : 0);
+            obj.put("lastAllocations", sStats.lastAllocations);
+            obj.put("totalAllocations", sStats.totalAllocations);
+            obj.put("lastPssSampled", sStats.lastPssSampled);
+            obj.put("lastPssTotal", sStats.lastPssTotal);
+            obj.put("lastDelayMs", sStats.lastDelayMs);
+        }
+        return obj;
     }
     
     void setWatchingBackgroundItems(boolean watching) {
@@ -47,6 +47,7 @@ import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.dashboard.conditional.Condition;
 import com.android.settings.dashboard.conditional.ConditionAdapterUtils;
+import com.android.settings.utils.IconCache;
 import com.android.settingslib.SuggestionParser;
 import com.android.settingslib.drawer.DashboardCategory;
 import com.android.settingslib.drawer.Tile;
@@ -72,12 +73,17 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     private static final int DEFAULT_SUGGESTION_COUNT = 2;
 
+    // Payload of a tile whose summary changed
+    private static final Object PAYLOAD_SUMMARY = new Object();
+
     private static final String LTE_4G_ACTIVITY = "Lte4GEnableActivity";
     private static final String SYSTEM_UPDATE_INTENT = "android.settings.SYSTEM_UPDATE_SETTINGS";
     private final List<Object> mItems = new ArrayList<>();
     private final List<Integer> mTypes = new ArrayList<>();
     private final List<Integer> mIds = new ArrayList<>();
+    private final ArrayMap<Tile, Integer> mTilePositions = new ArrayMap<>();
     private final IconCache mCache;
+    private final int mIconSize;
 
     private final Context mContext;
     private Lte4GEnabler mLte4GEnabler;
@@ -87,6 +93,8 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     private List<DashboardCategory> mCategories;
     private List<Condition> mConditions;
     private List<Tile> mSuggestions;
+    // Summaries of the last snapshot, shown until the providers deliver theirs
+    private ArrayMap<ComponentName, String> mRestoredSummaries;
 
     private boolean mIsShowingAll;
     // Used for counting items;
@@ -97,10 +105,15 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     private Condition mExpandedCondition = null;
     private SuggestionParser mSuggestionParser;
 
+    private int mFullBindCount;
+    private int mSummaryBindCount;
+
     public DashboardAdapter(Context context, SuggestionParser parser, Bundle savedInstanceState,
                 List<Condition> conditions) {
         mContext = context;
-        mCache = new IconCache(context);
+        mCache = IconCache.getInstance(context);
+        mIconSize = context.getResources().getDimensionPixelSize(
+                R.dimen.dashboard_tile_image_size);
         mLte4GEnabler = new Lte4GEnabler(mContext, new Switch(mContext));
         mSuggestionParser = parser;
         mConditions = conditions;
@@ -214,8 +227,34 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         return mIsShowingAll;
     }
 
+    /**
+     * Sets the summaries shown for the tiles that do not have one yet. They are only displayed:
+     * the tiles are shared with the rest of Settings and keep their own summaries.
+     */
+    public void setRestoredSummaries(ArrayMap<ComponentName, String> summaries) {
+        mRestoredSummaries = summaries;
+    }
+
+    public boolean hasRestoredSummary(ComponentName component) {
+        return mRestoredSummaries != null && mRestoredSummaries.containsKey(component);
+    }
+
+    /**
+     * Rebinds the summary of the tile, if it is displayed.
+     */
     public void notifyChanged(Tile tile) {
-        notifyDataSetChanged();
+        if (mRestoredSummaries != null && tile.intent != null) {
+            // The provider delivered the summary, even if it is none.
+            mRestoredSummaries.remove(tile.intent.getComponent());
+        }
+        final Integer position = mTilePositions.get(tile);
+        if (position != null) {
+            notifyItemChanged(position, PAYLOAD_SUMMARY);
+        }
+    }
+
+    public String getBindStats() {
+        return "full binds=" + mFullBindCount + " summary binds=" + mSummaryBindCount;
     }
 
     public void setShowingAll(boolean showingAll) {
@@ -270,11 +309,15 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         mItems.clear();
         mTypes.clear();
         mIds.clear();
+        mTilePositions.clear();
         mId = 0;
     }
 
     private void countItem(Object object, int type, boolean add, int nameSpace) {
         if (add) {
+            if (object instanceof Tile) {
+                mTilePositions.put((Tile) object, mItems.size());
+            }
             mItems.add(object);
             mTypes.add(type);
             // TODO: Counting namespaces for handling of suggestions/conds appearing/disappearing.
@@ -297,8 +340,31 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                 viewType, parent, false), (viewType == R.layout.dashboard_tile_switch));
     }
 
+    @Override
+    public void onBindViewHolder(DashboardItemHolder holder, int position, List<Object> payloads) {
+        final int type = mTypes.get(position);
+        if ((type == R.layout.dashboard_tile || type == R.layout.dashboard_tile_switch)
+                && !payloads.isEmpty() && isSummaryPayload(payloads)) {
+            mSummaryBindCount++;
+            onBindSummary(holder, (Tile) mItems.get(position));
+            return;
+        }
+        super.onBindViewHolder(holder, position, payloads);
+    }
+
+    private static boolean isSummaryPayload(List<Object> payloads) {
+        final int size = payloads.size();
+        for (int i = 0; i < size; i++) {
+            if (payloads.get(i) != PAYLOAD_SUMMARY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public void onBindViewHolder(DashboardItemHolder holder, int position) {
+        mFullBindCount++;
         switch (mTypes.get(position)) {
             case R.layout.dashboard_category:
                 onBindCategory(holder, (DashboardCategory) mItems.get(position));
@@ -437,10 +503,25 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     }
 
     private void onBindTile(DashboardItemHolder holder, Tile tile) {
-        holder.icon.setImageDrawable(mCache.getIcon(tile.icon));
+        final Icon icon = tile.icon;
+        holder.icon.setImageDrawable(mCache.getIcon(icon, mIconSize,
+                new IconCache.IconLoader() {
+                    @Override
+                    public Drawable loadIcon() {
+                        return icon.loadDrawable(mContext);
+                    }
+                }));
         holder.title.setText(tile.title);
-        if (!TextUtils.isEmpty(tile.summary)) {
-            holder.summary.setText(tile.summary);
+        onBindSummary(holder, tile);
+    }
+
+    private void onBindSummary(DashboardItemHolder holder, Tile tile) {
+        CharSequence summary = tile.summary;
+        if (summary == null && mRestoredSummaries != null && tile.intent != null) {
+            summary = mRestoredSummaries.get(tile.intent.getComponent());
+        }
+        if (!TextUtils.isEmpty(summary)) {
+            holder.summary.setText(summary);
             holder.summary.setVisibility(View.VISIBLE);
         } else {
             holder.summary.setVisibility(View.GONE);
@@ -555,25 +636,6 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         outState.putInt(STATE_SUGGESTION_MODE, mSuggestionMode);
     }
 
-    private static class IconCache {
-
-        private final Context mContext;
-        private final ArrayMap<Icon, Drawable> mMap = new ArrayMap<>();
-
-        public IconCache(Context context) {
-            mContext = context;
-        }
-
-        public Drawable getIcon(Icon icon) {
-            Drawable drawable = mMap.get(icon);
-            if (drawable == null) {
-                drawable = icon.loadDrawable(mContext);
-                mMap.put(icon, drawable);
-            }
-            return drawable;
-        }
-    }
-
     public static class DashboardItemHolder extends RecyclerView.ViewHolder {
         public final ImageView icon;
         public final TextView title;
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Parcel;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.settingslib.drawer.DashboardCategory;
+import com.android.settingslib.drawer.Tile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The last rendered state of the dashboard, so that it can be displayed right away on the next
+ * cold start while the live state is loaded.
+ *
+ * The snapshot holds the tile summaries and the suggestions. It is only valid for the build,
+ * Settings version and locale that wrote it, since tiles are parceled. Conditions are not part
+ * of it, {@link com.android.settings.dashboard.conditional.ConditionManager} persists them.
+ *
+ * Restored summaries are only displayed by the {@link DashboardAdapter}, never set on the
+ * tiles, so that a snapshot only ever holds summaries the providers delivered.
+ */
+public class DashboardSnapshot {
+
+    private static final String TAG = "DashboardSnapshot";
+
+    private static final String FILE_NAME = "dashboard_snapshot";
+    private static final int VERSION = 1;
+
+    // Build and Settings version part of the key of the snapshots, computed once per process
+    private static String sVersionKey;
+
+    public final ArrayMap<ComponentName, String> summaries;
+    public final List<Tile> suggestions;
+
+    private DashboardSnapshot(ArrayMap<ComponentName, String> summaries, List<Tile> suggestions) {
+        this.summaries = summaries;
+        this.suggestions = suggestions;
+    }
+
+    /**
+     * Reads the snapshot, or returns null if there is no usable one.
+     */
+    public static DashboardSnapshot read(Context context) {
+        final byte[] data;
+        try {
+            data = getFile(context).readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading " + FILE_NAME, e);
+            return null;
+        }
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != VERSION
+                    || !TextUtils.equals(parcel.readString(), getBuildKey(context))) {
+                if (DashboardSummary.DEBUG) Log.d(TAG, "Ignoring snapshot of another build");
+                return null;
+            }
+            final int count = parcel.readInt();
+            final ArrayMap<ComponentName, String> summaries = new ArrayMap<>(count);
+            for (int i = 0; i < count; i++) {
+                final ComponentName component = ComponentName.readFromParcel(parcel);
+                final String summary = parcel.readString();
+                if (component != null) {
+                    summaries.put(component, summary);
+                }
+            }
+            final List<Tile> suggestions = parcel.createTypedArrayList(Tile.CREATOR);
+            return new DashboardSnapshot(summaries, suggestions);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Problem reading " + FILE_NAME, e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Writes the summaries of the tiles and the suggestions in the background. Nothing is
+     * written if they cannot be parceled.
+     *
+     * @param context the application context, kept until the write is done.
+     */
+    public static void write(final Context context, List<DashboardCategory> categories,
+            List<Tile> suggestions) {
+        final Parcel parcel = Parcel.obtain();
+        final byte[] data;
+        try {
+            parcel.writeInt(VERSION);
+            parcel.writeString(getBuildKey(context));
+            final ArrayList<Tile> tiles = new ArrayList<>();
+            for (int i = 0; categories != null && i < categories.size(); i++) {
+                final List<Tile> categoryTiles = categories.get(i).tiles;
+                for (int j = 0; j < categoryTiles.size(); j++) {
+                    final Tile tile = categoryTiles.get(j);
+                    if (tile.summary != null && tile.intent != null
+                            && tile.intent.getComponent() != null) {
+                        tiles.add(tile);
+                    }
+                }
+            }
+            parcel.writeInt(tiles.size());
+            for (int i = 0; i < tiles.size(); i++) {
+                ComponentName.writeToParcel(tiles.get(i).intent.getComponent(), parcel);
+                parcel.writeString(tiles.get(i).summary.toString());
+            }
+            parcel.writeTypedList(suggestions);
+            data = parcel.marshall();
+        } catch (RuntimeException e) {
+            // A tile with extras that cannot be marshalled, such as a binder
+            Log.w(TAG, "Problem writing " + FILE_NAME, e);
+            return;
+        } finally {
+            parcel.recycle();
+        }
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final AtomicFile file = getFile(context);
+                FileOutputStream out = null;
+                try {
+                    out = file.startWrite();
+                    out.write(data);
+                    file.finishWrite(out);
+                } catch (IOException e) {
+                    Log.w(TAG, "Problem writing " + FILE_NAME, e);
+                    if (out != null) {
+                        file.failWrite(out);
+                    }
+                }
+            }
+        });
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Returns the key of the build, Settings version and locale. The version comes from the
+     * application info of the process, read on the main thread at cold start without a call to
+     * the package manager.
+     */
+    private static synchronized String getBuildKey(Context context) {
+        if (sVersionKey == null) {
+            sVersionKey = Build.FINGERPRINT + "/" + context.getApplicationInfo().versionCode;
+        }
+        return sVersionKey + "/" + Locale.getDefault().toString();
+    }
+}
@@ -23,11 +23,13 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v7.widget.LinearLayoutManager;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.logging.MetricsProto.MetricsEvent;
@@ -71,6 +73,8 @@ public class DashboardSummary extends InstrumentedFragment
     private static final String EXTRA_SUGGESTION_SHOWN_LOGGED = "suggestions_shown_logged";
     private static final String EXTRA_SUGGESTION_HIDDEN_LOGGED = "suggestions_hidden_logged";
 
+    private static final String HISTOGRAM_FIRST_FRAME = "settings_dashboard_first_frame_ms";
+
     private FocusRecyclerView mDashboard;
     private DashboardAdapter mAdapter;
     private SummaryLoader mSummaryLoader;
@@ -80,6 +84,8 @@ public class DashboardSummary extends InstrumentedFragment
     private SuggestionsChecks mSuggestionsChecks;
     private ArrayList<String> mSuggestionsShownLogged;
     private ArrayList<String> mSuggestionsHiddenLogged;
+    private DashboardSnapshot mSnapshot;
+    private long mCreateTime;
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -101,12 +107,19 @@ public class DashboardSummary extends InstrumentedFragment
     @Override
     public void onCreate(Bundle savedInstanceState) {
         long startTime = System.currentTimeMillis();
+        mCreateTime = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
 
+        Context context = getContext();
         List<DashboardCategory> categories =
                 ((SettingsActivity) getActivity()).getDashboardCategories();
+        if (savedInstanceState == null) {
+            mSnapshot = DashboardSnapshot.read(context);
+            if (DEBUG && mSnapshot != null) {
+                Log.d(TAG, "Restored " + mSnapshot.summaries.size() + " summaries from snapshot");
+            }
+        }
         mSummaryLoader = new SummaryLoader(getActivity(), categories);
-        Context context = getContext();
         mConditionManager = ConditionManager.get(context, false);
         mSuggestionParser = new SuggestionParser(context,
                 context.getSharedPreferences(SUGGESTIONS, 0), R.xml.suggestion_ordering);
@@ -158,6 +171,13 @@ public class DashboardSummary extends InstrumentedFragment
                 + " ms");
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        // Condition changes made from the dashboard start being written without the delay.
+        mConditionManager.flushState();
+    }
+
     @Override
     public void onStop() {
         super.onStop();
@@ -165,6 +185,9 @@ public class DashboardSummary extends InstrumentedFragment
         getActivity().unregisterReceiver(mReceiver);
         ((SettingsDrawerActivity) getActivity()).remCategoryListener(this);
         mSummaryLoader.setListening(false);
+        DashboardSnapshot.write(getContext().getApplicationContext(),
+                ((SettingsActivity) getActivity()).getDashboardCategories(),
+                mAdapter.getSuggestions());
         for (Condition c : mConditionManager.getConditions()) {
             if (c.shouldShow()) {
                 MetricsLogger.hidden(getContext(), c.getMetricsConstant());
@@ -232,14 +255,48 @@ public class DashboardSummary extends InstrumentedFragment
         mDashboard.addItemDecoration(new DashboardDecorator(getContext()));
         mAdapter = new DashboardAdapter(getContext(), mSuggestionParser, bundle,
                 mConditionManager.getConditions());
+        if (mSnapshot != null) {
+            // Show the last known summaries until the providers deliver theirs.
+            mAdapter.setRestoredSummaries(mSnapshot.summaries);
+        }
         mDashboard.setAdapter(mAdapter);
         mSummaryLoader.setAdapter(mAdapter);
+        if (mSnapshot != null && mSnapshot.suggestions != null) {
+            // Reconciled by the SuggestionLoader started in rebuildUI().
+            mAdapter.setCategoriesAndSuggestions(
+                    ((SettingsActivity) getActivity()).getDashboardCategories(),
+                    mSnapshot.suggestions);
+        }
         ConditionAdapterUtils.addDismiss(mDashboard);
+        if (bundle == null) {
+            trackFirstMeaningfulFrame();
+        }
         if (DEBUG_TIMING) Log.d(TAG, "onViewCreated took "
                 + (System.currentTimeMillis() - startTime) + " ms");
         rebuildUI();
     }
 
+    /**
+     * Reports the time from the creation of the fragment to the first frame showing tiles.
+     */
+    private void trackFirstMeaningfulFrame() {
+        final ViewTreeObserver observer = mDashboard.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (mAdapter.getItemCount() == 0) {
+                    return true;
+                }
+                mDashboard.getViewTreeObserver().removeOnPreDrawListener(this);
+                final long elapsed = SystemClock.uptimeMillis() - mCreateTime;
+                MetricsLogger.histogram(getContext(), HISTOGRAM_FIRST_FRAME, (int) elapsed);
+                if (DEBUG_TIMING) Log.d(TAG, "First meaningful frame after " + elapsed
+                        + " ms, snapshot " + (mSnapshot != null));
+                return true;
+            }
+        });
+    }
+
     private void rebuildUI() {
         if (!isAdded()) {
             Log.w(TAG, "Cannot build the DashboardSummary UI yet as the Fragment is not added");
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.settings.search.Index;
+import com.android.settings.search.SearchResultsCache;
+
+/**
+ * Schedules search queries typed in the search box.
+ *
+ * Keystrokes arriving within the coalescing window are merged into a single query, and a query
+ * still running when a newer one is scheduled is cancelled through a {@link CancellationSignal}
+ * so that it stops scanning the index instead of running to completion.
+ */
+public class SearchQueryScheduler {
+
+    private static final String TAG = "SearchQueryScheduler";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    public static final long DEFAULT_COALESCE_WINDOW_MS = 150;
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the results of the latest scheduled query. The callback
+         * owns the cursor.
+         */
+        void onQueryResults(String query, Cursor cursor);
+    }
+
+    /**
+     * Latency breakdown of one query, in milliseconds.
+     */
+    public static class QueryStats {
+        public String query;
+        // Time between the last keystroke and the query starting on the background thread
+        public long queueWaitMs;
+        // Time spent running the query and reading its rows
+        public long queryMs;
+        // Time spent delivering the rows to the UI
+        public long bindMs;
+        public int resultCount;
+
+        @Override
+        public String toString() {
+            return "query=\"" + query + "\" queueWait=" + queueWaitMs + "ms query=" + queryMs
+                    + "ms bind=" + bindMs + "ms results=" + resultCount;
+        }
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final long mCoalesceWindowMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private String mPendingQuery;
+    private long mScheduledTime;
+    private QueryTask mRunningTask;
+    private QueryStats mLastStats;
+
+    private final Runnable mStartQuery = new Runnable() {
+        @Override
+        public void run() {
+            startQuery();
+        }
+    };
+
+    public SearchQueryScheduler(Context context, Callback callback) {
+        this(context, callback, DEFAULT_COALESCE_WINDOW_MS);
+    }
+
+    public SearchQueryScheduler(Context context, Callback callback, long coalesceWindowMs) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+        mCoalesceWindowMs = coalesceWindowMs;
+    }
+
+    /**
+     * Schedules a query after the coalescing window, replacing any pending or running query.
+     */
+    public void schedule(String query) {
+        schedule(query, mCoalesceWindowMs);
+    }
+
+    /**
+     * Runs a query right away, replacing any pending or running query.
+     */
+    public void scheduleNow(String query) {
+        schedule(query, 0);
+    }
+
+    /**
+     * Drops the pending query and cancels the running one, if any.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mStartQuery);
+        mPendingQuery = null;
+        cancelRunningTask();
+    }
+
+    /**
+     * Returns the latency breakdown of the last query delivered, or null.
+     */
+    public QueryStats getLastQueryStats() {
+        return mLastStats;
+    }
+
+    private void schedule(String query, long delayMs) {
+        mHandler.removeCallbacks(mStartQuery);
+        cancelRunningTask();
+        mPendingQuery = query;
+        mScheduledTime = SystemClock.elapsedRealtime();
+        if (delayMs > 0) {
+            mHandler.postDelayed(mStartQuery, delayMs);
+        } else {
+            startQuery();
+        }
+    }
+
+    private void startQuery() {
+        if (mPendingQuery == null) {
+            return;
+        }
+        mRunningTask = new QueryTask(mPendingQuery, mScheduledTime);
+        mPendingQuery = null;
+        mRunningTask.execute();
+    }
+
+    private void cancelRunningTask() {
+        if (mRunningTask != null) {
+            mRunningTask.mCancellationSignal.cancel();
+            mRunningTask.cancel(false);
+            mRunningTask = null;
+        }
+    }
+
+    private class QueryTask extends AsyncTask<Void, Void, Cursor> {
+        private final String mQuery;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final QueryStats mStats = new QueryStats();
+        private final long mScheduledTime;
+
+        public QueryTask(String query, long scheduledTime) {
+            mQuery = query;
+            mScheduledTime = scheduledTime;
+            mStats.query = query;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            final long start = SystemClock.elapsedRealtime();
+            mStats.queueWaitMs = start - mScheduledTime;
+            try {
+                final Cursor cursor = SearchResultsCache.getInstance().search(
+                        Index.getInstance(mContext), mQuery, mCancellationSignal);
+                mStats.resultCount = cursor.getCount();
+                mStats.queryMs = SystemClock.elapsedRealtime() - start;
+                return cursor;
+            } catch (OperationCanceledException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            if (mRunningTask != this || cursor == null) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            mRunningTask = null;
+            final long start = SystemClock.elapsedRealtime();
+            mCallback.onQueryResults(mQuery, cursor);
+            mStats.bindMs = SystemClock.elapsedRealtime() - start;
+            mLastStats = mStats;
+            if (DEBUG) Log.d(TAG, mStats.toString());
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -44,6 +44,7 @@ import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 import com.android.settings.search.Index;
+import com.android.settings.search.SearchResultsCache;
 
 import java.util.HashMap;
 
@@ -60,7 +61,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private ListView mResultsListView;
     private SearchResultsAdapter mResultsAdapter;
-    private UpdateSearchResultsTask mUpdateSearchResultsTask;
+    private SearchQueryScheduler mSearchQueryScheduler;
 
     private ListView mSuggestionsListView;
     private SuggestionsAdapter mSuggestionsAdapter;
@@ -73,27 +74,16 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private boolean mShowResults;
 
-    /**
-     * A basic AsyncTask for updating the query results cursor
-     */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private final SearchQueryScheduler.Callback mSearchResultsCallback =
+            new SearchQueryScheduler.Callback() {
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
-        }
-
-        @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                MetricsLogger.action(getContext(), MetricsEvent.ACTION_SEARCH_RESULTS,
-                        cursor.getCount());
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
-            }
+        public void onQueryResults(String query, Cursor cursor) {
+            MetricsLogger.action(getContext(), MetricsEvent.ACTION_SEARCH_RESULTS,
+                    cursor.getCount());
+            setResultsCursor(cursor);
+            setResultsVisibility(cursor.getCount() > 0);
         }
-    }
+    };
 
     /**
      * A basic AsyncTask for updating the suggestions cursor
@@ -120,6 +110,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         super.onCreate(savedInstanceState);
 
         mResultsAdapter = new SearchResultsAdapter(getActivity());
+        mSearchQueryScheduler = new SearchQueryScheduler(getActivity(), mSearchResultsCallback);
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
 
         if (savedInstanceState != null) {
@@ -146,7 +137,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
     public void onDestroy() {
         mResultsListView = null;
         mResultsAdapter = null;
-        mUpdateSearchResultsTask = null;
+        mSearchQueryScheduler.cancel();
 
         mSuggestionsListView = null;
         mSuggestionsAdapter = null;
@@ -287,7 +278,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         mQuery = getFilteredQueryString(query);
         mShowResults = true;
         setSuggestionsVisibility(false);
-        updateSearchResults();
+        updateSearchResults(true /* immediate */);
         saveQueryToDatabase();
 
         return false;
@@ -305,7 +296,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            updateSearchResults(false /* immediate */);
         }
 
         return true;
@@ -336,10 +327,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearResults() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
+        mSearchQueryScheduler.cancel();
         setResultsCursor(null);
     }
 
@@ -369,10 +357,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearAllTasks() {
-        if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
-            mUpdateSearchResultsTask = null;
-        }
+        mSearchQueryScheduler.cancel();
         if (mUpdateSuggestionsTask != null) {
             mUpdateSuggestionsTask.cancel(false);
             mUpdateSuggestionsTask = null;
@@ -389,14 +374,15 @@ public class SearchResultsSummary extends InstrumentedFragment {
         }
     }
 
-    private void updateSearchResults() {
+    private void updateSearchResults(boolean immediate) {
         clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             setResultsVisibility(false);
             setResultsCursor(null);
+        } else if (immediate) {
+            mSearchQueryScheduler.scheduleNow(mQuery);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mSearchQueryScheduler.schedule(mQuery);
         }
     }
 
@@ -21,22 +21,28 @@ import android.content.ComponentName;
 import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.view.Choreographer;
 
 import com.android.settings.SettingsActivity;
+import com.android.settings.utils.BackgroundExecutors;
 import com.android.settingslib.drawer.DashboardCategory;
 import com.android.settingslib.drawer.SettingsDrawerActivity;
 import com.android.settingslib.drawer.Tile;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SummaryLoader {
     private static final boolean DEBUG = DashboardSummary.DEBUG;
@@ -44,73 +50,214 @@ public class SummaryLoader {
 
     public static final String SUMMARY_PROVIDER_FACTORY = "SUMMARY_PROVIDER_FACTORY";
 
+    // At least two threads so that one slow provider does not hold the others back
+    private static final int POOL_SIZE =
+            Math.max(2, Math.min(BackgroundExecutors.CPU_COUNT, 4));
+
+    // Provider calls taking longer than this are reported as over budget
+    private static final long PROVIDER_TIME_BUDGET_MS = 100;
+
+    private static ThreadPoolExecutor sExecutor;
+    private static final AtomicLong sTaskSequence = new AtomicLong();
+
+    // Latency of the providers by class name, across all the loaders, guarded by itself
+    private static final ArrayMap<String, ProviderStats> sStats = new ArrayMap<>();
+
     private final Activity mActivity;
-    private final ArrayMap<SummaryProvider, ComponentName> mSummaryMap = new ArrayMap<>();
-    private final List<Tile> mTiles = new ArrayList<>();
+    // Guarded by itself
+    private final ArrayMap<SummaryProvider, ProviderState> mProviders = new ArrayMap<>();
 
-    private final Worker mWorker;
     private final Handler mHandler;
-    private final HandlerThread mWorkerThread;
 
     private DashboardAdapter mAdapter;
     private boolean mListening;
-    private boolean mWorkerListening;
+    // Whether the providers should be listening, applied by the provider tasks
+    private volatile boolean mWorkerListening;
+    private volatile boolean mReleased;
     private ArraySet<BroadcastReceiver> mReceivers = new ArraySet<>();
 
+    // Summaries set since the last frame, guarded by itself
+    private final ArrayMap<ComponentName, CharSequence> mPendingSummaries = new ArrayMap<>();
+    private boolean mFrameScheduled;
+
+    // Tiles of mIndexedCategories by component, only accessed from the main thread
+    private final ArrayMap<ComponentName, Tile> mTileIndex = new ArrayMap<>();
+    private List<DashboardCategory> mIndexedCategories;
+
+    // Stats of the summary updates, only accessed from the main thread
+    private int mSummaryCount;
+    private int mSummaryChangedCount;
+    private int mFrameCount;
+    private long mFrameTimeMs;
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mApplySummaries);
+        }
+    };
+
+    private final Choreographer.FrameCallback mApplySummaries = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            applyPendingSummaries();
+        }
+    };
+
     public SummaryLoader(Activity activity, List<DashboardCategory> categories) {
         mHandler = new Handler();
-        mWorkerThread = new HandlerThread("SummaryLoader", Process.THREAD_PRIORITY_BACKGROUND);
-        mWorkerThread.start();
-        mWorker = new Worker(mWorkerThread.getLooper());
         mActivity = activity;
+        // Tiles are prioritized in dashboard order, so the ones on screen get their
+        // summary first.
+        int priority = 0;
         for (int i = 0; i < categories.size(); i++) {
             List<Tile> tiles = categories.get(i).tiles;
             for (int j = 0; j < tiles.size(); j++) {
-                Tile tile = tiles.get(j);
-                mWorker.obtainMessage(Worker.MSG_GET_PROVIDER, tile).sendToTarget();
+                final Tile tile = tiles.get(j);
+                getExecutor().execute(new ProviderTask(priority) {
+                    @Override
+                    public void run() {
+                        makeProviderW(tile, mPriority);
+                    }
+                });
+                priority++;
             }
         }
     }
 
     public void release() {
-        mWorkerThread.quitSafely();
+        mHandler.removeCallbacks(mScheduleFrame);
+        Choreographer.getInstance().removeFrameCallback(mApplySummaries);
+        mReleased = true;
         // Make sure we aren't listening.
-        setListeningW(false);
+        mWorkerListening = false;
+        updateListening();
+    }
+
+    /**
+     * Returns the latency of every summary provider created so far.
+     */
+    public static JSONObject dumpStats() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        synchronized (sStats) {
+            final int size = sStats.size();
+            for (int i = 0; i < size; i++) {
+                obj.put(sStats.keyAt(i), sStats.valueAt(i).toJson());
+            }
+        }
+        return obj;
     }
 
     public void setAdapter(DashboardAdapter adapter) {
         mAdapter = adapter;
     }
 
+    /**
+     * Sets the summary of the tile of the provider. Summaries set within the same frame are
+     * applied together, and only the tiles whose summary changed are rebound.
+     */
     public void setSummary(SummaryProvider provider, final CharSequence summary) {
-        final ComponentName component= mSummaryMap.get(provider);
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                // Since tiles are not always cached (like on locale change for instance),
-                // we need to always get the latest one.
-                if (!(mActivity instanceof SettingsDrawerActivity)) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Can't get category list.");
-                    }
-                    return;
-                }
-                final List<DashboardCategory> categories =
-                        ((SettingsDrawerActivity) mActivity).getDashboardCategories();
-                final Tile tile = getTileFromCategory(categories, component);
-                if (tile == null) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Can't find tile for " + component);
-                    }
-                    return;
-                }
+        final ProviderState state;
+        synchronized (mProviders) {
+            state = mProviders.get(provider);
+        }
+        if (state == null) {
+            return;
+        }
+        final long listenTime = state.listenTime.getAndSet(0);
+        if (listenTime != 0) {
+            state.stats.recordFirstSummary(SystemClock.uptimeMillis() - listenTime);
+        }
+        final ComponentName component = state.component;
+        synchronized (mPendingSummaries) {
+            mPendingSummaries.put(component, summary);
+            if (mFrameScheduled) {
+                return;
+            }
+            mFrameScheduled = true;
+        }
+        mHandler.post(mScheduleFrame);
+    }
+
+    private void applyPendingSummaries() {
+        final ArrayMap<ComponentName, CharSequence> summaries;
+        synchronized (mPendingSummaries) {
+            summaries = new ArrayMap<>(mPendingSummaries);
+            mPendingSummaries.clear();
+            mFrameScheduled = false;
+        }
+        // Since tiles are not always cached (like on locale change for instance),
+        // we need to always get the latest one.
+        if (!(mActivity instanceof SettingsDrawerActivity)) {
+            if (DEBUG) {
+                Log.d(TAG, "Can't get category list.");
+            }
+            return;
+        }
+        final long start = SystemClock.uptimeMillis();
+        updateTileIndex(((SettingsDrawerActivity) mActivity).getDashboardCategories());
+        final int count = summaries.size();
+        int changed = 0;
+        for (int i = 0; i < count; i++) {
+            final ComponentName component = summaries.keyAt(i);
+            final CharSequence summary = summaries.valueAt(i);
+            final Tile tile = mTileIndex.get(component);
+            if (tile == null) {
                 if (DEBUG) {
-                    Log.d(TAG, "setSummary " + tile.title + " - " + summary);
+                    Log.d(TAG, "Can't find tile for " + component);
                 }
-                tile.summary = summary;
+                continue;
+            }
+            if (TextUtils.equals(tile.summary, summary)
+                    && (mAdapter == null || !mAdapter.hasRestoredSummary(component))) {
+                continue;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "setSummary " + tile.title + " - " + summary);
+            }
+            tile.summary = summary;
+            if (mAdapter != null) {
                 mAdapter.notifyChanged(tile);
             }
-        });
+            changed++;
+        }
+        mSummaryCount += count;
+        mSummaryChangedCount += changed;
+        mFrameCount++;
+        mFrameTimeMs += SystemClock.uptimeMillis() - start;
+        if (DEBUG) {
+            Log.d(TAG, "Applied " + count + " summaries, " + changed + " changed; total "
+                    + mSummaryCount + " summaries, " + mSummaryChangedCount + " changed in "
+                    + mFrameCount + " frames, " + mFrameTimeMs + "ms"
+                    + (mAdapter != null ? ", " + mAdapter.getBindStats() : ""));
+        }
+    }
+
+    private void updateTileIndex(List<DashboardCategory> categories) {
+        if (categories == mIndexedCategories) {
+            return;
+        }
+        mIndexedCategories = categories;
+        mTileIndex.clear();
+        if (categories == null) {
+            if (DEBUG) {
+                Log.d(TAG, "Category is null, can't find tile");
+            }
+            return;
+        }
+        final int categorySize = categories.size();
+        for (int i = 0; i < categorySize; i++) {
+            final DashboardCategory category = categories.get(i);
+            final int tileCount = category.tiles.size();
+            for (int j = 0; j < tileCount; j++) {
+                final Tile tile = category.tiles.get(j);
+                final ComponentName component = tile.intent.getComponent();
+                // Keep the first tile of a component, like the linear scan did.
+                if (!mTileIndex.containsKey(component)) {
+                    mTileIndex.put(component, tile);
+                }
+            }
+        }
     }
 
     /**
@@ -124,8 +271,25 @@ public class SummaryLoader {
             mActivity.unregisterReceiver(mReceivers.valueAt(i));
         }
         mReceivers.clear();
-        mWorker.removeMessages(Worker.MSG_SET_LISTENING);
-        mWorker.obtainMessage(Worker.MSG_SET_LISTENING, listening ? 1 : 0, 0).sendToTarget();
+        mWorkerListening = listening;
+        updateListening();
+    }
+
+    private void updateListening() {
+        final ArrayList<ProviderState> states;
+        synchronized (mProviders) {
+            states = new ArrayList<>(mProviders.values());
+        }
+        final int count = states.size();
+        for (int i = 0; i < count; i++) {
+            final ProviderState state = states.get(i);
+            getExecutor().execute(new ProviderTask(state.priority) {
+                @Override
+                public void run() {
+                    updateListeningW(state);
+                }
+            });
+        }
     }
 
     private SummaryProvider getSummaryProvider(Tile tile) {
@@ -183,76 +347,163 @@ public class SummaryLoader {
         });
     }
 
-    private synchronized void setListeningW(boolean listening) {
-        if (mWorkerListening == listening) return;
-        mWorkerListening = listening;
-        if (DEBUG) Log.d(TAG, "Listening " + listening);
-        for (SummaryProvider p : mSummaryMap.keySet()) {
+    /**
+     * Brings the provider to the current listening state. Tasks of the same provider may run
+     * concurrently and in any order, so they all converge to the latest state.
+     */
+    private void updateListeningW(ProviderState state) {
+        synchronized (state) {
+            final boolean listening = mWorkerListening && !mReleased;
+            if (state.listening == listening) {
+                return;
+            }
+            if (DEBUG) Log.d(TAG, "Listening " + listening + " " + state.component);
+            final long start = SystemClock.uptimeMillis();
+            if (listening) {
+                state.listenTime.set(start);
+            }
             try {
-                p.setListening(listening);
+                state.provider.setListening(listening);
             } catch (Exception e) {
                 Log.d(TAG, "Problem in setListening", e);
             }
+            state.listening = listening;
+            final long elapsed = SystemClock.uptimeMillis() - start;
+            state.stats.recordListen(elapsed);
+            if (elapsed > PROVIDER_TIME_BUDGET_MS) {
+                Log.w(TAG, state.component.getClassName() + " setListening(" + listening
+                        + ") took " + elapsed + "ms");
+            }
         }
     }
 
-    private synchronized void makeProviderW(Tile tile) {
+    private void makeProviderW(Tile tile, int priority) {
+        if (mReleased) {
+            return;
+        }
+        final long start = SystemClock.uptimeMillis();
         SummaryProvider provider = getSummaryProvider(tile);
-        if (provider != null) {
-            if (DEBUG) Log.d(TAG, "Creating " + tile);
-            mSummaryMap.put(provider, tile.intent.getComponent());
+        if (provider == null) {
+            return;
+        }
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        if (DEBUG) Log.d(TAG, "Creating " + tile);
+        final ComponentName component = tile.intent.getComponent();
+        final ProviderState state = new ProviderState(provider, component, priority,
+                getStats(component.getClassName()));
+        state.stats.recordCreate(elapsed);
+        if (elapsed > PROVIDER_TIME_BUDGET_MS) {
+            Log.w(TAG, "Creating " + component.getClassName() + " took " + elapsed + "ms");
+        }
+        synchronized (mProviders) {
+            mProviders.put(provider, state);
         }
+        updateListeningW(state);
     }
 
-    private Tile getTileFromCategory(List<DashboardCategory> categories, ComponentName component) {
-        if (categories == null) {
-            if (DEBUG) {
-                Log.d(TAG, "Category is null, can't find tile");
+    private static ProviderStats getStats(String className) {
+        synchronized (sStats) {
+            ProviderStats stats = sStats.get(className);
+            if (stats == null) {
+                stats = new ProviderStats();
+                sStats.put(className, stats);
             }
-            return null;
+            return stats;
         }
-        final int categorySize = categories.size();
-        for (int i = 0; i < categorySize; i++) {
-            final DashboardCategory category = categories.get(i);
-            final int tileCount = category.tiles.size();
-            for (int j = 0; j < tileCount; j++) {
-                final Tile tile = category.tiles.get(j);
-                if (component.equals(tile.intent.getComponent())) {
-                    return tile;
-                }
-            }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = BackgroundExecutors.newPool("SummaryLoader", POOL_SIZE,
+                    new PriorityBlockingQueue<Runnable>());
         }
-        return null;
+        return sExecutor;
     }
 
-    public interface SummaryProvider {
-        void setListening(boolean listening);
+    private static class ProviderState {
+        public final SummaryProvider provider;
+        public final ComponentName component;
+        public final int priority;
+        public final ProviderStats stats;
+        // Guarded by this
+        public boolean listening;
+        // When the provider started listening, until it sets its first summary
+        public final AtomicLong listenTime = new AtomicLong();
+
+        public ProviderState(SummaryProvider provider, ComponentName component, int priority,
+                ProviderStats stats) {
+            this.provider = provider;
+            this.component = component;
+            this.priority = priority;
+            this.stats = stats;
+        }
     }
 
-    public interface SummaryProviderFactory {
-        SummaryProvider createSummaryProvider(Activity activity, SummaryLoader summaryLoader);
+    private static class ProviderStats {
+        private long mCreateMs;
+        private int mListenCount;
+        private long mListenTotalMs;
+        private long mListenMaxMs;
+        private int mOverBudgetCount;
+        private long mFirstSummaryMs = -1;
+
+        public synchronized void recordCreate(long elapsed) {
+            mCreateMs = elapsed;
+            if (elapsed > PROVIDER_TIME_BUDGET_MS) {
+                mOverBudgetCount++;
+            }
+        }
+
+        public synchronized void recordListen(long elapsed) {
+            mListenCount++;
+            mListenTotalMs += elapsed;
+            mListenMaxMs = Math.max(mListenMaxMs, elapsed);
+            if (elapsed > PROVIDER_TIME_BUDGET_MS) {
+                mOverBudgetCount++;
+            }
+        }
+
+        public synchronized void recordFirstSummary(long elapsed) {
+            mFirstSummaryMs = elapsed;
+        }
+
+        public synchronized JSONObject toJson() throws JSONException {
+            final JSONObject obj = new JSONObject();
+            obj.put("createMs", mCreateMs);
+            obj.put("listenCount", mListenCount);
+            obj.put("listenTotalMs", mListenTotalMs);
+            obj.put("listenMaxMs", mListenMaxMs);
+            obj.put("overBudget", mOverBudgetCount);
+            obj.put("firstSummaryMs", mFirstSummaryMs);
+            return obj;
+        }
     }
 
-    private class Worker extends Handler {
-        private static final int MSG_GET_PROVIDER = 1;
-        private static final int MSG_SET_LISTENING = 2;
+    /**
+     * Provider work, run lowest priority value first and then in submission order.
+     */
+    private static abstract class ProviderTask implements Runnable, Comparable<ProviderTask> {
+        protected final int mPriority;
+        private final long mSequence = sTaskSequence.getAndIncrement();
 
-        public Worker(Looper looper) {
-            super(looper);
+        public ProviderTask(int priority) {
+            mPriority = priority;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_GET_PROVIDER:
-                    Tile tile = (Tile) msg.obj;
-                    makeProviderW(tile);
-                    break;
-                case MSG_SET_LISTENING:
-                    boolean listening = msg.arg1 != 0;
-                    setListeningW(listening);
-                    break;
+        public int compareTo(ProviderTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
             }
+            return Long.compare(mSequence, other.mSequence);
         }
     }
+
+    public interface SummaryProvider {
+        void setListening(boolean listening);
+    }
+
+    public interface SummaryProviderFactory {
+        SummaryProvider createSummaryProvider(Activity activity, SummaryLoader summaryLoader);
+    }
 }
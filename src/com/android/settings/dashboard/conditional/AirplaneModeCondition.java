@@ -86,8 +86,16 @@ public class AirplaneModeCondition extends Condition {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (Intent.ACTION_AIRPLANE_MODE_CHANGED.equals(intent.getAction())) {
-                ConditionManager.get(context).getCondition(AirplaneModeCondition.class)
-                        .refreshState();
+                final ConditionManager manager = ConditionManager.get(context);
+                manager.getCondition(AirplaneModeCondition.class).refreshState();
+                // Keeps the process alive until the new state is on disk.
+                final PendingResult result = goAsync();
+                manager.flushState(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.finish();
+                    }
+                });
             }
         }
     }
@@ -93,8 +93,16 @@ public class CellularDataCondition extends Condition {
         public void onReceive(Context context, Intent intent) {
             if (TelephonyIntents.ACTION_ANY_DATA_CONNECTION_STATE_CHANGED.equals(
                     intent.getAction())) {
-                ConditionManager.get(context).getCondition(CellularDataCondition.class)
-                        .refreshState();
+                final ConditionManager manager = ConditionManager.get(context);
+                manager.getCondition(CellularDataCondition.class).refreshState();
+                // Keeps the process alive until the new state is on disk.
+                final PendingResult result = goAsync();
+                manager.flushState(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.finish();
+                    }
+                });
             }
         }
     }
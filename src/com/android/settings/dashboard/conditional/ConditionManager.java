@@ -17,22 +17,34 @@ package com.android.settings.dashboard.conditional;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PersistableBundle;
+import android.support.annotation.VisibleForTesting;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.Xml;
 
+import com.android.settings.utils.BackgroundExecutors;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class ConditionManager {
 
@@ -42,30 +54,96 @@ public class ConditionManager {
 
     private static final String PKG = "com.android.settings.dashboard.conditional.";
 
-    private static final String FILE_NAME = "condition_state.xml";
-    private static final String TAG_CONDITIONS = "cs";
+    // Legacy state file, only read to migrate it to FILE_NAME
+    private static final String XML_FILE_NAME = "condition_state.xml";
     private static final String TAG_CONDITION = "c";
     private static final String ATTR_CLASS = "cls";
 
+    private static final String FILE_NAME = "condition_state.bin";
+    @VisibleForTesting
+    static final int FILE_VERSION = 1;
+
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_STRING = 4;
+
+    // Condition changes within this delay are saved with a single write
+    private static final long SAVE_DELAY_MS = 500;
+
     private static ConditionManager sInstance;
 
+    // Writes of the state file, one at a time and in order, so the last snapshot always wins
+    private static ExecutorService sWriteExecutor;
+
     private final Context mContext;
     private final ArrayList<Condition> mConditions;
-    private File mXmlFile;
+    private final AtomicFile mStateFile;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mLoaded;
+    // True while a save is scheduled on the handler
+    private boolean mSavePending;
+    // Set by the load when the state came from the legacy XML file
+    private volatile boolean mNeedsMigration;
 
     private final ArrayList<ConditionListener> mListeners = new ArrayList<>();
 
+    private final Runnable mSaveState = new Runnable() {
+        @Override
+        public void run() {
+            saveState();
+        }
+    };
+
     private ConditionManager(Context context, boolean loadConditionsNow) {
         mContext = context;
         mConditions = new ArrayList<>();
+        mStateFile = new AtomicFile(new File(mContext.getFilesDir(), FILE_NAME));
         if (loadConditionsNow) {
-            ConditionLoader loader = new ConditionLoader();
-            loader.onPostExecute(loader.doInBackground());
+            ensureLoaded();
         } else {
             new ConditionLoader().execute();
         }
     }
 
+    /**
+     * Loads the conditions on the calling thread if the background load did not complete yet.
+     */
+    private void ensureLoaded() {
+        if (!mLoaded) {
+            setConditions(loadConditions());
+        }
+    }
+
+    private void setConditions(ArrayList<Condition> conditions) {
+        mLoaded = true;
+        mConditions.clear();
+        mConditions.addAll(conditions);
+        refreshAll();
+        if (mNeedsMigration) {
+            mNeedsMigration = false;
+            scheduleSaveState();
+        }
+        final int N = mListeners.size();
+        for (int i = 0; i < N; i++) {
+            mListeners.get(i).onConditionsChanged();
+        }
+    }
+
+    private ArrayList<Condition> loadConditions() {
+        ArrayList<Condition> conditions = new ArrayList<>();
+        if (!readState(conditions)) {
+            File xmlFile = new File(mContext.getFilesDir(), XML_FILE_NAME);
+            if (xmlFile.exists()) {
+                conditions.clear();
+                readFromXml(xmlFile, conditions);
+                mNeedsMigration = true;
+            }
+        }
+        addMissingConditions(conditions);
+        return conditions;
+    }
+
     public void refreshAll() {
         final int N = mConditions.size();
         for (int i = 0; i < N; i++) {
@@ -75,63 +153,268 @@ public class ConditionManager {
 
     private void readFromXml(File xmlFile, ArrayList<Condition> conditions) {
         if (DEBUG) Log.d(TAG, "Reading from " + xmlFile.toString());
+        final ArrayList<String> classes = new ArrayList<>();
+        final ArrayList<PersistableBundle> bundles = new ArrayList<>();
         try {
-            XmlPullParser parser = Xml.newPullParser();
             FileReader in = new FileReader(xmlFile);
-            parser.setInput(in);
-            int state = parser.getEventType();
-
-            while (state != XmlPullParser.END_DOCUMENT) {
-                if (TAG_CONDITION.equals(parser.getName())) {
-                    int depth = parser.getDepth();
-                    String clz = parser.getAttributeValue("", ATTR_CLASS);
-                    if (!clz.startsWith(PKG)) {
-                        clz = PKG + clz;
-                    }
-                    Condition condition = createCondition(Class.forName(clz));
-                    PersistableBundle bundle = PersistableBundle.restoreFromXml(parser);
-                    if (DEBUG) Log.d(TAG, "Reading " + clz + " -- " + bundle);
-                    condition.restoreState(bundle);
-                    conditions.add(condition);
-                    while (parser.getDepth() > depth) {
-                        parser.next();
-                    }
+            try {
+                readStatesFromXml(in, classes, bundles);
+            } finally {
+                in.close();
+            }
+        } catch (XmlPullParserException | IOException e) {
+            Log.w(TAG, "Problem reading " + XML_FILE_NAME, e);
+        }
+        restoreConditions(classes, bundles, conditions);
+    }
+
+    /**
+     * Reads the legacy XML state, with the simple class name of each condition.
+     */
+    @VisibleForTesting
+    static void readStatesFromXml(Reader in, List<String> classes,
+            List<PersistableBundle> bundles) throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in);
+        int state = parser.getEventType();
+
+        while (state != XmlPullParser.END_DOCUMENT) {
+            if (TAG_CONDITION.equals(parser.getName())) {
+                int depth = parser.getDepth();
+                String clz = parser.getAttributeValue("", ATTR_CLASS);
+                if (clz.startsWith(PKG)) {
+                    clz = clz.substring(PKG.length());
+                }
+                PersistableBundle bundle = PersistableBundle.restoreFromXml(parser);
+                if (DEBUG) Log.d(TAG, "Reading " + clz + " -- " + bundle);
+                classes.add(clz);
+                bundles.add(bundle);
+                while (parser.getDepth() > depth) {
+                    parser.next();
                 }
-                state = parser.next();
             }
-            in.close();
-        } catch (XmlPullParserException | IOException | ClassNotFoundException e) {
-            Log.w(TAG, "Problem reading " + FILE_NAME, e);
+            state = parser.next();
         }
     }
 
-    private void saveToXml() {
-        if (DEBUG) Log.d(TAG, "Writing to " + mXmlFile.toString());
+    /**
+     * Reads the binary state file. Returns false if there is no usable state file.
+     */
+    private boolean readState(ArrayList<Condition> conditions) {
+        final ArrayList<String> classes = new ArrayList<>();
+        final ArrayList<PersistableBundle> bundles = new ArrayList<>();
+        DataInputStream in = null;
         try {
-            XmlSerializer serializer = Xml.newSerializer();
-            FileWriter writer = new FileWriter(mXmlFile);
-            serializer.setOutput(writer);
-
-            serializer.startDocument("UTF-8", true);
-            serializer.startTag("", TAG_CONDITIONS);
-
-            final int N = mConditions.size();
-            for (int i = 0; i < N; i++) {
-                PersistableBundle bundle = new PersistableBundle();
-                if (mConditions.get(i).saveState(bundle)) {
-                    serializer.startTag("", TAG_CONDITION);
-                    final String clz = mConditions.get(i).getClass().getSimpleName();
-                    serializer.attribute("", ATTR_CLASS, clz);
-                    bundle.saveToXml(serializer);
-                    serializer.endTag("", TAG_CONDITION);
+            in = new DataInputStream(new BufferedInputStream(mStateFile.openRead()));
+            if (!readStates(in, classes, bundles)) {
+                Log.w(TAG, "Ignoring " + FILE_NAME + " of unknown version");
+                return false;
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading " + FILE_NAME, e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
                 }
             }
+        }
+        restoreConditions(classes, bundles, conditions);
+        return true;
+    }
 
-            serializer.endTag("", TAG_CONDITIONS);
-            serializer.flush();
-            writer.close();
-        } catch (XmlPullParserException | IOException e) {
+    /**
+     * Reads the binary state, with the simple class name of each condition. Returns false if
+     * the state has an unknown version.
+     */
+    @VisibleForTesting
+    static boolean readStates(DataInputStream in, List<String> classes,
+            List<PersistableBundle> bundles) throws IOException {
+        if (in.readInt() != FILE_VERSION) {
+            return false;
+        }
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final String clz = in.readUTF();
+            final PersistableBundle bundle = readBundle(in);
+            if (DEBUG) Log.d(TAG, "Reading " + clz + " -- " + bundle);
+            classes.add(clz);
+            bundles.add(bundle);
+        }
+        return true;
+    }
+
+    private void restoreConditions(List<String> classes, List<PersistableBundle> bundles,
+            ArrayList<Condition> conditions) {
+        final int N = classes.size();
+        for (int i = 0; i < N; i++) {
+            try {
+                Condition condition = createCondition(Class.forName(PKG + classes.get(i)));
+                condition.restoreState(bundles.get(i));
+                conditions.add(condition);
+            } catch (ClassNotFoundException e) {
+                Log.w(TAG, "Dropping state of unknown condition " + classes.get(i));
+            }
+        }
+    }
+
+    private static PersistableBundle readBundle(DataInputStream in) throws IOException {
+        final PersistableBundle bundle = new PersistableBundle();
+        final int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            final String key = in.readUTF();
+            final byte type = in.readByte();
+            switch (type) {
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.readBoolean());
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.readLong());
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, in.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unexpected type " + type);
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * Schedules a write of the condition state, merging the changes happening until it runs.
+     */
+    private void scheduleSaveState() {
+        mHandler.removeCallbacks(mSaveState);
+        mHandler.postDelayed(mSaveState, SAVE_DELAY_MS);
+        mSavePending = true;
+    }
+
+    /**
+     * Starts writing the pending condition changes right away instead of after the delay,
+     * without waiting for the write. Called when the dashboard is paused.
+     */
+    public void flushState() {
+        if (mSavePending) {
+            mHandler.removeCallbacks(mSaveState);
+            saveState();
+        }
+    }
+
+    /**
+     * Starts writing the pending condition changes right away, and runs the callback on the
+     * writer thread once they are on disk. Lets a condition receiver keep the process alive
+     * until then with {@link android.content.BroadcastReceiver#goAsync}.
+     */
+    public void flushState(Runnable onWritten) {
+        flushState();
+        // Runs after every write submitted so far, the writes being serial.
+        getWriteExecutor().execute(onWritten);
+    }
+
+    /**
+     * Takes a snapshot of the condition state and writes it in the background.
+     */
+    private void saveState() {
+        mSavePending = false;
+        final ArrayList<String> classes = new ArrayList<>();
+        final ArrayList<PersistableBundle> bundles = new ArrayList<>();
+        final int N = mConditions.size();
+        for (int i = 0; i < N; i++) {
+            PersistableBundle bundle = new PersistableBundle();
+            if (mConditions.get(i).saveState(bundle)) {
+                classes.add(mConditions.get(i).getClass().getSimpleName());
+                bundles.add(bundle);
+            }
+        }
+        getWriteExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                writeState(classes, bundles);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getWriteExecutor() {
+        if (sWriteExecutor == null) {
+            sWriteExecutor = BackgroundExecutors.newSerialPool("ConditionStateWriter");
+        }
+        return sWriteExecutor;
+    }
+
+    private void writeState(List<String> classes, List<PersistableBundle> bundles) {
+        if (DEBUG) Log.d(TAG, "Writing to " + mStateFile.getBaseFile());
+        FileOutputStream fos = null;
+        try {
+            fos = mStateFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeStates(out, classes, bundles);
+            out.flush();
+            mStateFile.finishWrite(fos);
+            new File(mContext.getFilesDir(), XML_FILE_NAME).delete();
+        } catch (IOException e) {
             Log.w(TAG, "Problem writing " + FILE_NAME, e);
+            if (fos != null) {
+                mStateFile.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * Writes the binary state, with the simple class name of each condition.
+     */
+    @VisibleForTesting
+    static void writeStates(DataOutputStream out, List<String> classes,
+            List<PersistableBundle> bundles) throws IOException {
+        out.writeInt(FILE_VERSION);
+        final int N = classes.size();
+        out.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            out.writeUTF(classes.get(i));
+            writeBundle(out, bundles.get(i));
+        }
+    }
+
+    private static void writeBundle(DataOutputStream out, PersistableBundle bundle)
+            throws IOException {
+        final ArrayList<String> keys = new ArrayList<>();
+        final ArrayList<Object> values = new ArrayList<>();
+        for (String key : bundle.keySet()) {
+            final Object value = bundle.get(key);
+            if (value instanceof Boolean || value instanceof Integer || value instanceof Long
+                    || value instanceof String) {
+                keys.add(key);
+                values.add(value);
+            } else {
+                Log.w(TAG, "Not saving " + key + " of unsupported type");
+            }
+        }
+        final int N = keys.size();
+        out.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            out.writeUTF(keys.get(i));
+            final Object value = values.get(i);
+            if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(TYPE_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF((String) value);
+            }
         }
     }
 
@@ -180,6 +463,7 @@ public class ConditionManager {
     }
 
     public <T extends Condition> T getCondition(Class<T> clz) {
+        ensureLoaded();
         return getCondition(clz, mConditions);
     }
 
@@ -209,7 +493,7 @@ public class ConditionManager {
     }
 
     public void notifyChanged(Condition condition) {
-        saveToXml();
+        scheduleSaveState();
         Collections.sort(mConditions, CONDITION_COMPARATOR);
         final int N = mListeners.size();
         for (int i = 0; i < N; i++) {
@@ -229,20 +513,14 @@ public class ConditionManager {
     private class ConditionLoader extends AsyncTask<Void, Void, ArrayList<Condition>> {
         @Override
         protected ArrayList<Condition> doInBackground(Void... params) {
-            ArrayList<Condition> conditions = new ArrayList<>();
-            mXmlFile = new File(mContext.getFilesDir(), FILE_NAME);
-            if (mXmlFile.exists()) {
-                readFromXml(mXmlFile, conditions);
-            }
-            addMissingConditions(conditions);
-            return conditions;
+            return loadConditions();
         }
 
         @Override
         protected void onPostExecute(ArrayList<Condition> conditions) {
-            mConditions.clear();
-            mConditions.addAll(conditions);
-            refreshAll();
+            if (!mLoaded) {
+                setConditions(conditions);
+            }
         }
     }
 
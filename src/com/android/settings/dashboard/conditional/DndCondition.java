@@ -139,11 +139,19 @@ public class DndCondition extends Condition {
         public void onReceive(Context context, Intent intent) {
             if (NotificationManager.ACTION_INTERRUPTION_FILTER_CHANGED_INTERNAL
                     .equals(intent.getAction())) {
-                final Condition condition =
-                        ConditionManager.get(context).getCondition(DndCondition.class);
+                final ConditionManager manager = ConditionManager.get(context);
+                final Condition condition = manager.getCondition(DndCondition.class);
                 if (condition != null) {
                     condition.refreshState();
                 }
+                // Keeps the process alive until the new state is on disk.
+                final PendingResult result = goAsync();
+                manager.flushState(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.finish();
+                    }
+                });
             }
         }
     }
@@ -126,8 +126,16 @@ public class HotspotCondition extends Condition {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (WifiManager.WIFI_AP_STATE_CHANGED_ACTION.equals(intent.getAction())) {
-                ConditionManager.get(context).getCondition(HotspotCondition.class)
-                        .refreshState();
+                final ConditionManager manager = ConditionManager.get(context);
+                manager.getCondition(HotspotCondition.class).refreshState();
+                // Keeps the process alive until the new state is on disk.
+                final PendingResult result = goAsync();
+                manager.flushState(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.finish();
+                    }
+                });
             }
         }
     }
@@ -31,9 +31,20 @@ public class AppDataUsagePreference extends Preference {
 
     private final AppItem mItem;
     private final int mPercent;
+    // Set while the details of the app wait for the row to be shown to be loaded
+    private UidDetailProvider mPendingProvider;
 
     public AppDataUsagePreference(Context context, AppItem item, int percent,
             UidDetailProvider provider) {
+        this(context, item, percent, provider, true);
+    }
+
+    /**
+     * @param loadDetail whether to load the label and icon of the app right away, instead of
+     *         when the row is first shown.
+     */
+    public AppDataUsagePreference(Context context, AppItem item, int percent,
+            UidDetailProvider provider, boolean loadDetail) {
         super(context);
         mItem = item;
         mPercent = percent;
@@ -45,14 +56,35 @@ public class AppDataUsagePreference extends Preference {
             setSummary(Formatter.formatFileSize(context, item.total));
         }
 
-        // kick off async load of app details
-        UidDetailTask.bindView(provider, item, this);
+        if (loadDetail) {
+            // kick off async load of app details
+            UidDetailTask.bindView(provider, item, this);
+        } else {
+            final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
+            if (cachedDetail != null) {
+                UidDetailTask.bindView(cachedDetail, this);
+            } else {
+                mPendingProvider = provider;
+            }
+        }
     }
 
     @Override
     public void onBindViewHolder(PreferenceViewHolder holder) {
         super.onBindViewHolder(holder);
 
+        if (mPendingProvider != null) {
+            final UidDetailProvider provider = mPendingProvider;
+            mPendingProvider = null;
+            // Not while the list is binding its rows, loading changes the preference.
+            holder.itemView.post(new Runnable() {
+                @Override
+                public void run() {
+                    UidDetailTask.bindView(provider, mItem, AppDataUsagePreference.this);
+                }
+            });
+        }
+
         final ProgressBar progress = (ProgressBar) holder.findViewById(
                 android.R.id.progress);
 
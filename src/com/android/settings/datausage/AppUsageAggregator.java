@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.UserInfo;
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.UidDetailProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+/**
+ * Collapses the entries of a {@link NetworkStats} into the items of the data usage list.
+ *
+ * The users and profiles are looked up once when the aggregator is created, and each uid is
+ * only classified the first time one of its entries is seen. Bytes are summed in primitive maps
+ * keyed by the collapse key, and the {@link AppItem}s are only created once all the entries
+ * are summed, one per collapse key. Does not touch the UI: meant to run in the background.
+ */
+public class AppUsageAggregator {
+
+    private static final String TAG = "AppUsageAggregator";
+
+    // Marks a uid of the apps of another profile of the current user, which also counts for
+    // the item of that profile.
+    private static final int NO_MANAGED_KEY = Integer.MIN_VALUE;
+
+    private final int mCurrentUserId;
+    private final SparseBooleanArray mProfiles;
+    private final SparseBooleanArray mUsers;
+    private final int mVideoCallUid;
+
+    /**
+     * The items of the list, and the largest total of all of them.
+     */
+    public static class Result {
+        public final List<AppItem> items;
+        public final long largest;
+
+        Result(List<AppItem> items, long largest) {
+            this.items = items;
+            this.largest = largest;
+        }
+    }
+
+    /**
+     * @param currentUserId the user whose profiles apps are listed one by one.
+     * @param profileUserIds the profiles of the current user.
+     * @param userIds all the users of the device. The apps of the users missing are collapsed
+     *         into the removed item.
+     * @param videoCallUid the uid listed by itself although it is not an app uid, or -1.
+     */
+    public AppUsageAggregator(int currentUserId, int[] profileUserIds, int[] userIds,
+            int videoCallUid) {
+        mCurrentUserId = currentUserId;
+        mProfiles = toSet(profileUserIds);
+        mUsers = toSet(userIds);
+        mVideoCallUid = videoCallUid;
+    }
+
+    /**
+     * Creates an aggregator for the users of the device. Calls the user manager, should not be
+     * called on the main thread.
+     */
+    public static AppUsageAggregator create(Context context, int videoCallUid) {
+        final UserManager userManager = UserManager.get(context);
+        final List<UserHandle> profiles = userManager.getUserProfiles();
+        final int[] profileUserIds = new int[profiles.size()];
+        for (int i = 0; i < profileUserIds.length; i++) {
+            profileUserIds[i] = profiles.get(i).getIdentifier();
+        }
+        final List<UserInfo> users = userManager.getUsers();
+        final int[] userIds = new int[users.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = users.get(i).id;
+        }
+        return new AppUsageAggregator(ActivityManager.getCurrentUser(), profileUserIds, userIds,
+                videoCallUid);
+    }
+
+    /**
+     * Returns the uid of the dialer when video call data usage is listed by itself, or -1.
+     */
+    public static int getVideoCallUid(Context context) {
+        if (!context.getResources().getBoolean(
+                com.android.internal.R.bool.config_video_call_datausage_enable)) {
+            return -1;
+        }
+        try {
+            final ApplicationInfo ai = context.getPackageManager().getApplicationInfo(
+                    "com.android.dialer", 0);
+            return ai.uid;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.d(TAG, "get dialer getApplicationInfo failed " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Collapses the entries of the stats, and marks the apps of the current user and its
+     * profiles that are restricted.
+     *
+     * @param stats the stats to collapse, or null for none.
+     * @return the items sorted the way the list shows them.
+     */
+    public Result aggregate(NetworkStats stats, int[] restrictedUids) {
+        // Collapse key of each uid seen, and key of its profile item if it has one
+        final SparseIntArray uidKeys = new SparseIntArray();
+        final SparseIntArray uidManagedKeys = new SparseIntArray();
+        // Bytes and category of each collapse key
+        final SparseLongArray totals = new SparseLongArray();
+        final SparseIntArray categories = new SparseIntArray();
+        // Collapse keys in the order they were first seen, so that items with the same total
+        // keep that order once sorted
+        int[] keys = new int[16];
+        int keyCount = 0;
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            int index = uidKeys.indexOfKey(uid);
+            if (index < 0) {
+                classify(uid, uidKeys, uidManagedKeys, categories);
+                index = uidKeys.indexOfKey(uid);
+            }
+            final int managedKey = uidManagedKeys.get(uid, NO_MANAGED_KEY);
+            if (managedKey != NO_MANAGED_KEY) {
+                if (totals.indexOfKey(managedKey) < 0) {
+                    keys = append(keys, keyCount++, managedKey);
+                }
+                totals.put(managedKey, totals.get(managedKey) + bytes);
+            }
+            final int collapseKey = uidKeys.valueAt(index);
+            if (totals.indexOfKey(collapseKey) < 0) {
+                keys = append(keys, keyCount++, collapseKey);
+            }
+            totals.put(collapseKey, totals.get(collapseKey) + bytes);
+        }
+
+        long largest = 0;
+        for (int i = 0; i < totals.size(); i++) {
+            largest = Math.max(largest, totals.valueAt(i));
+        }
+
+        final SparseBooleanArray restricted = new SparseBooleanArray();
+        for (int i = 0; i < restrictedUids.length; i++) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!mProfiles.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+            if (totals.indexOfKey(uid) < 0) {
+                // Listed without a category, like before the aggregation moved here.
+                keys = append(keys, keyCount++, uid);
+                totals.put(uid, -1);
+            }
+            restricted.put(uid, true);
+        }
+
+        final ArrayList<AppItem> items = new ArrayList<>(keyCount);
+        final AppItem[] itemsByKey = new AppItem[keyCount];
+        final SparseIntArray keyIndexes = new SparseIntArray(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            final int key = keys[i];
+            final AppItem item = new AppItem(key);
+            item.category = categories.get(key);
+            item.total = totals.get(key);
+            item.restricted = restricted.get(key);
+            items.add(item);
+            itemsByKey[i] = item;
+            keyIndexes.put(key, i);
+        }
+        for (int i = 0; i < uidKeys.size(); i++) {
+            final int uid = uidKeys.keyAt(i);
+            itemsByKey[keyIndexes.get(uidKeys.valueAt(i))].addUid(uid);
+            final int managedKey = uidManagedKeys.get(uid, NO_MANAGED_KEY);
+            if (managedKey != NO_MANAGED_KEY) {
+                itemsByKey[keyIndexes.get(managedKey)].addUid(uid);
+            }
+        }
+        Collections.sort(items);
+        return new Result(items, largest);
+    }
+
+    /**
+     * Decides how the entries of a uid are collapsed.
+     */
+    private void classify(int uid, SparseIntArray uidKeys, SparseIntArray uidManagedKeys,
+            SparseIntArray categories) {
+        final int collapseKey;
+        final int category;
+        final int userId = UserHandle.getUserId(uid);
+        if (UserHandle.isApp(uid)) {
+            if (mProfiles.get(userId)) {
+                if (userId != mCurrentUserId) {
+                    // Add to a managed user item.
+                    final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                    uidManagedKeys.put(uid, managedKey);
+                    categories.put(managedKey, AppItem.CATEGORY_USER);
+                }
+                // Add to app item.
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else if (!mUsers.get(userId)) {
+                // If it is a removed user add it to the removed users' key
+                collapseKey = UID_REMOVED;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                // Add to other user item.
+                collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                category = AppItem.CATEGORY_USER;
+            }
+        } else if (uid == UID_REMOVED || uid == UID_TETHERING
+                || (mVideoCallUid >= 0 && uid == mVideoCallUid)) {
+            collapseKey = uid;
+            category = AppItem.CATEGORY_APP;
+        } else {
+            collapseKey = Process.SYSTEM_UID;
+            category = AppItem.CATEGORY_APP;
+        }
+        uidKeys.put(uid, collapseKey);
+        // An item keeps the category of the first uid collapsed into it.
+        if (categories.indexOfKey(collapseKey) < 0) {
+            categories.put(collapseKey, category);
+        }
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    private static SparseBooleanArray toSet(int[] values) {
+        final SparseBooleanArray set = new SparseBooleanArray(values.length);
+        for (int value : values) {
+            set.put(value, true);
+        }
+        return set;
+    }
+}
@@ -14,13 +14,9 @@
 
 package com.android.settings.datausage;
 
-import android.app.ActivityManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
 import android.content.Loader;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.UserInfo;
 import android.graphics.Color;
 import android.net.ConnectivityManager;
 import android.net.INetworkStatsSession;
@@ -33,8 +29,6 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.SystemProperties;
-import android.os.UserHandle;
-import android.os.UserManager;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceGroup;
 import android.telephony.SubscriptionInfo;
@@ -43,7 +37,6 @@ import android.telephony.TelephonyManager;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
@@ -59,7 +52,6 @@ import com.android.settingslib.net.SummaryForAllUidLoader;
 import com.android.settingslib.net.UidDetailProvider;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -67,8 +59,6 @@ import java.util.Map;
 
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS_PROP;
@@ -89,6 +79,12 @@ public class DataUsageList extends DataUsageBase {
 
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
+
+    // Number of rows at the top of the app list whose details are loaded right away, the
+    // others load theirs when they are first shown
+    private static final int PRELOAD_DETAIL_ROWS = 12;
+
+    private static final int VIDEO_CALL_UID_UNKNOWN = Integer.MIN_VALUE;
     public static final String EXTRA_SUB_ID = "sub_id";
     public static final String EXTRA_NETWORK_TEMPLATE = "network_template";
 
@@ -111,6 +107,10 @@ public class DataUsageList extends DataUsageBase {
     private static long mSelectRight;
 
     private UidDetailProvider mUidDetailProvider;
+    // Collapsing the last summary loaded into items, null when none is running
+    private AsyncTask<Void, Void, AppUsageAggregator.Result> mAggregateTask;
+    // Uid of the dialer if its video calls are listed by themselves, resolved once
+    private volatile int mVideoCallUid = VIDEO_CALL_UID_UNKNOWN;
 
     /**
      * Local cache of data enabled for subId, used to work around delays.
@@ -237,6 +237,10 @@ public class DataUsageList extends DataUsageBase {
 
     @Override
     public void onDestroy() {
+        if (mAggregateTask != null) {
+            mAggregateTask.cancel(false);
+            mAggregateTask = null;
+        }
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
@@ -391,108 +395,85 @@ public class DataUsageList extends DataUsageBase {
     }
 
     /**
-     * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+     * Bind the given {@link NetworkStats}, or {@code null} to clear list. The stats are
+     * collapsed into items in the background, cancelling the collapsing of previous stats.
      */
-    public void bindStats(NetworkStats stats, int[] restrictedUids) {
-        ArrayList<AppItem> items = new ArrayList<>();
-        long largest = 0;
-
-        final int currentUserId = ActivityManager.getCurrentUser();
-        UserManager userManager = UserManager.get(getContext());
-        final List<UserHandle> profiles = userManager.getUserProfiles();
-        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-        PackageManager pm = getContext().getPackageManager();
-        ApplicationInfo ai = null;
-        try{
-            ai = pm.getApplicationInfo("com.android.dialer", PackageManager.GET_ACTIVITIES);
-         } catch(Exception e) {
-           Log.d(TAG, "get dialer getApplicationInfo failed " + e);
-        }
-
-        NetworkStats.Entry entry = null;
-        final int size = stats != null ? stats.size() : 0;
-        for (int i = 0; i < size; i++) {
-            entry = stats.getValues(i, entry);
-
-            // Decide how to collapse items together
-            final int uid = entry.uid;
-
-            final int collapseKey;
-            final int category;
-            final int userId = UserHandle.getUserId(uid);
-            if (UserHandle.isApp(uid)) {
-                if (profiles.contains(new UserHandle(userId))) {
-                    if (userId != currentUserId) {
-                        // Add to a managed user item.
-                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                        largest = accumulate(managedKey, knownItems, entry, AppItem.CATEGORY_USER,
-                                items, largest);
-                    }
-                    // Add to app item.
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    // If it is a removed user add it to the removed users' key
-                    final UserInfo info = userManager.getUserInfo(userId);
-                    if (info == null) {
-                        collapseKey = UID_REMOVED;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // Add to other user item.
-                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                        category = AppItem.CATEGORY_USER;
-                    }
-                }
-            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
-            } else if ((ai != null) && (uid == ai.uid) && getContext().getResources().getBoolean(
-                    com.android.internal.R.bool.config_video_call_datausage_enable)){
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
-            } else {
-                collapseKey = android.os.Process.SYSTEM_UID;
-                category = AppItem.CATEGORY_APP;
-            }
-            largest = accumulate(collapseKey, knownItems, entry, category, items, largest);
+    public void bindStats(final NetworkStats stats) {
+        if (mAggregateTask != null) {
+            mAggregateTask.cancel(false);
+            mAggregateTask = null;
         }
-
-        final int restrictedUidsMax = restrictedUids.length;
-        for (int i = 0; i < restrictedUidsMax; ++i) {
-            final int uid = restrictedUids[i];
-            // Only splice in restricted state for current user or managed users
-            if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                continue;
+        if (stats == null) {
+            bindItems(new ArrayList<AppItem>(), 0);
+            return;
+        }
+        final Context context = getContext().getApplicationContext();
+        mAggregateTask = new AsyncTask<Void, Void, AppUsageAggregator.Result>() {
+            @Override
+            protected AppUsageAggregator.Result doInBackground(Void... params) {
+                int videoCallUid = mVideoCallUid;
+                if (videoCallUid == VIDEO_CALL_UID_UNKNOWN) {
+                    videoCallUid = AppUsageAggregator.getVideoCallUid(context);
+                    mVideoCallUid = videoCallUid;
+                }
+                final int[] restrictedUids = services.mPolicyManager.getUidsWithPolicy(
+                        POLICY_REJECT_METERED_BACKGROUND);
+                if (isCancelled()) {
+                    return null;
+                }
+                return AppUsageAggregator.create(context, videoCallUid).aggregate(stats,
+                        restrictedUids);
             }
 
-            AppItem item = knownItems.get(uid);
-            if (item == null) {
-                item = new AppItem(uid);
-                item.total = -1;
-                items.add(item);
-                knownItems.put(item.key, item);
+            @Override
+            protected void onPostExecute(AppUsageAggregator.Result result) {
+                if (mAggregateTask == this) {
+                    mAggregateTask = null;
+                }
+                if (result == null || getActivity() == null) {
+                    return;
+                }
+                bindItems(result.items, result.largest);
             }
-            item.restricted = true;
-        }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
-        Collections.sort(items);
+    private void bindItems(List<AppItem> items, long largest) {
         mApps.removeAll();
         for (int i = 0; i < items.size(); i++) {
             final int percentTotal = largest != 0 ? (int) (items.get(i).total * 100 / largest) : 0;
+            // Only the rows at the top load their details right away.
             AppDataUsagePreference preference = new AppDataUsagePreference(getContext(),
-                    items.get(i), percentTotal, mUidDetailProvider);
-            preference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
-                @Override
-                public boolean onPreferenceClick(Preference preference) {
-                    AppDataUsagePreference pref = (AppDataUsagePreference) preference;
-                    AppItem item = pref.getItem();
-                    startAppDataUsage(item);
-                    return true;
-                }
-            });
+                    items.get(i), percentTotal, mUidDetailProvider, i < PRELOAD_DETAIL_ROWS);
+            preference.setOnPreferenceClickListener(mAppClickListener);
             mApps.addPreference(preference);
         }
+        updateEmptyVisible();
+    }
+
+    private final Preference.OnPreferenceClickListener mAppClickListener =
+            new Preference.OnPreferenceClickListener() {
+        @Override
+        public boolean onPreferenceClick(Preference preference) {
+            AppDataUsagePreference pref = (AppDataUsagePreference) preference;
+            AppItem item = pref.getItem();
+            startAppDataUsage(item);
+            return true;
+        }
+    };
+
+    private void updateEmptyVisible() {
+        if ((mApps.getPreferenceCount() != 0) !=
+                (getPreferenceScreen().getPreferenceCount() != 0)) {
+            // We still show chart if mShowDataUsage is enabled, then we can adjust left and
+            // right sweep
+            if (mApps.getPreferenceCount() != 0 || mShowDataUsage) {
+                getPreferenceScreen().addPreference(mUsageAmount);
+                getPreferenceScreen().addPreference(mApps);
+            } else {
+                getPreferenceScreen().removeAll();
+            }
+        }
     }
 
     private void startAppDataUsage(AppItem item) {
@@ -502,29 +483,6 @@ public class DataUsageList extends DataUsageBase {
         startFragment(this, AppDataUsage.class.getName(), R.string.app_data_usage, 0, args);
     }
 
-    /**
-     * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-     * Creates the item if needed.
-     * @param collapseKey the collapse key used to map the item.
-     * @param knownItems collection of known (already existing) items.
-     * @param entry the network stats entry to extract data usage from.
-     * @param itemCategory the item is categorized on the list view by this category. Must be
-     */
-    private static long accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-            NetworkStats.Entry entry, int itemCategory, ArrayList<AppItem> items, long largest) {
-        final int uid = entry.uid;
-        AppItem item = knownItems.get(collapseKey);
-        if (item == null) {
-            item = new AppItem(collapseKey);
-            item.category = itemCategory;
-            items.add(item);
-            knownItems.put(item.key, item);
-        }
-        item.addUid(uid);
-        item.total += entry.rxBytes + entry.txBytes;
-        return Math.max(largest, item.total);
-    }
-
     /**
      * Test if device has a mobile data radio with SIM in ready state.
      */
@@ -651,30 +609,12 @@ public class DataUsageList extends DataUsageBase {
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = services.mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            bindStats(data, restrictedUids);
-            updateEmptyVisible();
+            bindStats(data);
         }
 
         @Override
         public void onLoaderReset(Loader<NetworkStats> loader) {
-            bindStats(null, new int[0]);
-            updateEmptyVisible();
-        }
-
-        private void updateEmptyVisible() {
-            if ((mApps.getPreferenceCount() != 0) !=
-                    (getPreferenceScreen().getPreferenceCount() != 0)) {
-                // We still show chart if mShowDataUsage is enabled, then we can adjust left and
-                // right sweep
-                if (mApps.getPreferenceCount() != 0 || mShowDataUsage) {
-                    getPreferenceScreen().addPreference(mUsageAmount);
-                    getPreferenceScreen().addPreference(mApps);
-                } else {
-                    getPreferenceScreen().removeAll();
-                }
-            }
+            bindStats(null);
         }
     };
 
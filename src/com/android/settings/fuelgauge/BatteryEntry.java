@@ -26,16 +26,26 @@ import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
+import com.android.settings.utils.BackgroundExecutors;
+import com.android.settings.utils.IconCache;
 import com.android.settingslib.Utils;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -45,71 +55,193 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
+    // Parameters of the pool resolving the names and icons
+    private static final int LOADER_POOL_SIZE = 2;
+
+    // Number of uids whose name and icon are kept in memory
+    private static final int MAX_CACHED_UIDS = 128;
+
+    static final LruCache<Integer, UidToDetail> sUidCache =
+            new LruCache<Integer, UidToDetail>(MAX_CACHED_UIDS);
 
-    static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
+    private static ExecutorService sLoaderExecutor;
+
+    // Requests waiting for startRequestQueue, in the order their entries were created, with
+    // the entries of a same uid grouped in a single request.
+    private static final ArrayList<LoadRequest> sPendingRequests = new ArrayList<LoadRequest>();
+    private static final SparseArray<LoadRequest> sPendingRequestsByUid =
+            new SparseArray<LoadRequest>();
+    // Incremented by every startRequestQueue, the requests of the latest batch run first
+    private static int sBatch;
+    // Number of requests of the latest batch not done yet
+    private static int sBatchRemaining;
+
+    private static final LoadStats sStats = new LoadStats();
+
+    private static class LoadStats {
+        int requests;
+        int entries;
+        int cacheHits;
+        int labelHits;
+        int resolved;
+        long totalResolveMs;
+        long maxResolveMs;
+    }
+
+    /**
+     * Resolves the name and icon of a uid, for all the entries of that uid. Requests of a more
+     * recent batch run first, then the ones of rows higher in the list.
+     */
+    private static class LoadRequest implements Runnable, Comparable<LoadRequest> {
+        final int uid;
+        final ArrayList<BatteryEntry> entries = new ArrayList<BatteryEntry>(1);
+        int batch;
+        int position;
 
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
+        LoadRequest(int uid) {
+            this.uid = uid;
         }
 
-        public void abort() {
-            mAbort = true;
+        @Override
+        public int compareTo(LoadRequest other) {
+            if (batch != other.batch) {
+                return other.batch - batch;
+            }
+            return position - other.position;
         }
 
         @Override
         public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        }
-                        mRequestQueue.clear();
-                        return;
-                    }
-                    be = mRequestQueue.remove(0);
+            final BatteryEntry first = entries.get(0);
+            UidToDetail utd = sUidCache.get(uid);
+            final boolean cached = utd != null;
+            if (!cached) {
+                final long start = SystemClock.elapsedRealtime();
+                utd = resolveUid(first.context, uid);
+                recordResolve(SystemClock.elapsedRealtime() - start);
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                entries.get(i).setNameAndIcon(utd, i > 0 || cached);
+            }
+            if (!cached) {
+                // Uids without a label keep the name of their first entry.
+                if (utd.name == null) {
+                    utd.name = first.name;
+                }
+                if (utd.icon == null) {
+                    utd.icon = first.icon;
+                }
+                sUidCache.put(uid, utd);
+                if (utd.packages != null) {
+                    BatteryEntryLabelStore.getInstance(first.context).put(uid, utd.packages,
+                            utd.name, utd.packageName);
+                }
+            }
+            final Handler handler = sHandler;
+            if (handler != null) {
+                for (int i = 0; i < entries.size(); i++) {
+                    handler.sendMessage(handler.obtainMessage(MSG_UPDATE_NAME_ICON,
+                            entries.get(i)));
                 }
-                be.loadNameAndIcon();
             }
+            onRequestDone(first.context, batch);
         }
     }
 
-    private static NameAndIconLoader mRequestThread;
+    private static synchronized ExecutorService getLoaderExecutor() {
+        if (sLoaderExecutor == null) {
+            sLoaderExecutor = BackgroundExecutors.newPool("BatteryUsage Icon Loader",
+                    LOADER_POOL_SIZE, new PriorityBlockingQueue<Runnable>());
+        }
+        return sLoaderExecutor;
+    }
+
+    /**
+     * Starts reading the labels persisted by previous launches, so that the entries created
+     * next can show them right away.
+     */
+    public static void preloadLabels(Context context) {
+        BatteryEntryLabelStore.getInstance(context).preload();
+    }
 
     public static void startRequestQueue() {
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
-                }
+        if (sHandler == null) {
+            return;
+        }
+        final ExecutorService executor = getLoaderExecutor();
+        synchronized (sPendingRequests) {
+            if (sPendingRequests.isEmpty()) {
+                return;
             }
+            sBatch++;
+            sBatchRemaining = sPendingRequests.size();
+            synchronized (sStats) {
+                sStats.requests += sPendingRequests.size();
+            }
+            for (int i = 0; i < sPendingRequests.size(); i++) {
+                final LoadRequest request = sPendingRequests.get(i);
+                request.batch = sBatch;
+                request.position = i;
+                // Not submit(): the queue orders the requests themselves.
+                executor.execute(request);
+            }
+            sPendingRequests.clear();
+            sPendingRequestsByUid.clear();
         }
     }
 
     public static void stopRequestQueue() {
-        synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
+        synchronized (sPendingRequests) {
+            sPendingRequests.clear();
+            sPendingRequestsByUid.clear();
+            if (sLoaderExecutor != null) {
+                ((ThreadPoolExecutor) sLoaderExecutor).getQueue().clear();
             }
+            sBatch++;
+            sBatchRemaining = 0;
+            sHandler = null;
         }
     }
 
     public static void clearUidCache() {
-        sUidCache.clear();
+        sUidCache.evictAll();
+    }
+
+    private static void onRequestDone(Context context, int batch) {
+        synchronized (sPendingRequests) {
+            if (batch == sBatch && --sBatchRemaining == 0 && sHandler != null) {
+                sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
+            }
+        }
+        if (((ThreadPoolExecutor) getLoaderExecutor()).getQueue().isEmpty()) {
+            BatteryEntryLabelStore.getInstance(context).flush();
+        }
+    }
+
+    private static void recordResolve(long durationMs) {
+        synchronized (sStats) {
+            sStats.resolved++;
+            sStats.totalResolveMs += durationMs;
+            sStats.maxResolveMs = Math.max(sStats.maxResolveMs, durationMs);
+        }
+    }
+
+    public static JSONObject dumpStats() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        synchronized (sStats) {
+            obj.put("requests", sStats.requests);
+            obj.put("entries", sStats.entries);
+            obj.put("cacheHits", sStats.cacheHits);
+            obj.put("labelHits", sStats.labelHits);
+            obj.put("resolved", sStats.resolved);
+            obj.put("maxResolveMs", sStats.maxResolveMs);
+            obj.put("avgResolveMs", sStats.resolved > 0
+                    ? sStats.totalResolveMs / sStats.resolved : 0);
+        }
+        obj.put("cachedUids", sUidCache.size());
+        return obj;
     }
 
     public final Context context;
@@ -124,6 +256,7 @@ public class BatteryEntry {
         String name;
         String packageName;
         Drawable icon;
+        String[] packages;
     }
 
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
@@ -206,17 +339,20 @@ public class BatteryEntry {
     }
 
     void getQuickNameIconForUid(final int uid) {
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        final UidToDetail cached = sUidCache.get(uid);
+        if (cached != null) {
+            defaultPackageName = cached.packageName;
+            name = cached.name;
+            icon = copyIcon(cached.icon);
+            synchronized (sStats) {
+                sStats.cacheHits++;
+            }
             return;
         }
         PackageManager pm = context.getPackageManager();
         icon = pm.getDefaultActivityIcon();
-        if (pm.getPackagesForUid(uid) == null) {
+        final String[] packages = pm.getPackagesForUid(uid);
+        if (packages == null) {
             if (uid == 0) {
                 name = context.getResources().getString(R.string.process_kernel_label);
             } else if ("mediaserver".equals(name)) {
@@ -226,15 +362,48 @@ public class BatteryEntry {
             }
             iconId = R.drawable.ic_power_system;
             icon = context.getDrawable(iconId);
+        } else {
+            // Show the label of the previous launches until the icon is loaded.
+            final BatteryEntryLabelStore.Label label =
+                    BatteryEntryLabelStore.getInstance(context).get(uid, packages);
+            if (label != null) {
+                name = label.name;
+                defaultPackageName = label.packageName;
+                synchronized (sStats) {
+                    sStats.labelHits++;
+                }
+            }
         }
 
         if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
+            synchronized (sPendingRequests) {
+                LoadRequest request = sPendingRequestsByUid.get(uid);
+                if (request == null) {
+                    request = new LoadRequest(uid);
+                    sPendingRequestsByUid.put(uid, request);
+                    sPendingRequests.add(request);
+                }
+                request.entries.add(this);
+            }
+            synchronized (sStats) {
+                sStats.entries++;
             }
         }
     }
 
+    private static Drawable loadAppIcon(Context context, final ApplicationInfo ai, int userId) {
+        final PackageManager pm = context.getPackageManager();
+        return IconCache.getInstance(context).getIcon(
+                IconCache.getPackageKey(ai.packageName, Integer.toString(userId)),
+                context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size),
+                new IconCache.IconLoader() {
+                    @Override
+                    public Drawable loadIcon() {
+                        return ai.loadIcon(pm);
+                    }
+                });
+    }
+
     /**
      * Loads the app label and icon image and stores into the cache.
      */
@@ -243,89 +412,127 @@ public class BatteryEntry {
         if (sipper.uidObj == null) {
             return;
         }
-
-        PackageManager pm = context.getPackageManager();
         final int uid = sipper.uidObj.getUid();
-        sipper.mPackages = pm.getPackagesForUid(uid);
-        if (sipper.mPackages != null) {
-            String[] packageLabels = new String[sipper.mPackages.length];
-            System.arraycopy(sipper.mPackages, 0, packageLabels, 0, sipper.mPackages.length);
-
-            // Convert package names to user-facing labels where possible
-            IPackageManager ipm = AppGlobals.getPackageManager();
-            final int userId = UserHandle.getUserId(uid);
-            for (int i = 0; i < packageLabels.length; i++) {
-                try {
-                    final ApplicationInfo ai = ipm.getApplicationInfo(packageLabels[i],
-                            0 /* no flags */, userId);
-                    if (ai == null) {
-                        Log.d(PowerUsageSummary.TAG, "Retrieving null app info for package "
-                                + packageLabels[i] + ", user " + userId);
-                        continue;
-                    }
-                    CharSequence label = ai.loadLabel(pm);
-                    if (label != null) {
-                        packageLabels[i] = label.toString();
-                    }
-                    if (ai.icon != 0) {
-                        defaultPackageName = sipper.mPackages[i];
-                        icon = ai.loadIcon(pm);
-                        break;
-                    }
-                } catch (RemoteException e) {
-                    Log.d(PowerUsageSummary.TAG, "Error while retrieving app info for package "
-                            + packageLabels[i] + ", user " + userId, e);
-                }
+        final UidToDetail utd = resolveUid(context, uid);
+        setNameAndIcon(utd, false);
+        if (utd.name == null) {
+            utd.name = name;
+        }
+        if (utd.icon == null) {
+            utd.icon = icon;
+        }
+        sUidCache.put(uid, utd);
+        if (sHandler != null) {
+            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        }
+    }
+
+    /**
+     * Sets the name and icon resolved for the uid of this entry, keeping the quick ones if
+     * none was found.
+     *
+     * @param shared whether the icon is also used by other entries and must be copied.
+     */
+    void setNameAndIcon(UidToDetail utd, boolean shared) {
+        if (utd.packages != null) {
+            sipper.mPackages = utd.packages;
+        }
+        if (utd.name != null) {
+            name = utd.name;
+        } else if (name == null) {
+            name = Integer.toString(sipper.uidObj.getUid());
+        }
+        if (utd.packageName != null) {
+            defaultPackageName = utd.packageName;
+        }
+        if (utd.icon != null) {
+            icon = shared ? copyIcon(utd.icon) : utd.icon;
+        } else if (icon == null) {
+            icon = context.getPackageManager().getDefaultActivityIcon();
+        }
+    }
+
+    private Drawable copyIcon(Drawable drawable) {
+        // Views must not share a drawable.
+        final Drawable.ConstantState state = drawable != null ? drawable.getConstantState() : null;
+        return (state != null) ? state.newDrawable(context.getResources()) : drawable;
+    }
+
+    /**
+     * Resolves the label and icon of the packages of a uid. The PackageInfo of each package is
+     * only fetched once, and holds both its application info and its shared user label.
+     * The name and icon are left null when none is found.
+     */
+    static UidToDetail resolveUid(Context context, int uid) {
+        final UidToDetail utd = new UidToDetail();
+        final PackageManager pm = context.getPackageManager();
+        utd.packages = pm.getPackagesForUid(uid);
+        if (utd.packages == null) {
+            return utd;
+        }
+        final String[] packageLabels = new String[utd.packages.length];
+        System.arraycopy(utd.packages, 0, packageLabels, 0, utd.packages.length);
+        final PackageInfo[] infos = new PackageInfo[utd.packages.length];
+
+        // Convert package names to user-facing labels where possible
+        final IPackageManager ipm = AppGlobals.getPackageManager();
+        final int userId = UserHandle.getUserId(uid);
+        for (int i = 0; i < packageLabels.length; i++) {
+            final PackageInfo pi = getPackageInfo(ipm, utd.packages[i], userId, infos, i);
+            if (pi == null) {
+                continue;
+            }
+            final ApplicationInfo ai = pi.applicationInfo;
+            CharSequence label = ai.loadLabel(pm);
+            if (label != null) {
+                packageLabels[i] = label.toString();
             }
+            if (ai.icon != 0) {
+                utd.packageName = utd.packages[i];
+                utd.icon = loadAppIcon(context, ai, userId);
+                break;
+            }
+        }
 
-            if (packageLabels.length == 1) {
-                name = packageLabels[0];
-            } else {
-                // Look for an official name for this UID.
-                for (String pkgName : sipper.mPackages) {
-                    try {
-                        final PackageInfo pi = ipm.getPackageInfo(pkgName, 0 /* no flags */, userId);
-                        if (pi == null) {
-                            Log.d(PowerUsageSummary.TAG, "Retrieving null package info for package "
-                                    + pkgName + ", user " + userId);
-                            continue;
-                        }
-                        if (pi.sharedUserLabel != 0) {
-                            final CharSequence nm = pm.getText(pkgName,
-                                    pi.sharedUserLabel, pi.applicationInfo);
-                            if (nm != null) {
-                                name = nm.toString();
-                                if (pi.applicationInfo.icon != 0) {
-                                    defaultPackageName = pkgName;
-                                    icon = pi.applicationInfo.loadIcon(pm);
-                                }
-                                break;
-                            }
-                        }
-                    } catch (RemoteException e) {
-                        Log.d(PowerUsageSummary.TAG, "Error while retrieving package info for package "
-                                + pkgName + ", user " + userId, e);
+        if (packageLabels.length == 1) {
+            utd.name = packageLabels[0];
+        } else {
+            // Look for an official name for this UID.
+            for (int i = 0; i < utd.packages.length; i++) {
+                final PackageInfo pi = getPackageInfo(ipm, utd.packages[i], userId, infos, i);
+                if (pi == null || pi.sharedUserLabel == 0) {
+                    continue;
+                }
+                final CharSequence nm = pm.getText(utd.packages[i], pi.sharedUserLabel,
+                        pi.applicationInfo);
+                if (nm != null) {
+                    utd.name = nm.toString();
+                    if (pi.applicationInfo.icon != 0) {
+                        utd.packageName = utd.packages[i];
+                        utd.icon = loadAppIcon(context, pi.applicationInfo, userId);
                     }
+                    break;
                 }
             }
         }
+        return utd;
+    }
 
-        final String uidString = Integer.toString(uid);
-        if (name == null) {
-            name = uidString;
-        }
-
-        if (icon == null) {
-            icon = pm.getDefaultActivityIcon();
+    private static PackageInfo getPackageInfo(IPackageManager ipm, String pkgName, int userId,
+            PackageInfo[] infos, int index) {
+        if (infos[index] != null) {
+            return infos[index];
         }
-
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        try {
+            infos[index] = ipm.getPackageInfo(pkgName, 0 /* no flags */, userId);
+            if (infos[index] == null) {
+                Log.d(PowerUsageSummary.TAG, "Retrieving null package info for package "
+                        + pkgName + ", user " + userId);
+            }
+        } catch (RemoteException e) {
+            Log.d(PowerUsageSummary.TAG, "Error while retrieving package info for package "
+                    + pkgName + ", user " + userId, e);
         }
+        return infos[index];
     }
 }
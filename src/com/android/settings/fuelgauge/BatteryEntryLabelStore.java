@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.Context;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.settings.utils.BackgroundExecutors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Persisted labels of the uids resolved by {@link BatteryEntry}, so that the battery usage
+ * list can show them as soon as it is opened, before the package manager lookups finish.
+ *
+ * A label is only returned while the uid has the packages it was stored with, and while the
+ * locale and the build are the ones it was stored with. The file is read and written on a
+ * serial executor of the store: labels are not available until {@link #preload} finished, and
+ * the file is only written once it was read, so that the stored labels are merged first.
+ */
+public class BatteryEntryLabelStore {
+
+    private static final String TAG = "BatteryEntryLabelStore";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "battery_uid_labels";
+    private static final int VERSION = 1;
+
+    // Number of uids kept, the least recently used are dropped first
+    private static final int MAX_LABELS = 256;
+
+    private static BatteryEntryLabelStore sInstance;
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final ExecutorService mExecutor = BackgroundExecutors.newSerialPool(TAG);
+    private final LruCache<Integer, Label> mLabels = new LruCache<>(MAX_LABELS);
+    // Locale of the labels
+    private String mLocale;
+    private boolean mLoadStarted;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    static class Label {
+        final String[] packages;
+        final String name;
+        final String packageName;
+
+        Label(String[] packages, String name, String packageName) {
+            this.packages = packages;
+            this.name = name;
+            this.packageName = packageName;
+        }
+    }
+
+    private BatteryEntryLabelStore(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    public static synchronized BatteryEntryLabelStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BatteryEntryLabelStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts reading the labels from the file, if not done yet.
+     */
+    public void preload() {
+        synchronized (this) {
+            if (mLoadStarted) {
+                return;
+            }
+            mLoadStarted = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Returns the label stored for the uid, or null if there is none for its current packages.
+     */
+    public synchronized Label get(int uid, String[] packages) {
+        if (!mLoaded || !TextUtils.equals(mLocale, getCurrentLocale())) {
+            return null;
+        }
+        final Label label = mLabels.get(uid);
+        if (label == null || !Arrays.equals(label.packages, packages)) {
+            return null;
+        }
+        return label;
+    }
+
+    public synchronized void put(int uid, String[] packages, String name, String packageName) {
+        if (packages == null || name == null) {
+            return;
+        }
+        final String locale = getCurrentLocale();
+        if (!TextUtils.equals(mLocale, locale)) {
+            mLabels.evictAll();
+            mLocale = locale;
+        }
+        final Label current = mLabels.get(uid);
+        if (current != null && Arrays.equals(current.packages, packages)
+                && TextUtils.equals(current.name, name)
+                && TextUtils.equals(current.packageName, packageName)) {
+            return;
+        }
+        mLabels.put(uid, new Label(packages, name, packageName));
+        mDirty = true;
+    }
+
+    /**
+     * Writes the labels if they changed since they were read or last written. The write is
+     * queued after the read of the file, and writes the stored labels merged with the new ones.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+        }
+        preload();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] data;
+                synchronized (BatteryEntryLabelStore.this) {
+                    if (!mDirty) {
+                        // Written by an earlier flush.
+                        return;
+                    }
+                    mDirty = false;
+                    data = serializeLocked();
+                }
+                if (data == null) {
+                    return;
+                }
+                FileOutputStream fos = null;
+                try {
+                    fos = mFile.startWrite();
+                    fos.write(data);
+                    mFile.finishWrite(fos);
+                } catch (IOException e) {
+                    Log.w(TAG, "Problem writing " + mFile.getBaseFile(), e);
+                    if (fos != null) {
+                        mFile.failWrite(fos);
+                    }
+                }
+            }
+        });
+    }
+
+    private String getCurrentLocale() {
+        return mContext.getResources().getConfiguration().getLocales().toLanguageTags();
+    }
+
+    private void load() {
+        final byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            setLoaded();
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading " + mFile.getBaseFile(), e);
+            setLoaded();
+            return;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final LruCache<Integer, Label> labels = new LruCache<>(MAX_LABELS);
+        String locale = null;
+        try {
+            if (in.readInt() == VERSION && TextUtils.equals(in.readUTF(), Build.FINGERPRINT)) {
+                locale = in.readUTF();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final int uid = in.readInt();
+                    final String[] packages = new String[in.readInt()];
+                    for (int j = 0; j < packages.length; j++) {
+                        packages[j] = in.readUTF();
+                    }
+                    final String name = in.readUTF();
+                    final String packageName = in.readBoolean() ? in.readUTF() : null;
+                    labels.put(uid, new Label(packages, name, packageName));
+                }
+            } else if (DEBUG) {
+                Log.d(TAG, "Ignoring " + mFile.getBaseFile() + " of another build");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading " + mFile.getBaseFile(), e);
+            labels.evictAll();
+        }
+        synchronized (this) {
+            // Labels resolved while loading are more recent than the stored ones.
+            if (mLocale == null || TextUtils.equals(mLocale, locale)) {
+                for (Map.Entry<Integer, Label> entry : labels.snapshot().entrySet()) {
+                    if (mLabels.get(entry.getKey()) == null) {
+                        mLabels.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                mLocale = locale;
+            }
+            mLoaded = true;
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + labels.size() + " labels");
+    }
+
+    private synchronized void setLoaded() {
+        mLoaded = true;
+    }
+
+    private byte[] serializeLocked() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeUTF(mLocale);
+            // Least recently used first, so that reading them back keeps their order.
+            final Map<Integer, Label> labels = mLabels.snapshot();
+            out.writeInt(labels.size());
+            for (Map.Entry<Integer, Label> entry : labels.entrySet()) {
+                final Label label = entry.getValue();
+                out.writeInt(entry.getKey());
+                out.writeInt(label.packages.length);
+                for (String pkg : label.packages) {
+                    out.writeUTF(pkg);
+                }
+                out.writeUTF(label.name);
+                out.writeBoolean(label.packageName != null);
+                if (label.packageName != null) {
+                    out.writeUTF(label.packageName);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Cannot happen, writing to memory
+            Log.w(TAG, "Problem serializing labels", e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -58,10 +58,18 @@ public class BatteryHistoryPreference extends Preference {
     }
 
     public void setStats(BatteryStatsHelper batteryStats) {
-        mHelper = batteryStats;
         final long elapsedRealtimeUs = SystemClock.elapsedRealtime() * 1000;
-        mBatteryInfo = BatteryInfo.getBatteryInfo(getContext(), batteryStats.getBatteryBroadcast(),
-                batteryStats.getStats(), elapsedRealtimeUs);
+        setBatteryInfo(batteryStats, BatteryInfo.getBatteryInfo(getContext(),
+                batteryStats.getBatteryBroadcast(), batteryStats.getStats(), elapsedRealtimeUs));
+    }
+
+    /**
+     * Shows battery info already computed from the stats of the helper, for callers refreshing
+     * the stats in the background.
+     */
+    public void setBatteryInfo(BatteryStatsHelper batteryStats, BatteryInfo batteryInfo) {
+        mHelper = batteryStats;
+        mBatteryInfo = batteryInfo;
         notifyChanged();
     }
 
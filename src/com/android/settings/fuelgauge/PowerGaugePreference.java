@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.v7.preference.PreferenceViewHolder;
+import android.text.TextUtils;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -54,7 +55,11 @@ public class PowerGaugePreference extends TintablePreference {
     }
 
     public void setPercent(double percentOfMax, double percentOfTotal) {
-        mProgress = Utils.formatPercentage((int) (percentOfTotal + 0.5));
+        final CharSequence progress = Utils.formatPercentage((int) (percentOfTotal + 0.5));
+        if (TextUtils.equals(progress, mProgress)) {
+            return;
+        }
+        mProgress = progress;
         notifyChanged();
     }
 
@@ -62,6 +67,10 @@ public class PowerGaugePreference extends TintablePreference {
         return mInfo;
     }
 
+    void setInfo(BatteryEntry info) {
+        mInfo = info;
+    }
+
     @Override
     public void onBindViewHolder(PreferenceViewHolder view) {
         super.onBindViewHolder(view);
@@ -66,7 +66,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     @Override
     public void onStart() {
         super.onStart();
-        mStatsHelper.clearStats();
+        clearStats();
     }
 
     @Override
@@ -77,7 +77,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
         if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
             mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
+            clearStats();
         }
     }
 
@@ -97,7 +97,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     public void onDestroy() {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
-            mStatsHelper.storeState();
+            storeState();
         }
     }
 
@@ -114,7 +114,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
+                clearStats();
                 refreshStats();
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
@@ -126,6 +126,21 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
         mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, mUm.getUserProfiles());
     }
 
+    /**
+     * Drops the stats so that the next refresh loads them again. Subclasses refreshing the
+     * stats in the background drop them on the thread of the refresh instead.
+     */
+    protected void clearStats() {
+        mStatsHelper.clearStats();
+    }
+
+    /**
+     * Keeps the stats for the fragment recreated after a configuration change.
+     */
+    protected void storeState() {
+        mStatsHelper.storeState();
+    }
+
     protected void updatePreference(BatteryHistoryPreference historyPref) {
         historyPref.setStats(mStatsHelper);
     }
@@ -151,7 +166,7 @@ public abstract class PowerUsageBase extends SettingsPreferenceFragment {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
+                    clearStats();
                     refreshStats();
                     break;
             }
@@ -82,20 +82,54 @@ public class PowerUsageDetail extends PowerUsageBase implements Button.OnClickLi
         R.string.battery_desc_camera,
     };
 
+    /**
+     * The values of a {@link BatteryStatsHelper} the detail page is built from. Taken on the
+     * thread that refreshed the helper, so that the page can be opened while the helper is
+     * refreshed again.
+     */
+    public static class StatsSnapshot {
+        final BatteryStats stats;
+        final int helperStatsType;
+        final double totalPower;
+        final double maxPower;
+        final long statsPeriod;
+        final double batteryCapacity;
+        final double computedPower;
+        final double minDrainedPower;
+        final double maxDrainedPower;
+
+        public StatsSnapshot(BatteryStatsHelper helper) {
+            // Initialize mStats if necessary.
+            stats = helper.getStats();
+            helperStatsType = helper.getStatsType();
+            totalPower = helper.getTotalPower();
+            maxPower = helper.getMaxPower();
+            statsPeriod = helper.getStatsPeriod();
+            batteryCapacity = helper.getPowerProfile().getBatteryCapacity();
+            computedPower = helper.getComputedPower();
+            minDrainedPower = helper.getMinDrainedPower();
+            maxDrainedPower = helper.getMaxDrainedPower();
+        }
+    }
+
     public static void startBatteryDetailPage(
             SettingsActivity caller, BatteryStatsHelper helper, int statsType, BatteryEntry entry,
             boolean showLocationButton, boolean includeAppInfo) {
-        // Initialize mStats if necessary.
-        helper.getStats();
+        startBatteryDetailPage(caller, new StatsSnapshot(helper), statsType, entry,
+                showLocationButton, includeAppInfo);
+    }
 
-        final int dischargeAmount = helper.getStats().getDischargeAmount(statsType);
+    public static void startBatteryDetailPage(
+            SettingsActivity caller, StatsSnapshot snapshot, int statsType, BatteryEntry entry,
+            boolean showLocationButton, boolean includeAppInfo) {
+        final int dischargeAmount = snapshot.stats.getDischargeAmount(statsType);
         Bundle args = new Bundle();
         args.putString(PowerUsageDetail.EXTRA_TITLE, entry.name);
         args.putInt(PowerUsageDetail.EXTRA_PERCENT, (int)
-                ((entry.sipper.totalPowerMah * dischargeAmount / helper.getTotalPower()) + .5));
+                ((entry.sipper.totalPowerMah * dischargeAmount / snapshot.totalPower) + .5));
         args.putInt(PowerUsageDetail.EXTRA_GAUGE, (int)
-                Math.ceil(entry.sipper.totalPowerMah * 100 / helper.getMaxPower()));
-        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, helper.getStatsPeriod());
+                Math.ceil(entry.sipper.totalPowerMah * 100 / snapshot.maxPower));
+        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, snapshot.statsPeriod);
         args.putString(PowerUsageDetail.EXTRA_ICON_PACKAGE, entry.defaultPackageName);
         args.putInt(PowerUsageDetail.EXTRA_ICON_ID, entry.iconId);
         args.putDouble(PowerUsageDetail.EXTRA_NO_COVERAGE, entry.sipper.noCoveragePercent);
@@ -152,15 +186,15 @@ public class PowerUsageDetail extends PowerUsageBase implements Button.OnClickLi
                 if (entry.sipper.drainType == BatterySipper.DrainType.APP) {
                     Writer result = new StringWriter();
                     PrintWriter printWriter = new FastPrintWriter(result, false, 1024);
-                    helper.getStats().dumpLocked(caller, printWriter, "", helper.getStatsType(),
+                    snapshot.stats.dumpLocked(caller, printWriter, "", snapshot.helperStatsType,
                             uid.getUid());
                     printWriter.flush();
                     args.putString(PowerUsageDetail.EXTRA_REPORT_DETAILS, result.toString());
 
                     result = new StringWriter();
                     printWriter = new FastPrintWriter(result, false, 1024);
-                    helper.getStats().dumpCheckinLocked(caller, printWriter, helper.getStatsType(),
-                            uid.getUid());
+                    snapshot.stats.dumpCheckinLocked(caller, printWriter,
+                            snapshot.helperStatsType, uid.getUid());
                     printWriter.flush();
                     args.putString(PowerUsageDetail.EXTRA_REPORT_CHECKIN_DETAILS,
                             result.toString());
@@ -244,9 +278,9 @@ public class PowerUsageDetail extends PowerUsageBase implements Button.OnClickLi
                     R.string.usage_type_actual_power,
                 };
                 values = new double[] {
-                    helper.getPowerProfile().getBatteryCapacity(),
-                    helper.getComputedPower(),
-                    helper.getMinDrainedPower(),
+                    snapshot.batteryCapacity,
+                    snapshot.computedPower,
+                    snapshot.minDrainedPower,
                 };
             } break;
             case OVERCOUNTED:
@@ -257,9 +291,9 @@ public class PowerUsageDetail extends PowerUsageBase implements Button.OnClickLi
                     R.string.usage_type_actual_power,
                 };
                 values = new double[] {
-                    helper.getPowerProfile().getBatteryCapacity(),
-                    helper.getComputedPower(),
-                    helper.getMaxDrainedPower(),
+                    snapshot.batteryCapacity,
+                    snapshot.computedPower,
+                    snapshot.maxDrainedPower,
                 };
             } break;
             default:
@@ -19,12 +19,14 @@ package com.android.settings.fuelgauge;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.support.annotation.VisibleForTesting;
 import android.support.v7.preference.Preference;
@@ -32,6 +34,8 @@ import android.support.v7.preference.PreferenceGroup;
 import android.support.v14.preference.SwitchPreference;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.Log;
 import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.Menu;
@@ -47,12 +51,14 @@ import com.android.settings.SettingsActivity;
 import com.android.settings.applications.ManageApplications;
 import com.android.settings.dashboard.SummaryLoader;
 import com.android.settings.overlay.FeatureFactory;
+import com.android.settings.utils.BackgroundExecutors;
 import com.android.settingslib.BatteryInfo;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
@@ -70,6 +76,7 @@ public class PowerUsageSummary extends PowerUsageBase {
     private static final String KEY_APP_LIST = "app_list";
     private static final String KEY_BATTERY_HISTORY = "battery_history";
     private static final String KEY_BATTERY_PCT = "battery_pct";
+    private static final String KEY_NOT_AVAILABLE = "not_available";
 
     private static final int MENU_STATS_TYPE = Menu.FIRST;
     private static final int MENU_HIGH_POWER_APPS = Menu.FIRST + 3;
@@ -91,12 +98,28 @@ public class PowerUsageSummary extends PowerUsageBase {
 
     private static String mLanguale = null;
 
+    // Runs the refreshes one at a time: only its thread touches the stats helper while the
+    // list is shown
+    private static ExecutorService sRefreshExecutor;
+
+    // Refresh computing the stats in the background, null when none is running
+    private RefreshTask mRefreshTask;
+    // Whether the next refresh drops the stats first
+    private boolean mClearPending;
+    // Values of the stats the rows were computed from, for the detail page
+    private PowerUsageDetail.StatsSnapshot mStatsSnapshot;
+    // Rows shown by the last refresh, by preference key
+    private final ArrayMap<String, UsageRow> mRows = new ArrayMap<>();
+    // Stats type of the rows, a refresh with another type rebuilds the list
+    private int mRowsStatsType = -1;
+
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         setAnimationAllowed(true);
 
         checkLanguageChange();
+        BatteryEntry.preloadLabels(getActivity());
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mHistPref = (BatteryHistoryPreference) findPreference(KEY_BATTERY_HISTORY);
@@ -124,6 +147,7 @@ public class PowerUsageSummary extends PowerUsageBase {
 
     @Override
     public void onPause() {
+        cancelRefresh();
         BatteryEntry.stopRequestQueue();
         mHandler.removeMessages(BatteryEntry.MSG_UPDATE_NAME_ICON);
         super.onPause();
@@ -155,8 +179,10 @@ public class PowerUsageSummary extends PowerUsageBase {
         }
         PowerGaugePreference pgp = (PowerGaugePreference) preference;
         BatteryEntry entry = pgp.getInfo();
-        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(), mStatsHelper,
-                mStatsType, entry, true, true);
+        // The entry and the snapshot come from the same refresh, the helper may be refreshed
+        // again in the background.
+        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(),
+                mStatsSnapshot, mStatsType, entry, true, true);
         return super.onPreferenceTreeClick(preference);
     }
 
@@ -215,11 +241,10 @@ public class PowerUsageSummary extends PowerUsageBase {
     }
 
     private void addNotAvailableMessage() {
-        final String NOT_AVAILABLE = "not_available";
-        Preference notAvailable = getCachedPreference(NOT_AVAILABLE);
+        Preference notAvailable = mAppListGroup.findPreference(KEY_NOT_AVAILABLE);
         if (notAvailable == null) {
             notAvailable = new Preference(getPrefContext());
-            notAvailable.setKey(NOT_AVAILABLE);
+            notAvailable.setKey(KEY_NOT_AVAILABLE);
             notAvailable.setTitle(R.string.power_usage_not_available);
             mAppListGroup.addPreference(notAvailable);
         }
@@ -327,113 +352,286 @@ public class PowerUsageSummary extends PowerUsageBase {
         return sipper.drainType != BatterySipper.DrainType.SCREEN;
     }
 
+    /**
+     * Drops the stats when the next refresh starts, on the thread of the refresh.
+     */
+    @Override
+    protected void clearStats() {
+        mClearPending = true;
+    }
+
+    /**
+     * Stores the stats once the refresh in flight, if any, is done with the helper.
+     */
+    @Override
+    protected void storeState() {
+        getRefreshExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mStatsHelper.storeState();
+            }
+        });
+    }
+
+    @Override
     protected void refreshStats() {
-        super.refreshStats();
-        updatePreference(mHistPref);
-        cacheRemoveAllPrefs(mAppListGroup);
-        mAppListGroup.setOrderingAsAdded(false);
-        boolean addedSome = false;
+        cancelRefresh();
+        mRefreshTask = new RefreshTask(getActivity().getApplicationContext(), mStatsType,
+                mClearPending);
+        mClearPending = false;
+        mRefreshTask.executeOnExecutor(getRefreshExecutor());
+    }
+
+    /**
+     * Cancels the refresh in flight. A refresh that was to drop the stats leaves that to the
+     * next one.
+     */
+    private void cancelRefresh() {
+        if (mRefreshTask != null) {
+            mRefreshTask.cancel(false);
+            mClearPending |= mRefreshTask.mClear;
+            mRefreshTask = null;
+        }
+    }
 
+    private static synchronized ExecutorService getRefreshExecutor() {
+        if (sRefreshExecutor == null) {
+            sRefreshExecutor = BackgroundExecutors.newSerialPool("PowerUsageRefresh");
+        }
+        return sRefreshExecutor;
+    }
+
+    /**
+     * Computes the rows of the list from the stats. Called on the background thread of the
+     * refresh.
+     *
+     * @return the rows to show, or null if the refresh was cancelled.
+     */
+    private List<UsageRow> computeUsageRows(int statsType, AsyncTask<?, ?, ?> task) {
+        final List<UsageRow> rows = new ArrayList<>();
         final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
         final BatteryStats stats = mStatsHelper.getStats();
         final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+        if (averagePower < MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP && !USE_FAKE_DATA) {
+            return rows;
+        }
+        final List<BatterySipper> usageList = getCoalescedUsageList(
+                USE_FAKE_DATA ? getFakeStats() : mStatsHelper.getUsageList());
 
-        TypedValue value = new TypedValue();
-        getContext().getTheme().resolveAttribute(android.R.attr.colorControlNormal, value, true);
-        int colorControl = getContext().getColor(value.resourceId);
-
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP || USE_FAKE_DATA) {
-            final List<BatterySipper> usageList = getCoalescedUsageList(
-                    USE_FAKE_DATA ? getFakeStats() : mStatsHelper.getUsageList());
-
-            final int dischargeAmount = USE_FAKE_DATA ? 5000
-                    : stats != null ? stats.getDischargeAmount(mStatsType) : 0;
-            final int numSippers = usageList.size();
-            for (int i = 0; i < numSippers; i++) {
-                final BatterySipper sipper = usageList.get(i);
-                double totalPower = USE_FAKE_DATA ? 4000 : mStatsHelper.getTotalPower();
-                final double percentOfTotal =
-                        ((sipper.totalPowerMah / totalPower) * dischargeAmount);
-                if (sipperCanBePruned(sipper)) {
-                    if ((sipper.totalPowerMah * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
-                        continue;
-                    }
-                    if (((int) (percentOfTotal + .5)) < 1) {
-                        continue;
-                    }
+        final int dischargeAmount = USE_FAKE_DATA ? 5000
+                : stats != null ? stats.getDischargeAmount(statsType) : 0;
+        final double totalPower = USE_FAKE_DATA ? 4000 : mStatsHelper.getTotalPower();
+        final int numSippers = usageList.size();
+        for (int i = 0; i < numSippers; i++) {
+            if (task.isCancelled()) {
+                return null;
+            }
+            final BatterySipper sipper = usageList.get(i);
+            final double percentOfTotal =
+                    ((sipper.totalPowerMah / totalPower) * dischargeAmount);
+            if (sipperCanBePruned(sipper)) {
+                if ((sipper.totalPowerMah * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
+                    continue;
                 }
-                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
-                    // Don't show over-counted unless it is at least 2/3 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < ((mStatsHelper.getMaxRealPower()*2)/3)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 10) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE) || "userdebug".equals(Build.TYPE) || "eng".equals(Build.TYPE)) {
-                        continue;
-                    }
+                if (((int) (percentOfTotal + .5)) < 1) {
+                    continue;
                 }
-                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
-                    // Don't show over-counted unless it is at least 1/2 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.totalPowerMah < (mStatsHelper.getMaxRealPower()/2)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 5) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE) || "userdebug".equals(Build.TYPE) || "eng".equals(Build.TYPE)) {
-                        continue;
-                    }
+            }
+            if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
+                // Don't show over-counted unless it is at least 2/3 the size of
+                // the largest real entry, and its percent of total is more significant
+                if (sipper.totalPowerMah < ((mStatsHelper.getMaxRealPower()*2)/3)) {
+                    continue;
                 }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
-                final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
-                        userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final String key = sipper.drainType == DrainType.APP ? sipper.getPackages() != null
-                        ? TextUtils.concat(sipper.getPackages()).toString()
-                        : String.valueOf(sipper.getUid())
-                        : sipper.drainType.toString();
-                PowerGaugePreference pref = (PowerGaugePreference) getCachedPreference(key);
-                if (pref == null) {
-                    pref = new PowerGaugePreference(getPrefContext(), badgedIcon,
-                            contentDescription, entry);
-                    pref.setKey(key);
+                if (percentOfTotal < 10) {
+                    continue;
                 }
-
-                final double percentOfMax = (sipper.totalPowerMah * 100)
-                        / mStatsHelper.getMaxPower();
-                sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
+                if ("user".equals(Build.TYPE) || "userdebug".equals(Build.TYPE) || "eng".equals(Build.TYPE)) {
+                    continue;
+                }
+            }
+            if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
+                // Don't show over-counted unless it is at least 1/2 the size of
+                // the largest real entry, and its percent of total is more significant
+                if (sipper.totalPowerMah < (mStatsHelper.getMaxRealPower()/2)) {
+                    continue;
+                }
+                if (percentOfTotal < 5) {
+                    continue;
                 }
-                if ((sipper.drainType != DrainType.APP || sipper.uidObj.getUid() == 0)
-                         && sipper.drainType != DrainType.USER) {
-                    pref.setTint(colorControl);
+                if ("user".equals(Build.TYPE) || "userdebug".equals(Build.TYPE) || "eng".equals(Build.TYPE)) {
+                    continue;
                 }
-                addedSome = true;
+            }
+            final double percentOfMax = (sipper.totalPowerMah * 100)
+                    / mStatsHelper.getMaxPower();
+            sipper.percent = percentOfTotal;
+            rows.add(new UsageRow(sipper, percentOfTotal, percentOfMax));
+            if (rows.size() > (MAX_ITEMS_TO_LIST + 1)) {
+                break;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Updates the list with the rows of a refresh. Rows are matched with the ones of the
+     * previous refresh by uid or drain type: their preference is kept, and only updated where
+     * what it shows changed. The list is rebuilt when the stats type changed.
+     */
+    private void bindUsageRows(int statsType, List<UsageRow> rows, BatteryInfo batteryInfo) {
+        mHistPref.setBatteryInfo(mStatsHelper, batteryInfo);
+        mAppListGroup.setOrderingAsAdded(false);
+        if (statsType != mRowsStatsType) {
+            mAppListGroup.removeAll();
+            mRows.clear();
+            mRowsStatsType = statsType;
+        }
+
+        final Preference notAvailable = mAppListGroup.findPreference(KEY_NOT_AVAILABLE);
+        if (notAvailable != null && !rows.isEmpty()) {
+            mAppListGroup.removePreference(notAvailable);
+        }
+
+        TypedValue value = new TypedValue();
+        getContext().getTheme().resolveAttribute(android.R.attr.colorControlNormal, value, true);
+        int colorControl = getContext().getColor(value.resourceId);
+
+        final ArrayMap<String, UsageRow> previousRows = new ArrayMap<>(mRows);
+        mRows.clear();
+        int updated = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            final UsageRow row = rows.get(i);
+            final BatterySipper sipper = row.sipper;
+            final UsageRow previous = previousRows.remove(row.key);
+            PowerGaugePreference pref = (PowerGaugePreference) mAppListGroup.findPreference(
+                    row.key);
+            if (previous != null && pref != null
+                    && previous.sipper.totalPowerMah == sipper.totalPowerMah) {
+                // Unchanged, keep the entry and its resolved name and icon.
+                row.entry = previous.entry;
+            } else {
+                row.entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+            }
+            final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
+            if (pref == null) {
+                final Drawable badgedIcon = mUm.getBadgedIconForUser(row.entry.getIcon(),
+                        userHandle);
+                final CharSequence contentDescription = mUm.getBadgedLabelForUser(
+                        row.entry.getLabel(), userHandle);
+                pref = new PowerGaugePreference(getPrefContext(), badgedIcon,
+                        contentDescription, row.entry);
+                pref.setKey(row.key);
+                pref.setTitle(row.entry.getLabel());
                 mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() - getCachedCount()
-                        > (MAX_ITEMS_TO_LIST + 1)) {
-                    break;
+                updated++;
+            } else if (row.entry != pref.getInfo()) {
+                pref.setInfo(row.entry);
+                if (!TextUtils.equals(pref.getTitle(), row.entry.getLabel())) {
+                    pref.setIcon(mUm.getBadgedIconForUser(row.entry.getIcon(), userHandle));
+                    pref.setTitle(row.entry.getLabel());
+                    pref.setContentDescription(mUm.getBadgedLabelForUser(
+                            row.entry.getLabel(), userHandle));
                 }
+                updated++;
+            }
+            pref.setOrder(i + 1);
+            pref.setPercent(row.percentOfMax, row.percentOfTotal);
+            if ((sipper.drainType != DrainType.APP || sipper.uidObj.getUid() == 0)
+                     && sipper.drainType != DrainType.USER) {
+                pref.setTint(colorControl);
             }
+            mRows.put(row.key, row);
         }
-        if (!addedSome) {
+        for (int i = 0; i < previousRows.size(); i++) {
+            final Preference pref = mAppListGroup.findPreference(previousRows.keyAt(i));
+            if (pref != null) {
+                mAppListGroup.removePreference(pref);
+            }
+        }
+        if (rows.isEmpty()) {
             addNotAvailableMessage();
         }
-        removeCachedPrefs(mAppListGroup);
+        if (DEBUG) Log.d(TAG, "Bound " + rows.size() + " rows, " + updated + " updated, "
+                + previousRows.size() + " removed");
 
         BatteryEntry.startRequestQueue();
     }
 
+    /**
+     * Drops and refreshes the stats and computes the rows of the list in the background, then
+     * binds them. Cancelled when the fragment pauses or another refresh starts.
+     */
+    private class RefreshTask extends AsyncTask<Void, Void, List<UsageRow>> {
+        private final Context mAppContext;
+        private final int mType;
+        private final boolean mClear;
+        private PowerUsageDetail.StatsSnapshot mSnapshot;
+        private BatteryInfo mBatteryInfo;
+
+        RefreshTask(Context appContext, int statsType, boolean clear) {
+            mAppContext = appContext;
+            mType = statsType;
+            mClear = clear;
+        }
+
+        @Override
+        protected List<UsageRow> doInBackground(Void... params) {
+            if (isCancelled()) {
+                return null;
+            }
+            if (mClear) {
+                mStatsHelper.clearStats();
+            }
+            PowerUsageSummary.super.refreshStats();
+            if (isCancelled()) {
+                return null;
+            }
+            final List<UsageRow> rows = computeUsageRows(mType, this);
+            if (rows != null) {
+                mSnapshot = new PowerUsageDetail.StatsSnapshot(mStatsHelper);
+                // Walks the history for the graph, keep it off the main thread too.
+                mBatteryInfo = BatteryInfo.getBatteryInfo(mAppContext,
+                        mStatsHelper.getBatteryBroadcast(), mSnapshot.stats,
+                        SystemClock.elapsedRealtime() * 1000);
+            }
+            return rows;
+        }
+
+        @Override
+        protected void onPostExecute(List<UsageRow> rows) {
+            if (mRefreshTask != this) {
+                // Superseded by a newer refresh.
+                return;
+            }
+            mRefreshTask = null;
+            if (rows == null || getActivity() == null) {
+                return;
+            }
+            mStatsSnapshot = mSnapshot;
+            bindUsageRows(mType, rows, mBatteryInfo);
+        }
+    }
+
+    /**
+     * A sipper shown in the list, keyed by its uid or, for sippers without one, its drain type.
+     */
+    private static class UsageRow {
+        final BatterySipper sipper;
+        final String key;
+        final double percentOfTotal;
+        final double percentOfMax;
+        BatteryEntry entry;
+
+        UsageRow(BatterySipper sipper, double percentOfTotal, double percentOfMax) {
+            this.sipper = sipper;
+            this.key = sipper.uidObj != null ? Integer.toString(sipper.uidObj.getUid())
+                    : sipper.drainType.toString();
+            this.percentOfTotal = percentOfTotal;
+            this.percentOfMax = percentOfMax;
+        }
+    }
+
     private static List<BatterySipper> getFakeStats() {
         ArrayList<BatterySipper> stats = new ArrayList<>();
         float use = 5;
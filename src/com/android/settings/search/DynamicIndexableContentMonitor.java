@@ -39,6 +39,7 @@ import android.print.PrintManager;
 import android.print.PrintServicesLoader;
 import android.printservice.PrintServiceInfo;
 import android.provider.UserDictionary;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.accessibility.AccessibilityManager;
 import android.view.inputmethod.InputMethodInfo;
@@ -49,8 +50,12 @@ import com.android.settings.accessibility.AccessibilitySettings;
 import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener,
@@ -59,12 +64,23 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
 
+    // Window during which reindex requests of the same indexable class are merged
+    private static final long DELAY_PROCESS_REINDEX = 2000;
+
     private static final int MSG_PACKAGE_AVAILABLE = 1;
     private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_REINDEX = 3;
+
+    // Process wide, across all the monitored activities
+    private static final AtomicInteger sEventsReceived = new AtomicInteger();
+    private static final AtomicInteger sReindexesPerformed = new AtomicInteger();
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // Indexable class name to whether its rows must be rebuilt, waiting for MSG_REINDEX
+    private final ArrayMap<String, Boolean> mPendingReindexes = new ArrayMap<String, Boolean>();
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -78,6 +94,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     String packageName = (String) msg.obj;
                     handlePackageUnavailable(packageName);
                 } break;
+
+                case MSG_REINDEX: {
+                    processPendingReindexes();
+                } break;
             }
         }
     };
@@ -89,6 +109,17 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     private boolean mHasFeatureIme;
     private boolean mRegistered;
 
+    /**
+     * Returns the number of events that asked for a reindex and the number of reindexes that
+     * were actually run for them.
+     */
+    public static JSONObject dump() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        obj.put("eventsReceived", sEventsReceived.get());
+        obj.put("reindexesPerformed", sReindexesPerformed.get());
+        return obj;
+    }
+
     private static Intent getAccessibilityServiceIntent(String packageName) {
         final Intent intent = new Intent(AccessibilityService.SERVICE_INTERFACE);
         intent.setPackage(packageName);
@@ -169,6 +200,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
         super.unregister();
 
+        // Do not lose the changes seen so far.
+        mHandler.removeMessages(MSG_REINDEX);
+        processPendingReindexes();
+
         InputManager inputManager = (InputManager) mContext.getSystemService(
                 Context.INPUT_SERVICE);
         inputManager.unregisterInputDeviceListener(this);
@@ -214,8 +249,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        requestReindex(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -225,8 +259,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        requestReindex(InputMethodAndLanguageSettings.class.getName(), true);
     }
 
     private void postMessage(int what, String packageName) {
@@ -234,14 +267,44 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         mHandler.sendMessageDelayed(message, DELAY_PROCESS_PACKAGE_CHANGE);
     }
 
+    /**
+     * Schedules a reindex of the given indexable class. Requests for the same class arriving
+     * before the reindex runs are merged into it.
+     */
+    private void requestReindex(String className, boolean rebuild) {
+        sEventsReceived.incrementAndGet();
+        final Boolean pendingRebuild = mPendingReindexes.get(className);
+        mPendingReindexes.put(className, rebuild || (pendingRebuild != null && pendingRebuild));
+        if (!mHandler.hasMessages(MSG_REINDEX)) {
+            mHandler.sendEmptyMessageDelayed(MSG_REINDEX, DELAY_PROCESS_REINDEX);
+        }
+    }
+
+    private void processPendingReindexes() {
+        final int count = mPendingReindexes.size();
+        if (count == 0) {
+            return;
+        }
+        final Index index = Index.getInstance(mContext);
+        for (int i = 0; i < count; i++) {
+            index.updateFromClassNameResource(mPendingReindexes.keyAt(i),
+                    mPendingReindexes.valueAt(i), true);
+        }
+        mPendingReindexes.clear();
+        sReindexesPerformed.addAndGet(count);
+        Log.d(TAG, "Reindexed " + count + " classes, events received: " + sEventsReceived.get()
+                + ", reindexes performed: " + sReindexesPerformed.get());
+    }
+
     private void handlePackageAvailable(String packageName) {
+        Index.getInstance(mContext).invalidateRemoteProvider(packageName);
+
         if (!mAccessibilityServices.contains(packageName)) {
             final Intent intent = getAccessibilityServiceIntent(packageName);
             List<?> services = mContext.getPackageManager().queryIntentServices(intent, 0);
             if (services != null && !services.isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                requestReindex(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -251,27 +314,26 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 List<?> services = mContext.getPackageManager().queryIntentServices(intent, 0);
                 if (services != null && !services.isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    requestReindex(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
     }
 
     private void handlePackageUnavailable(String packageName) {
+        Index.getInstance(mContext).invalidateRemoteProvider(packageName);
+
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            requestReindex(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeatureIme) {
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                requestReindex(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -286,8 +348,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     @Override
     public void onLoadFinished(Loader<List<PrintServiceInfo>> loader,
             List<PrintServiceInfo> services) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                PrintSettingsFragment.class.getName(), false, true);
+        requestReindex(PrintSettingsFragment.class.getName(), false);
     }
 
     @Override
@@ -304,8 +365,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                requestReindex(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
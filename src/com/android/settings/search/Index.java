@@ -27,16 +27,17 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -46,21 +47,34 @@ import android.util.Xml;
 import com.android.settings.R;
 import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
 import com.android.settings.search.IndexDatabaseHelper.Tables;
+import com.android.settings.utils.BackgroundExecutors;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -89,6 +103,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_RES
 public class Index {
 
     private static final String LOG_TAG = "Index";
+    private static final boolean DEBUG = false;
 
     // Those indices should match the indices of SELECT_COLUMNS !
     public static final int COLUMN_INDEX_RANK = 0;
@@ -107,6 +122,10 @@ public class Index {
     public static final int COLUMN_INDEX_KEY = 13;
     public static final int COLUMN_INDEX_USER_ID = 14;
 
+    // Index of the extra column of search results, after the SELECT_COLUMNS, telling if the row
+    // matched the primary (0) or only the secondary (1) columns.
+    static final int COLUMN_INDEX_TIER = 15;
+
     public static final String ENTRIES_SEPARATOR = "|";
 
     // If you change the order of columns here, you SHOULD change the COLUMN_INDEX_XXX values
@@ -124,7 +143,8 @@ public class Index {
             IndexColumns.INTENT_TARGET_PACKAGE,   // 10
             IndexColumns.INTENT_TARGET_CLASS,     // 11
             IndexColumns.ENABLED,                 // 12
-            IndexColumns.DATA_KEY_REF             // 13
+            IndexColumns.DATA_KEY_REF,            // 13
+            IndexColumns.USER_ID                  // 14
     };
 
     private static final String[] MATCH_COLUMNS_PRIMARY = {
@@ -145,6 +165,17 @@ public class Index {
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
+    // Max number of search results returned for one query
+    static final int MAX_SEARCH_RESULTS = 100;
+
+    private static final String COLUMN_TIER = "tier";
+    private static final char LIKE_ESCAPE = '\\';
+
+    // The SQL never changes between queries so that SQLite can reuse the compiled statements
+    // from its statement cache; the query text is always bound as an argument.
+    private static final String SEARCH_SQL = buildSearchSQL();
+    private static final String SUGGESTIONS_RECENT_SQL = buildSuggestionsSQL(false);
+    private static final String SUGGESTIONS_PREFIX_SQL = buildSuggestionsSQL(true);
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
@@ -163,6 +194,16 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    // Parameters of the bounded pool used to parse index data concurrently
+    private static final int PARSE_POOL_SIZE =
+            Math.max(1, Math.min(BackgroundExecutors.CPU_COUNT, 4));
+
+    private static ExecutorService sParseExecutor;
+
+    // Provider key under which the fingerprint of a whole full index is recorded, which no
+    // package and class name can collide with
+    private static final String PROVIDER_KEY_UPDATE = "#update";
+
     private static Index sInstance;
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
@@ -207,9 +248,11 @@ public class Index {
     }
 
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
     private final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
     private final String mBaseAuthority;
+    private final RemoteProviderCache mRemoteProviderCache;
 
     /**
      * A basic singleton
@@ -224,6 +267,7 @@ public class Index {
     public Index(Context context, String baseAuthority) {
         mContext = context;
         mBaseAuthority = baseAuthority;
+        mRemoteProviderCache = new RemoteProviderCache(context);
     }
 
     public void setContext(Context context) {
@@ -234,57 +278,94 @@ public class Index {
         return mIsAvailable.get();
     }
 
-    public Cursor search(String query) {
-        final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
-
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+    /**
+     * Returns a number that changes every time the Index database content has been updated.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
 
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+    /**
+     * Returns the column names of the cursors returned by {@link #search(String)}.
+     */
+    static String[] getSearchColumnNames() {
+        final String[] columns = new String[SELECT_COLUMNS.length + 1];
+        System.arraycopy(SELECT_COLUMNS, 0, columns, 0, SELECT_COLUMNS.length);
+        columns[COLUMN_INDEX_TIER] = COLUMN_TIER;
+        return columns;
+    }
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+    public Cursor search(String query) {
+        return search(query, null);
+    }
 
-        return new MergeCursor(cursors);
+    /**
+     * Same as {@link #search(String)}. The query is aborted with an
+     * {@link android.os.OperationCanceledException} when the signal is cancelled.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final String[] args = new String[] {
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_PRIMARY),
+                Locale.getDefault().toString(),
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_SECONDARY),
+                Locale.getDefault().toString()
+        };
+        final SQLiteDatabase database = getReadableDatabase();
+        final Cursor cursor = database.rawQuery(SEARCH_SQL, args, cancellationSignal);
+        final int count;
+        try {
+            // The query only runs when the cursor is first filled, which is when it can be
+            // cancelled.
+            count = cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        if (count > 0 || query.length() < TrigramIndex.MIN_QUERY_LENGTH) {
+            return cursor;
+        }
+        // Nothing starts with the query, look for words it could be a misspelling of.
+        cursor.close();
+        return TrigramIndex.search(database, query, Locale.getDefault().toString(),
+                SELECT_COLUMNS, MAX_SEARCH_RESULTS, cancellationSignal);
     }
 
     public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        if (TextUtils.isEmpty(query)) {
+            return getReadableDatabase().rawQuery(SUGGESTIONS_RECENT_SQL, null);
+        }
+        final String[] args = new String[] { escapeLikePattern(query) + "%" };
+        return getReadableDatabase().rawQuery(SUGGESTIONS_PREFIX_SQL, args);
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
-
-        if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+    private static String escapeLikePattern(String query) {
+        final StringBuilder sb = new StringBuilder(query.length());
+        final int length = query.length();
+        for (int n = 0; n < length; n++) {
+            final char c = query.charAt(n);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                sb.append(LIKE_ESCAPE);
+            }
+            sb.append(c);
         }
+        return sb.toString();
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    public RemoteProviderCache getRemoteProviderCache() {
+        return mRemoteProviderCache;
+    }
 
-        return sb.toString();
+    /**
+     * Drops the cached {@link android.provider.SearchIndexablesProvider} data of a package, so
+     * that it is queried again on the next {@link #update()}.
+     */
+    public void invalidateRemoteProvider(final String packageName) {
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRemoteProviderCache.invalidate(packageName);
+            }
+        });
     }
 
     public void addSavedQuery(String query){
@@ -311,6 +392,11 @@ public class Index {
 
                     addIndexablesFromRemoteProvider(packageName, authority);
                     addNonIndexablesKeysFromRemoteProvider(packageName, authority);
+                    if (DEBUG) {
+                        Log.d(LOG_TAG, "Provider '" + authority + "' cache hits: "
+                                + mRemoteProviderCache.getHitCount(authority) + ", misses: "
+                                + mRemoteProviderCache.getMissCount(authority));
+                    }
                 }
 
                 mDataToProcess.fullIndex = true;
@@ -366,6 +452,8 @@ public class Index {
     private List<String> getNonIndexablesKeys(Context packageContext, Uri uri,
                                               String[] projection) {
 
+        // Not cached: the keys depend on the device state, which can change without the
+        // provider package being updated.
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
 
@@ -547,8 +635,8 @@ public class Index {
     private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
             Uri uri, String[] projection, int baseRank) {
 
-        final ContentResolver resolver = packageContext.getContentResolver();
-        final Cursor cursor = resolver.query(uri, projection, null, null, null);
+        final Cursor cursor = mRemoteProviderCache.query(packageContext, packageName, uri,
+                projection, RemoteProviderCache.KIND_XML_RES);
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
@@ -594,8 +682,8 @@ public class Index {
     private void addIndexablesForRawDataUri(Context packageContext, String packageName,
             Uri uri, String[] projection, int baseRank) {
 
-        final ContentResolver resolver = packageContext.getContentResolver();
-        final Cursor cursor = resolver.query(uri, projection, null, null, null);
+        final Cursor cursor = mRemoteProviderCache.query(packageContext, packageName, uri,
+                projection, RemoteProviderCache.KIND_RAW);
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
@@ -654,49 +742,78 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
+    private static String buildSearchSQL() {
+        final StringBuilder columns = new StringBuilder();
+        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
+            columns.append(SELECT_COLUMNS[n]);
+            columns.append(", ");
         }
+
+        // A single ranked query: rows matching the primary columns come first, then the rows
+        // only matching the secondary ones, each tier ordered by rank.
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        sb.append(columns);
+        sb.append("MIN(").append(COLUMN_TIER).append(") AS ").append(COLUMN_TIER);
+        sb.append(" FROM (");
+        sb.append(buildSearchSQLForTier(columns, 0));
+        sb.append(" UNION ALL ");
+        sb.append(buildSearchSQLForTier(columns, 1));
+        sb.append(") GROUP BY ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" ORDER BY ");
+        sb.append(COLUMN_TIER);
+        sb.append(", ");
+        sb.append(IndexColumns.DATA_RANK);
+        sb.append(" LIMIT ");
+        sb.append(MAX_SEARCH_RESULTS);
         return sb.toString();
     }
 
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
-        StringBuilder sb = new StringBuilder();
+    private static String buildSearchSQLForTier(CharSequence columns, int tier) {
+        final StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
-        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
-            sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
-                sb.append(", ");
-            }
-        }
+        sb.append(IndexColumns.DOCID);
+        sb.append(", ");
+        sb.append(columns);
+        sb.append(tier).append(" AS ").append(COLUMN_TIER);
         sb.append(" FROM ");
         sb.append(Tables.TABLE_PREFS_INDEX);
         sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
-    }
-
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ? AND ");
         sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
+        sb.append(" = ? AND ");
         sb.append(IndexColumns.ENABLED);
         sb.append(" = 1");
         return sb.toString();
     }
 
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
+    private static String buildSuggestionsSQL(boolean withPrefix) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("SELECT ");
+        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_SAVED_QUERIES);
+
+        if (!withPrefix) {
+            sb.append(" ORDER BY rowId DESC");
+        } else {
+            sb.append(" WHERE ");
+            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
+            sb.append(" LIKE ? ESCAPE '");
+            sb.append(LIKE_ESCAPE);
+            sb.append("'");
+        }
+
+        sb.append(" LIMIT ");
+        sb.append(MAX_PROPOSED_SUGGESTIONS);
+
+        return sb.toString();
+    }
+
+    private static String buildSearchMatchStringForColumns(String query, String[] columnNames) {
         final String value = query + "*";
         StringBuilder sb = new StringBuilder();
         final int count = columnNames.length;
@@ -711,23 +828,23 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private void indexOneSearchIndexableData(List<ContentValues> rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<ContentValues> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -760,7 +877,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<ContentValues> rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -776,7 +893,7 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -802,7 +919,7 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
@@ -828,7 +945,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<ContentValues> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -868,7 +985,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -900,7 +1017,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -912,7 +1029,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -928,7 +1045,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<ContentValues> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -953,7 +1070,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -989,7 +1106,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -997,7 +1114,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<ContentValues> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -1014,7 +1131,7 @@ public class Index {
 
         final String spaceDelimitedKeywords = normalizeKeywords(keywords);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries, className, screenTitle, iconResId,
                 rank, spaceDelimitedKeywords, intentAction, intentTargetPackage, intentTargetClass,
@@ -1025,7 +1142,7 @@ public class Index {
         return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
     }
 
-    private static String normalizeString(String input) {
+    static String normalizeString(String input) {
         final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
         final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
 
@@ -1036,7 +1153,7 @@ public class Index {
         return (input != null) ? input.replaceAll(LIST_DELIMITERS, SPACE) : EMPTY;
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale, String updatedTitle,
+    private void updateOneRow(List<ContentValues> rows, String locale, String updatedTitle,
             String normalizedTitle, String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries, String className,
             String screenTitle, int iconResId, int rank, String spaceDelimitedKeywords,
@@ -1075,7 +1192,7 @@ public class Index {
         values.put(IndexColumns.DATA_KEY_REF, key);
         values.put(IndexColumns.USER_ID, userId);
 
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(values);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1155,6 +1272,438 @@ public class Index {
         return result.toString();
     }
 
+    private static String getProviderKey(SearchIndexableResource sir) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(sir.packageName);
+        sb.append('/');
+        sb.append(sir.className);
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            sb.append('/');
+            sb.append(sir.xmlResId);
+        }
+        return sb.toString();
+    }
+
+    private static String getProviderKey(SearchIndexableRaw raw) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(raw.packageName);
+        sb.append('/');
+        sb.append(raw.className);
+        sb.append('/');
+        sb.append(raw.key);
+        sb.append('/');
+        sb.append(raw.title);
+        sb.append('/');
+        sb.append(raw.userId);
+        return sb.toString();
+    }
+
+    private static String computeFingerprint(SearchIndexableRaw raw) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(raw.locale);
+        sb.append('|').append(raw.rank);
+        sb.append('|').append(raw.summaryOn);
+        sb.append('|').append(raw.summaryOff);
+        sb.append('|').append(raw.entries);
+        sb.append('|').append(raw.keywords);
+        sb.append('|').append(raw.screenTitle);
+        sb.append('|').append(raw.iconResId);
+        sb.append('|').append(raw.enabled);
+        sb.append('|').append(raw.intentAction);
+        sb.append('|').append(raw.intentTargetPackage);
+        sb.append('|').append(raw.intentTargetClass);
+        return digest(sb.toString());
+    }
+
+    /**
+     * Computes a fingerprint of everything that affects the rows inflated for a
+     * {@link SearchIndexableResource}: its resource IDs, the version of the package providing
+     * them and its set of non indexable keys. Dynamic raw data is not covered and must be
+     * refreshed through a forced update.
+     *
+     * @return the fingerprint, or null if it cannot be computed.
+     */
+    private String computeFingerprint(SearchIndexableResource sir,
+            Map<String, List<String>> nonIndexableKeysFromResource,
+            Map<String, String> packageVersions) {
+        final Context context = (sir.context != null) ? sir.context : mContext;
+        final String version = getPackageVersion(sir, packageVersions);
+        if (version == null) {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(version);
+        sb.append('|').append(sir.rank);
+        sb.append('|').append(sir.iconResId);
+        sb.append('|').append(sir.enabled);
+        sb.append('|').append(sir.intentAction);
+        sb.append('|').append(sir.intentTargetPackage);
+        sb.append('|').append(sir.intentTargetClass);
+
+        final List<String> nonIndexableKeys = new ArrayList<String>();
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            sb.append('|').append(sir.xmlResId);
+            final List<String> keys = nonIndexableKeysFromResource.get(sir.packageName);
+            if (keys != null) {
+                nonIndexableKeys.addAll(keys);
+            }
+        } else {
+            final Class<?> clazz = getIndexableClass(sir.className);
+            final Indexable.SearchIndexProvider provider =
+                    (clazz != null) ? getSearchIndexProvider(clazz) : null;
+            if (provider == null) {
+                return null;
+            }
+            final List<SearchIndexableResource> resList =
+                    provider.getXmlResourcesToIndex(context, sir.enabled);
+            if (resList != null) {
+                final int resSize = resList.size();
+                for (int i = 0; i < resSize; i++) {
+                    sb.append('|').append(resList.get(i).xmlResId);
+                }
+            }
+            final List<String> keys = provider.getNonIndexableKeys(context);
+            if (keys != null) {
+                nonIndexableKeys.addAll(keys);
+            }
+        }
+
+        Collections.sort(nonIndexableKeys);
+        final int keyCount = nonIndexableKeys.size();
+        for (int i = 0; i < keyCount; i++) {
+            sb.append('|').append(nonIndexableKeys.get(i));
+        }
+
+        return digest(sb.toString());
+    }
+
+    /**
+     * Returns the keys of the rows that indexing a {@link SearchIndexableResource} leaves out on
+     * this device, or null if it has no provider.
+     */
+    private List<String> getNonIndexableKeys(SearchIndexableResource sir,
+            Map<String, List<String>> nonIndexableKeysFromResource) {
+        final List<String> nonIndexableKeys = new ArrayList<String>();
+        final List<String> keys;
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            keys = nonIndexableKeysFromResource.get(sir.packageName);
+        } else {
+            final Class<?> clazz = getIndexableClass(sir.className);
+            final Indexable.SearchIndexProvider provider =
+                    (clazz != null) ? getSearchIndexProvider(clazz) : null;
+            if (provider == null) {
+                return null;
+            }
+            keys = provider.getNonIndexableKeys((sir.context != null) ? sir.context : mContext);
+        }
+        if (keys != null) {
+            nonIndexableKeys.addAll(keys);
+        }
+        return nonIndexableKeys;
+    }
+
+    /**
+     * Returns the version of the package providing a {@link SearchIndexableResource}, cached in
+     * the given map, or null if the package is not installed.
+     */
+    private String getPackageVersion(SearchIndexableResource sir,
+            Map<String, String> packageVersions) {
+        final Context context = (sir.context != null) ? sir.context : mContext;
+        final String packageName = !TextUtils.isEmpty(sir.packageName)
+                ? sir.packageName : context.getPackageName();
+
+        String version = packageVersions.get(packageName);
+        if (version == null) {
+            try {
+                final PackageInfo info =
+                        mContext.getPackageManager().getPackageInfo(packageName, 0);
+                final int flags = info.applicationInfo.flags;
+                // Packages of the system image that were never updated only change with the
+                // build, which keeps their fingerprint identical across devices of that build.
+                final boolean systemImage = (flags & ApplicationInfo.FLAG_SYSTEM) != 0
+                        && (flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0;
+                version = info.versionCode + ":"
+                        + (systemImage ? Build.VERSION.INCREMENTAL : info.lastUpdateTime);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+            packageVersions.put(packageName, version);
+        }
+        return version;
+    }
+
+    /**
+     * Computes a fingerprint of a whole full index that only needs the package manager: the
+     * build, the list of data to index with the versions of their packages, the non indexable
+     * keys of the remote providers and the dynamic raw data. Unlike the per provider
+     * fingerprints it does not ask the local providers for their resources and non indexable
+     * keys, so it is cheap enough to check before anything else.
+     */
+    private String computeUpdateFingerprint(List<SearchIndexableData> dataToUpdate,
+            Map<String, List<String>> nonIndexableKeys) {
+        final Map<String, String> packageVersions = new HashMap<String, String>();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(Build.FINGERPRINT);
+        final int count = dataToUpdate.size();
+        for (int n = 0; n < count; n++) {
+            final SearchIndexableData data = dataToUpdate.get(n);
+            if (data instanceof SearchIndexableResource) {
+                final SearchIndexableResource sir = (SearchIndexableResource) data;
+                sb.append('|').append(getProviderKey(sir));
+                sb.append(':').append(getPackageVersion(sir, packageVersions));
+                sb.append(':').append(sir.rank);
+                sb.append(':').append(sir.enabled);
+            } else if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                sb.append('|').append(getProviderKey(raw));
+                sb.append(':').append(computeFingerprint(raw));
+            }
+        }
+        final List<String> packages = new ArrayList<String>(nonIndexableKeys.keySet());
+        Collections.sort(packages);
+        for (String packageName : packages) {
+            final List<String> keys = nonIndexableKeys.get(packageName) != null
+                    ? new ArrayList<String>(nonIndexableKeys.get(packageName))
+                    : new ArrayList<String>();
+            Collections.sort(keys);
+            sb.append('|').append(packageName).append(':').append(keys);
+        }
+        return digest(sb.toString());
+    }
+
+    private static String digest(String value) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return value;
+        }
+    }
+
+    /**
+     * The rows inflated for one {@link SearchIndexableData}. {@link #rows} is null when the data
+     * did not change since it was last indexed.
+     */
+    static class ParsedData {
+        public List<ContentValues> rows;
+        public String providerKey;
+        public String fingerprint;
+    }
+
+    private static synchronized ExecutorService getParseExecutor() {
+        if (sParseExecutor == null) {
+            sParseExecutor = BackgroundExecutors.newPool("IndexParser", PARSE_POOL_SIZE,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        return sParseExecutor;
+    }
+
+    /**
+     * Inflates the given data concurrently on a bounded worker pool. The returned list has the
+     * same order as {@code dataToUpdate}; items that failed to parse are null.
+     */
+    private List<ParsedData> parseDataToUpdate(final String localeStr,
+            List<SearchIndexableData> dataToUpdate,
+            final Map<String, List<String>> nonIndexableKeys,
+            final Map<String, String> fingerprints, boolean parallel) {
+        final int count = dataToUpdate.size();
+        final List<ParsedData> result = new ArrayList<ParsedData>(count);
+        final Map<String, String> packageVersions =
+                Collections.synchronizedMap(new HashMap<String, String>());
+
+        if (!parallel || count == 1 || PARSE_POOL_SIZE == 1) {
+            for (int n = 0; n < count; n++) {
+                result.add(parseOneSearchIndexableData(localeStr, dataToUpdate.get(n),
+                        nonIndexableKeys, fingerprints, packageVersions));
+            }
+            return result;
+        }
+
+        final ExecutorService executor = getParseExecutor();
+        final List<Future<ParsedData>> futures = new ArrayList<Future<ParsedData>>(count);
+        for (int n = 0; n < count; n++) {
+            final SearchIndexableData data = dataToUpdate.get(n);
+            futures.add(executor.submit(new Callable<ParsedData>() {
+                @Override
+                public ParsedData call() {
+                    return parseOneSearchIndexableData(localeStr, data, nonIndexableKeys,
+                            fingerprints, packageVersions);
+                }
+            }));
+        }
+        for (int n = 0; n < count; n++) {
+            ParsedData parsed = null;
+            try {
+                parsed = futures.get(n).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot parse index data", e.getCause());
+            }
+            result.add(parsed);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the local {@link SearchIndexableResources} as they are read back from our own
+     * {@link SettingsSearchIndexablesProvider} during {@link #update()}.
+     */
+    private List<SearchIndexableResource> getLocalResources() {
+        final int baseRank = Ranking.getBaseRankForAuthority(mBaseAuthority);
+        final List<SearchIndexableResource> result = new ArrayList<SearchIndexableResource>();
+        for (SearchIndexableResource val : SearchIndexableResources.values()) {
+            final SearchIndexableResource sir = new SearchIndexableResource(mContext);
+            sir.rank = (val.rank > 0) ? baseRank + val.rank : baseRank;
+            sir.xmlResId = val.xmlResId;
+            sir.className = val.className;
+            sir.packageName = mContext.getPackageName();
+            sir.iconResId = val.iconResId;
+            result.add(sir);
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the rows of a local resource do not depend on the device state, i.e. it
+     * is only backed by XML resources.
+     */
+    private boolean isStaticResource(SearchIndexableResource sir) {
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            return true;
+        }
+        final Class<?> clazz = getIndexableClass(sir.className);
+        final Indexable.SearchIndexProvider provider =
+                (clazz != null) ? getSearchIndexProvider(clazz) : null;
+        if (provider == null) {
+            return false;
+        }
+        final List<SearchIndexableRaw> rawList = provider.getRawDataToIndex(mContext, true);
+        return rawList == null || rawList.isEmpty();
+    }
+
+    /**
+     * Writes the rows and fingerprints of the static local resources for the current locale to
+     * the given snapshot file. See {@link SearchIndexSnapshot}.
+     */
+    void exportSnapshot(File file) {
+        final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+        for (SearchIndexableResource sir : getLocalResources()) {
+            if (isStaticResource(sir)) {
+                data.add(sir);
+            }
+        }
+        final String localeStr = Locale.getDefault().toString();
+        final List<ParsedData> parsed = parseDataToUpdate(localeStr, data,
+                new HashMap<String, List<String>>(), new HashMap<String, String>(), true);
+        SearchIndexSnapshot.write(file, localeStr, parsed);
+    }
+
+    /**
+     * Imports from the prebuilt snapshot the rows of the local resources whose fingerprint on
+     * this device matches the snapshot, so that they are skipped by the following full index.
+     * The rows of the keys that are not indexable on this device are left out, the fingerprints
+     * being computed with the same non indexable keys as the full index.
+     *
+     * @return true if any row has been imported.
+     */
+    private boolean importSnapshot(SQLiteDatabase database, String localeStr,
+            Map<String, List<String>> nonIndexableKeys) {
+        final File file = SearchIndexSnapshot.getSnapshotFile();
+        if (!file.exists()) {
+            return false;
+        }
+        final long current = System.currentTimeMillis();
+        final Map<String, String> fingerprints = new HashMap<String, String>();
+        final Map<String, List<String>> providerNonIndexableKeys =
+                new HashMap<String, List<String>>();
+        final Map<String, String> packageVersions = new HashMap<String, String>();
+        for (SearchIndexableResource sir : getLocalResources()) {
+            try {
+                final String fingerprint = computeFingerprint(sir, nonIndexableKeys,
+                        packageVersions);
+                final List<String> keys = getNonIndexableKeys(sir, nonIndexableKeys);
+                if (fingerprint != null && keys != null) {
+                    fingerprints.put(getProviderKey(sir), fingerprint);
+                    providerNonIndexableKeys.put(getProviderKey(sir), keys);
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Cannot compute fingerprint for: " + sir.className, e);
+            }
+        }
+        final int imported = SearchIndexSnapshot.importProviders(database, file, localeStr,
+                fingerprints, providerNonIndexableKeys);
+        Log.d(LOG_TAG, "Importing snapshot for locale '" + localeStr + "' took "
+                + (System.currentTimeMillis() - current) + " millis (" + imported + "/"
+                + fingerprints.size() + " providers)");
+        return imported > 0;
+    }
+
+    /**
+     * Inflates all the local {@link SearchIndexableResources} for the current locale without
+     * writing them to the database.
+     *
+     * @param parallel true to use the worker pool, false to parse on the calling thread.
+     * @return the number of rows that would be written.
+     */
+    @VisibleForTesting
+    public int parseLocalResources(boolean parallel) {
+        final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+        for (SearchIndexableResource res : SearchIndexableResources.values()) {
+            res.context = mContext;
+            data.add(res);
+        }
+        final List<ParsedData> parsed = parseDataToUpdate(Locale.getDefault().toString(), data,
+                new HashMap<String, List<String>>(), null, parallel);
+        int rowCount = 0;
+        final int count = parsed.size();
+        for (int n = 0; n < count; n++) {
+            final ParsedData item = parsed.get(n);
+            if (item != null && item.rows != null) {
+                rowCount += item.rows.size();
+            }
+        }
+        return rowCount;
+    }
+
+    private ParsedData parseOneSearchIndexableData(String localeStr, SearchIndexableData data,
+            Map<String, List<String>> nonIndexableKeys, Map<String, String> fingerprints,
+            Map<String, String> packageVersions) {
+        final ParsedData parsed = new ParsedData();
+        try {
+            if (fingerprints != null) {
+                if (data instanceof SearchIndexableResource) {
+                    final SearchIndexableResource sir = (SearchIndexableResource) data;
+                    parsed.providerKey = getProviderKey(sir);
+                    parsed.fingerprint = computeFingerprint(sir, nonIndexableKeys,
+                            packageVersions);
+                } else if (data instanceof SearchIndexableRaw) {
+                    final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                    parsed.providerKey = getProviderKey(raw);
+                    parsed.fingerprint = computeFingerprint(raw);
+                }
+                if (parsed.fingerprint != null
+                        && parsed.fingerprint.equals(fingerprints.get(parsed.providerKey))) {
+                    return parsed;
+                }
+            }
+            final List<ContentValues> rows = new ArrayList<ContentValues>();
+            indexOneSearchIndexableData(rows, localeStr, data, nonIndexableKeys);
+            parsed.rows = rows;
+            return parsed;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
+                    + " for locale: " + localeStr, e);
+            return null;
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
@@ -1189,6 +1738,14 @@ public class Index {
                 }
                 final String localeStr = Locale.getDefault().toString();
 
+                // Make the prebuilt rows searchable right away; the full index below then only
+                // has to process what the snapshot does not cover.
+                if (fullIndex && !IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext, localeStr)
+                        && importSnapshot(database, localeStr, nonIndexableKeys)) {
+                    mGeneration.incrementAndGet();
+                    mIsAvailable.set(true);
+                }
+
                 try {
                     database.beginTransaction();
                     if (dataToDelete.size() > 0) {
@@ -1196,11 +1753,12 @@ public class Index {
                     }
                     if (dataToUpdate.size() > 0) {
                         processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                                forceUpdate);
+                                forceUpdate, fullIndex);
                     }
                     database.setTransactionSuccessful();
                 } finally {
                     database.endTransaction();
+                    mGeneration.incrementAndGet();
                 }
                 if (fullIndex) {
                     IndexDatabaseHelper.setLocaleIndexed(mContext, localeStr);
@@ -1214,9 +1772,11 @@ public class Index {
 
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
+                boolean forceUpdate, boolean fullIndex) {
 
-            if (!forceUpdate && IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext, localeStr)) {
+            final boolean incremental = fullIndex && !forceUpdate;
+            if (!incremental && !forceUpdate
+                    && IndexDatabaseHelper.isLocaleAlreadyIndexed(mContext, localeStr)) {
                 Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
                 return true;
             }
@@ -1224,20 +1784,99 @@ public class Index {
             boolean result = false;
             final long current = System.currentTimeMillis();
 
-            final int count = dataToUpdate.size();
+            // For a full index, only re-inflate the providers whose fingerprint changed since the
+            // last time they were indexed for this locale.
+            final Map<String, String> fingerprints = incremental
+                    ? IndexDatabaseHelper.getProviderFingerprints(database, localeStr)
+                    : null;
+            String updateFingerprint = null;
+            if (incremental) {
+                // Nothing that the per provider fingerprints cover can have changed when the
+                // build and the packages did not, so skip asking every provider for them.
+                updateFingerprint = computeUpdateFingerprint(dataToUpdate, nonIndexableKeys);
+                if (updateFingerprint.equals(fingerprints.get(PROVIDER_KEY_UPDATE))) {
+                    Log.d(LOG_TAG, "Locale '" + localeStr + "' is up to date, checking took "
+                            + (System.currentTimeMillis() - current) + " millis");
+                    return result;
+                }
+            }
+
+            // Parse stage: inflate every data item into in-memory rows on the worker pool.
+            final List<ParsedData> parsed = parseDataToUpdate(localeStr, dataToUpdate,
+                    nonIndexableKeys, fingerprints, true /* parallel */);
+            final long parsedTime = System.currentTimeMillis();
+
+            // The rows of a changed resource are replaced as a whole, so that the rows of the
+            // preferences it no longer has do not stay in the index. Every other item sharing its
+            // class with a changed resource, resource or raw data, is indexed again too, as its
+            // rows are deleted with it.
+            final Set<String> changedClasses = new HashSet<String>();
+            if (incremental) {
+                for (int n = 0; n < parsed.size(); n++) {
+                    final ParsedData data = parsed.get(n);
+                    final SearchIndexableData item = dataToUpdate.get(n);
+                    if (data != null && data.rows != null
+                            && item instanceof SearchIndexableResource
+                            && !TextUtils.isEmpty(item.className)) {
+                        changedClasses.add(item.className);
+                    }
+                }
+                for (int n = 0; n < parsed.size(); n++) {
+                    final ParsedData data = parsed.get(n);
+                    final SearchIndexableData item = dataToUpdate.get(n);
+                    if (data != null && data.rows == null
+                            && changedClasses.contains(item.className)) {
+                        final ParsedData reparsed = parseOneSearchIndexableData(localeStr, item,
+                                nonIndexableKeys, null, null);
+                        if (reparsed != null) {
+                            reparsed.providerKey = data.providerKey;
+                            reparsed.fingerprint = data.fingerprint;
+                        }
+                        parsed.set(n, reparsed);
+                    }
+                }
+                for (String className : changedClasses) {
+                    delete(database, localeStr, IndexColumns.CLASS_NAME, className);
+                }
+            }
+
+            // Write stage: this thread is the single writer, inside the caller's transaction.
+            int skipped = 0;
+            int rowCount = 0;
+            final int count = parsed.size();
             for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Cannot index: " + (data != null ? data.className : data)
-                                    + " for locale: " + localeStr, e);
+                final ParsedData data = parsed.get(n);
+                if (data == null) {
+                    continue;
+                }
+                if (data.rows == null) {
+                    skipped++;
+                    continue;
+                }
+                final int size = data.rows.size();
+                for (int i = 0; i < size; i++) {
+                    final ContentValues values = data.rows.get(i);
+                    database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+                    TrigramIndex.addRow(database, values);
                 }
+                rowCount += size;
+                if (data.fingerprint != null) {
+                    IndexDatabaseHelper.setProviderFingerprint(database, localeStr,
+                            data.providerKey, data.fingerprint);
+                }
+            }
+
+            if (updateFingerprint != null) {
+                IndexDatabaseHelper.setProviderFingerprint(database, localeStr,
+                        PROVIDER_KEY_UPDATE, updateFingerprint);
             }
 
             final long now = System.currentTimeMillis();
-            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+            final long elapsed = Math.max(1, now - current);
+            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " + (now - current)
+                    + " millis (parse " + (parsedTime - current) + " millis, "
+                    + rowCount + " rows, " + (rowCount * 1000L / elapsed) + " rows/s, "
+                    + skipped + "/" + count + " unchanged)");
             return result;
         }
 
@@ -1275,6 +1914,16 @@ public class Index {
             final String whereClause = columName + "=?";
             final String[] whereArgs = new String[] { value };
 
+            TrigramIndex.deleteRows(database, whereClause, whereArgs);
+            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+        }
+
+        private int delete(SQLiteDatabase database, String localeStr, String columName,
+                String value) {
+            final String whereClause = columName + "=? AND " + IndexColumns.LOCALE + "=?";
+            final String[] whereArgs = new String[] { value, localeStr };
+
+            TrigramIndex.deleteRows(database, whereClause, whereArgs);
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
     }
@@ -16,25 +16,32 @@
 
 package com.android.settings.search;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import java.util.Map;
+
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 120;
 
     private static final String INDEX = "index";
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
+        public static final String TABLE_META_FINGERPRINTS = "meta_fingerprints";
+        public static final String TABLE_PROVIDER_CACHE = "provider_cache";
+        public static final String TABLE_PREFS_TRIGRAMS = "prefs_trigrams";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
     }
 
@@ -65,6 +72,28 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String BUILD = "build";
     }
 
+    public interface FingerprintColumns {
+        public static final String LOCALE = "locale";
+        public static final String PROVIDER = "provider";
+        public static final String FINGERPRINT = "fingerprint";
+    }
+
+    public interface TrigramColumns {
+        public static final String LOCALE = "locale";
+        public static final String TRIGRAM = "trigram";
+        public static final String DOCID = "docid";
+    }
+
+    public interface ProviderCacheColumns {
+        public static final String AUTHORITY = "authority";
+        public static final String PACKAGE = "package";
+        public static final String KIND = "kind";
+        public static final String LOCALE = "locale";
+        public static final String LAST_UPDATE_TIME = "last_update_time";
+        public static final String POSITION = "position";
+        public static final String DATA = "data";
+    }
+
     public interface SavedQueriesColums {
         public static final String QUERY = "query";
         public static final String TIME_STAMP = "timestamp";
@@ -118,6 +147,55 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     MetaColumns.BUILD + " VARCHAR(32) NOT NULL" +
                     ")";
 
+    private static final String CREATE_META_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_META_FINGERPRINTS +
+                    "(" +
+                    FingerprintColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    FingerprintColumns.PROVIDER + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + FingerprintColumns.LOCALE + ", " +
+                            FingerprintColumns.PROVIDER + ")" +
+                    ")";
+
+    private static final String CREATE_TRIGRAMS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_PREFS_TRIGRAMS +
+                    "(" +
+                    TrigramColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    TrigramColumns.TRIGRAM + " TEXT NOT NULL" +
+                    ", " +
+                    TrigramColumns.DOCID + " INTEGER NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + TrigramColumns.LOCALE + ", " + TrigramColumns.TRIGRAM +
+                            ", " + TrigramColumns.DOCID + ")" +
+                    ") WITHOUT ROWID";
+
+    // Finds the trigrams of a row when it is deleted or replaced
+    private static final String CREATE_TRIGRAMS_DOCID_INDEX =
+            "CREATE INDEX " + Tables.TABLE_PREFS_TRIGRAMS + "_" + TrigramColumns.DOCID +
+                    " ON " + Tables.TABLE_PREFS_TRIGRAMS + "(" + TrigramColumns.DOCID + ")";
+
+    private static final String CREATE_PROVIDER_CACHE_TABLE =
+            "CREATE TABLE " + Tables.TABLE_PROVIDER_CACHE +
+                    "(" +
+                    ProviderCacheColumns.AUTHORITY + " TEXT NOT NULL" +
+                    ", " +
+                    ProviderCacheColumns.PACKAGE + " TEXT NOT NULL" +
+                    ", " +
+                    ProviderCacheColumns.KIND + " INTEGER NOT NULL" +
+                    ", " +
+                    ProviderCacheColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    ProviderCacheColumns.LAST_UPDATE_TIME + " INTEGER NOT NULL" +
+                    ", " +
+                    ProviderCacheColumns.POSITION + " INTEGER NOT NULL" +
+                    ", " +
+                    ProviderCacheColumns.DATA + " TEXT" +
+                    ")";
+
     private static final String CREATE_SAVED_QUERIES_TABLE =
             "CREATE TABLE " + Tables.TABLE_SAVED_QUERIES +
                     "(" +
@@ -157,6 +235,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private void bootstrapDB(SQLiteDatabase db) {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
+        db.execSQL(CREATE_META_FINGERPRINTS_TABLE);
+        db.execSQL(CREATE_PROVIDER_CACHE_TABLE);
+        db.execSQL(CREATE_TRIGRAMS_TABLE);
+        db.execSQL(CREATE_TRIGRAMS_DOCID_INDEX);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
@@ -218,6 +300,39 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         return version;
     }
 
+    /**
+     * Returns the provider fingerprints recorded for the given locale, keyed by provider.
+     */
+    public static Map<String, String> getProviderFingerprints(SQLiteDatabase db, String locale) {
+        final Map<String, String> fingerprints = new ArrayMap<String, String>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(Tables.TABLE_META_FINGERPRINTS,
+                    new String[] { FingerprintColumns.PROVIDER, FingerprintColumns.FINGERPRINT },
+                    FingerprintColumns.LOCALE + " = ?", new String[] { locale },
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                fingerprints.put(cursor.getString(0), cursor.getString(1));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot get provider fingerprints from Index metadata");
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return fingerprints;
+    }
+
+    public static void setProviderFingerprint(SQLiteDatabase db, String locale, String provider,
+            String fingerprint) {
+        final ContentValues values = new ContentValues();
+        values.put(FingerprintColumns.LOCALE, locale);
+        values.put(FingerprintColumns.PROVIDER, provider);
+        values.put(FingerprintColumns.FINGERPRINT, fingerprint);
+        db.replaceOrThrow(Tables.TABLE_META_FINGERPRINTS, null, values);
+    }
+
     public static void clearLocalesIndexed(Context context) {
         context.getSharedPreferences(INDEX, 0).edit().clear().commit();
     }
@@ -233,6 +348,9 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private void dropTables(SQLiteDatabase db) {
         clearLocalesIndexed(mContext);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_FINGERPRINTS);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PROVIDER_CACHE);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_TRIGRAMS);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
     }
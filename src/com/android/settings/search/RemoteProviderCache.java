@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.ProviderCacheColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Persistent cache of the cursors returned by remote
+ * {@link android.provider.SearchIndexablesProvider}s.
+ *
+ * Cursors are stored per provider authority, kind (XML resources or raw data) and locale,
+ * together with the last update time of the provider package. A provider is only queried again
+ * once its package has been updated or invalidated through {@link #invalidate(String)}, or for
+ * another locale. The non indexable keys depend on the device state and are not cached.
+ */
+public class RemoteProviderCache {
+
+    private static final String TAG = "RemoteProviderCache";
+
+    public static final int KIND_XML_RES = 0;
+    public static final int KIND_RAW = 1;
+
+    // Position of the row marking a cached cursor, so that empty cursors are cached too
+    private static final int POSITION_HEADER = -1;
+
+    private final Context mContext;
+
+    // Hits and misses per authority
+    private final ArrayMap<String, int[]> mCounters = new ArrayMap<String, int[]>();
+
+    public RemoteProviderCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the cursor of the given provider Uri, from the cache if the provider package did
+     * not change since it was cached. Can return null if the provider cannot be queried.
+     */
+    public Cursor query(Context packageContext, String packageName, Uri uri,
+            String[] projection, int kind) {
+        final String authority = uri.getAuthority();
+        final String locale = Locale.getDefault().toString();
+        final long lastUpdateTime = getLastUpdateTime(packageName);
+
+        final Cursor cached = (lastUpdateTime > 0)
+                ? getCached(authority, kind, locale, lastUpdateTime, projection) : null;
+        if (cached != null) {
+            count(authority, true);
+            return cached;
+        }
+        count(authority, false);
+
+        final Cursor cursor = packageContext.getContentResolver().query(
+                uri, projection, null, null, null);
+        if (cursor == null || lastUpdateTime <= 0) {
+            return cursor;
+        }
+        try {
+            return store(authority, packageName, kind, locale, lastUpdateTime, projection,
+                    cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops the cached cursors of the given package.
+     */
+    public void invalidate(String packageName) {
+        final SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+        db.delete(Tables.TABLE_PROVIDER_CACHE, ProviderCacheColumns.PACKAGE + " = ?",
+                new String[] { packageName });
+    }
+
+    public synchronized int getHitCount(String authority) {
+        final int[] counters = mCounters.get(authority);
+        return (counters != null) ? counters[0] : 0;
+    }
+
+    public synchronized int getMissCount(String authority) {
+        final int[] counters = mCounters.get(authority);
+        return (counters != null) ? counters[1] : 0;
+    }
+
+    public synchronized JSONObject dump() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        final int size = mCounters.size();
+        for (int i = 0; i < size; i++) {
+            final JSONObject counters = new JSONObject();
+            counters.put("hits", mCounters.valueAt(i)[0]);
+            counters.put("misses", mCounters.valueAt(i)[1]);
+            obj.put(mCounters.keyAt(i), counters);
+        }
+        return obj;
+    }
+
+    private synchronized void count(String authority, boolean hit) {
+        int[] counters = mCounters.get(authority);
+        if (counters == null) {
+            counters = new int[2];
+            mCounters.put(authority, counters);
+        }
+        counters[hit ? 0 : 1]++;
+    }
+
+    private long getLastUpdateTime(String packageName) {
+        try {
+            return mContext.getPackageManager().getPackageInfo(packageName, 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private Cursor getCached(String authority, int kind, String locale, long lastUpdateTime,
+            String[] projection) {
+        Cursor cursor = null;
+        try {
+            cursor = IndexDatabaseHelper.getInstance(mContext).getReadableDatabase().query(
+                    Tables.TABLE_PROVIDER_CACHE,
+                    new String[] { ProviderCacheColumns.POSITION, ProviderCacheColumns.DATA },
+                    ProviderCacheColumns.AUTHORITY + " = ? AND " + ProviderCacheColumns.KIND
+                            + " = ? AND " + ProviderCacheColumns.LOCALE + " = ? AND "
+                            + ProviderCacheColumns.LAST_UPDATE_TIME + " = ?",
+                    new String[] { authority, Integer.toString(kind), locale,
+                            Long.toString(lastUpdateTime) },
+                    null, null, ProviderCacheColumns.POSITION);
+            if (!cursor.moveToFirst() || cursor.getInt(0) != POSITION_HEADER) {
+                return null;
+            }
+            final MatrixCursor result = new MatrixCursor(projection, cursor.getCount() - 1);
+            while (cursor.moveToNext()) {
+                final JSONArray array = new JSONArray(cursor.getString(1));
+                final Object[] row = new Object[projection.length];
+                for (int n = 0; n < row.length; n++) {
+                    row[n] = array.isNull(n) ? null : array.get(n);
+                }
+                result.addRow(row);
+            }
+            return result;
+        } catch (SQLiteException | JSONException e) {
+            Log.w(TAG, "Cannot read cached cursor for " + authority, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Stores the cursor content and returns an in memory copy of it.
+     */
+    private Cursor store(String authority, String packageName, int kind, String locale,
+            long lastUpdateTime, String[] projection, Cursor cursor) {
+        final MatrixCursor result = new MatrixCursor(projection, cursor.getCount());
+        final SQLiteDatabase db = getWritableDatabase();
+        if (db != null) {
+            db.beginTransaction();
+        }
+        try {
+            if (db != null) {
+                db.delete(Tables.TABLE_PROVIDER_CACHE, ProviderCacheColumns.AUTHORITY
+                        + " = ? AND " + ProviderCacheColumns.KIND + " = ? AND "
+                        + ProviderCacheColumns.LOCALE + " = ?",
+                        new String[] { authority, Integer.toString(kind), locale });
+                insert(db, authority, packageName, kind, locale, lastUpdateTime,
+                        POSITION_HEADER, null);
+            }
+            final int columnCount = projection.length;
+            int position = 0;
+            while (cursor.moveToNext()) {
+                final Object[] row = new Object[columnCount];
+                final JSONArray array = new JSONArray();
+                for (int n = 0; n < columnCount; n++) {
+                    switch (cursor.getType(n)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            row[n] = null;
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[n] = cursor.getLong(n);
+                            break;
+                        default:
+                            row[n] = cursor.getString(n);
+                            break;
+                    }
+                    array.put(row[n] != null ? row[n] : JSONObject.NULL);
+                }
+                result.addRow(row);
+                if (db != null) {
+                    insert(db, authority, packageName, kind, locale, lastUpdateTime,
+                            position++, array.toString());
+                }
+            }
+            if (db != null) {
+                db.setTransactionSuccessful();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot cache cursor for " + authority, e);
+        } finally {
+            if (db != null) {
+                db.endTransaction();
+            }
+        }
+        return result;
+    }
+
+    private static void insert(SQLiteDatabase db, String authority, String packageName, int kind,
+            String locale, long lastUpdateTime, int position, String data) {
+        final ContentValues values = new ContentValues();
+        values.put(ProviderCacheColumns.AUTHORITY, authority);
+        values.put(ProviderCacheColumns.PACKAGE, packageName);
+        values.put(ProviderCacheColumns.KIND, kind);
+        values.put(ProviderCacheColumns.LOCALE, locale);
+        values.put(ProviderCacheColumns.LAST_UPDATE_TIME, lastUpdateTime);
+        values.put(ProviderCacheColumns.POSITION, position);
+        values.put(ProviderCacheColumns.DATA, data);
+        db.insertOrThrow(Tables.TABLE_PROVIDER_CACHE, null, values);
+    }
+
+    private SQLiteDatabase getWritableDatabase() {
+        try {
+            return IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot open writable database", e);
+            return null;
+        }
+    }
+}
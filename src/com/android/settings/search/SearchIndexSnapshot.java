@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.FingerprintColumns;
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.MetaColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A prebuilt, per-locale snapshot of the rows of the static local search indexables.
+ *
+ * The snapshot is produced on a device running the exact build it ships with, by
+ * {@link #export(Context, File)} (see SearchIndexSnapshotGenerator in the Settings tests), once
+ * per locale, and installed read-only as {@link #SNAPSHOT_PATH}. On first indexing of a locale,
+ * {@link Index} attaches it and copies the rows of every provider whose fingerprint on the device
+ * matches the snapshot, so search works before any XML is inflated and the runtime index only
+ * processes dynamic data.
+ *
+ * A snapshot is ignored unless it records the {@link Build#FINGERPRINT} of the running build,
+ * and the rows of the keys the providers do not index on this device are removed as they are
+ * imported.
+ */
+public final class SearchIndexSnapshot {
+
+    private static final String TAG = "SearchIndexSnapshot";
+
+    static final String SNAPSHOT_PATH = "/system/etc/settings/search_index_snapshot.db";
+
+    private static final String SCHEMA = "snapshot";
+    private static final String TABLE_ROWS = "snapshot_rows";
+    private static final String COLUMN_PROVIDER = "provider";
+
+    // All the prefs_index columns, in the same order in the index and in the snapshot
+    private static final String[] INDEX_COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.ICON,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
+    private SearchIndexSnapshot() {
+    }
+
+    public static File getSnapshotFile() {
+        return new File(SNAPSHOT_PATH);
+    }
+
+    /**
+     * Adds the static rows of the current locale to the snapshot file, creating it if needed.
+     */
+    public static void export(Context context, File file) {
+        Index.getInstance(context).exportSnapshot(file);
+    }
+
+    static void write(File file, String locale, List<Index.ParsedData> parsed) {
+        final SQLiteDatabase snapshot = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            snapshot.beginTransaction();
+            try {
+                createTables(snapshot);
+                snapshot.delete(TABLE_ROWS, IndexColumns.LOCALE + " = ?", new String[] { locale });
+                snapshot.delete(Tables.TABLE_META_FINGERPRINTS,
+                        FingerprintColumns.LOCALE + " = ?", new String[] { locale });
+                snapshot.delete(Tables.TABLE_META_INDEX, null, null);
+
+                final ContentValues meta = new ContentValues();
+                meta.put(MetaColumns.BUILD, Build.FINGERPRINT);
+                snapshot.insertOrThrow(Tables.TABLE_META_INDEX, null, meta);
+
+                final int count = parsed.size();
+                for (int n = 0; n < count; n++) {
+                    final Index.ParsedData data = parsed.get(n);
+                    if (data == null || data.rows == null || data.fingerprint == null) {
+                        continue;
+                    }
+                    final int size = data.rows.size();
+                    for (int i = 0; i < size; i++) {
+                        final ContentValues values = new ContentValues(data.rows.get(i));
+                        values.put(COLUMN_PROVIDER, data.providerKey);
+                        snapshot.replaceOrThrow(TABLE_ROWS, null, values);
+                    }
+                    IndexDatabaseHelper.setProviderFingerprint(snapshot, locale,
+                            data.providerKey, data.fingerprint);
+                }
+                snapshot.setTransactionSuccessful();
+            } finally {
+                snapshot.endTransaction();
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Copies into the index the snapshot rows of the providers whose fingerprint matches.
+     *
+     * @param fingerprints the fingerprints of the local providers on this device.
+     * @param nonIndexableKeys the keys of the rows each provider leaves out on this device.
+     * @return the number of providers imported.
+     */
+    static int importProviders(SQLiteDatabase db, File file, String locale,
+            Map<String, String> fingerprints, Map<String, List<String>> nonIndexableKeys) {
+        try {
+            db.execSQL("ATTACH DATABASE ? AS " + SCHEMA, new Object[] { file.getPath() });
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot attach search index snapshot", e);
+            return 0;
+        }
+        int imported = 0;
+        try {
+            final String build = DatabaseUtils.stringForQuery(db,
+                    "SELECT " + MetaColumns.BUILD + " FROM " + SCHEMA + "."
+                            + Tables.TABLE_META_INDEX + " LIMIT 1", null);
+            if (!Build.FINGERPRINT.equals(build)) {
+                Log.w(TAG, "Ignoring search index snapshot of build " + build);
+                return 0;
+            }
+
+            final StringBuilder columns = new StringBuilder();
+            for (int n = 0; n < INDEX_COLUMNS.length; n++) {
+                if (n > 0) {
+                    columns.append(", ");
+                }
+                columns.append(INDEX_COLUMNS[n]);
+            }
+            final String insertRows = "INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX
+                    + " (" + columns + ") SELECT " + columns + " FROM " + SCHEMA + "."
+                    + TABLE_ROWS + " WHERE " + IndexColumns.LOCALE + " = ? AND "
+                    + COLUMN_PROVIDER + " = ?";
+            final String deleteNonIndexable = "DELETE FROM " + Tables.TABLE_PREFS_INDEX
+                    + " WHERE " + IndexColumns.LOCALE + " = ? AND " + IndexColumns.DATA_KEY_REF
+                    + " = ? AND " + IndexColumns.DOCID + " IN (SELECT " + IndexColumns.DOCID
+                    + " FROM " + SCHEMA + "." + TABLE_ROWS + " WHERE " + IndexColumns.LOCALE
+                    + " = ? AND " + COLUMN_PROVIDER + " = ?)";
+
+            db.beginTransaction();
+            Cursor cursor = null;
+            try {
+                cursor = db.query(SCHEMA + "." + Tables.TABLE_META_FINGERPRINTS,
+                        new String[] { FingerprintColumns.PROVIDER, FingerprintColumns.FINGERPRINT },
+                        FingerprintColumns.LOCALE + " = ?", new String[] { locale },
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    final String provider = cursor.getString(0);
+                    final String fingerprint = cursor.getString(1);
+                    if (!fingerprint.equals(fingerprints.get(provider))) {
+                        continue;
+                    }
+                    db.execSQL(insertRows, new Object[] { locale, provider });
+                    final List<String> keys = nonIndexableKeys.get(provider);
+                    if (keys != null) {
+                        for (String key : keys) {
+                            db.execSQL(deleteNonIndexable,
+                                    new Object[] { locale, key, locale, provider });
+                        }
+                    }
+                    IndexDatabaseHelper.setProviderFingerprint(db, locale, provider, fingerprint);
+                    imported++;
+                }
+                if (imported > 0) {
+                    TrigramIndex.addLocale(db, locale);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot import search index snapshot", e);
+            imported = 0;
+        } finally {
+            db.execSQL("DETACH DATABASE " + SCHEMA);
+        }
+        return imported;
+    }
+
+    private static void createTables(SQLiteDatabase snapshot) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("CREATE TABLE IF NOT EXISTS ");
+        sb.append(TABLE_ROWS);
+        sb.append("(");
+        sb.append(COLUMN_PROVIDER);
+        sb.append(" TEXT NOT NULL");
+        for (int n = 0; n < INDEX_COLUMNS.length; n++) {
+            sb.append(", ");
+            sb.append(INDEX_COLUMNS[n]);
+        }
+        sb.append(", PRIMARY KEY (");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(", ");
+        sb.append(IndexColumns.DOCID);
+        sb.append("))");
+        snapshot.execSQL(sb.toString());
+
+        snapshot.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.TABLE_META_INDEX + "("
+                + MetaColumns.BUILD + " VARCHAR(32) NOT NULL)");
+        snapshot.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.TABLE_META_FINGERPRINTS + "("
+                + FingerprintColumns.LOCALE + " VARCHAR(32) NOT NULL, "
+                + FingerprintColumns.PROVIDER + " TEXT NOT NULL, "
+                + FingerprintColumns.FINGERPRINT + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + FingerprintColumns.LOCALE + ", "
+                + FingerprintColumns.PROVIDER + "))");
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A small LRU cache of recent search results, keyed by locale and query.
+ *
+ * When a single-word query extends a query whose complete result set is cached (for example
+ * "bluetoo" after "blue"), the cached rows are filtered in memory the same way the FTS prefix
+ * match would, instead of querying the database again. When nothing is left and the query is
+ * long enough for the typo tolerant lookup, the database is queried anyway. Entries are dropped
+ * as soon as the {@link Index} generation changes so stale rows are never returned.
+ */
+public class SearchResultsCache {
+
+    private static final int MAX_ENTRIES = 16;
+
+    private static final String[] COLUMN_NAMES = Index.getSearchColumnNames();
+
+    private static SearchResultsCache sInstance;
+
+    private final LruCache<String, Entry> mCache = new LruCache<String, Entry>(MAX_ENTRIES);
+    private int mGeneration = -1;
+
+    @VisibleForTesting
+    static class Entry {
+        public final List<Object[]> rows;
+        // True if the rows are the whole result set, i.e. they were not cut by the query LIMIT
+        public final boolean complete;
+
+        public Entry(List<Object[]> rows, boolean complete) {
+            this.rows = rows;
+            this.complete = complete;
+        }
+    }
+
+    private static final Comparator<Object[]> RESULT_COMPARATOR = new Comparator<Object[]>() {
+        @Override
+        public int compare(Object[] lhs, Object[] rhs) {
+            final int result = Long.compare(getLong(lhs[Index.COLUMN_INDEX_TIER]),
+                    getLong(rhs[Index.COLUMN_INDEX_TIER]));
+            if (result != 0) {
+                return result;
+            }
+            return Long.compare(getLong(lhs[Index.COLUMN_INDEX_RANK]),
+                    getLong(rhs[Index.COLUMN_INDEX_RANK]));
+        }
+    };
+
+    public static synchronized SearchResultsCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SearchResultsCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Same as {@link Index#search(String)}, served from the cache when possible.
+     */
+    public Cursor search(Index index, String query) {
+        return search(index, query, null);
+    }
+
+    /**
+     * Same as {@link #search(Index, String)}. Throws an
+     * {@link android.os.OperationCanceledException} if the signal is cancelled while the
+     * database is queried.
+     */
+    public Cursor search(Index index, String query, CancellationSignal cancellationSignal) {
+        final String locale = Locale.getDefault().toString();
+        final int generation = index.getGeneration();
+
+        Entry entry = get(generation, locale, query);
+        if (entry == null) {
+            entry = narrowFromPrefix(generation, locale, query);
+        }
+        if (entry == null) {
+            entry = load(index, query, cancellationSignal);
+            put(generation, locale, query, entry);
+        }
+        return toCursor(entry.rows);
+    }
+
+    public synchronized void clear() {
+        mCache.evictAll();
+    }
+
+    @VisibleForTesting
+    synchronized Entry get(int generation, String locale, String query) {
+        if (generation != mGeneration) {
+            mCache.evictAll();
+            mGeneration = generation;
+            return null;
+        }
+        return mCache.get(buildKey(locale, query));
+    }
+
+    @VisibleForTesting
+    synchronized void put(int generation, String locale, String query, Entry entry) {
+        if (generation == mGeneration) {
+            mCache.put(buildKey(locale, query), entry);
+        }
+    }
+
+    /**
+     * Returns the rows for the query filtered from the cached rows of one of its prefixes, or
+     * null if the database has to be queried.
+     */
+    @VisibleForTesting
+    Entry narrowFromPrefix(int generation, String locale, String query) {
+        if (!isSingleToken(query)) {
+            return null;
+        }
+        for (int length = query.length() - 1; length > 0; length--) {
+            final Entry prefixEntry = get(generation, locale, query.substring(0, length));
+            if (prefixEntry == null) {
+                continue;
+            }
+            if (!prefixEntry.complete) {
+                // Rows cut by the LIMIT of the prefix query may match the longer query.
+                return null;
+            }
+            final List<Object[]> rows = filterRows(prefixEntry.rows, query);
+            if (rows.isEmpty() && query.length() >= TrigramIndex.MIN_QUERY_LENGTH) {
+                // The database falls back to the typo tolerant lookup.
+                return null;
+            }
+            final Entry entry = new Entry(rows, true);
+            put(generation, locale, query, entry);
+            return entry;
+        }
+        return null;
+    }
+
+    private static Entry load(Index index, String query,
+            CancellationSignal cancellationSignal) {
+        final Cursor cursor = index.search(query, cancellationSignal);
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        try {
+            final int columnCount = COLUMN_NAMES.length;
+            while (cursor.moveToNext()) {
+                final Object[] row = new Object[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    switch (cursor.getType(n)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[n] = cursor.getLong(n);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[n] = cursor.getDouble(n);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[n] = cursor.getString(n);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[n] = cursor.getBlob(n);
+                            break;
+                        default:
+                            row[n] = null;
+                            break;
+                    }
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        // Typo tolerant results cannot be narrowed with a prefix match.
+        boolean complete = rows.size() < Index.MAX_SEARCH_RESULTS;
+        final int count = rows.size();
+        for (int n = 0; n < count && complete; n++) {
+            if (getLong(rows.get(n)[Index.COLUMN_INDEX_TIER]) == TrigramIndex.TIER_FUZZY) {
+                complete = false;
+            }
+        }
+        return new Entry(rows, complete);
+    }
+
+    /**
+     * Keeps the rows that the FTS query for {@code query} would return, with their tier
+     * recomputed, ordered by tier and then by rank.
+     */
+    private static List<Object[]> filterRows(List<Object[]> rows, String query) {
+        final StringBuilder folded = new StringBuilder(query.length());
+        for (int n = 0; n < query.length(); n++) {
+            folded.append(foldAscii(query.charAt(n)));
+        }
+        final String token = folded.toString();
+        final List<Object[]> result = new ArrayList<Object[]>();
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            final Object[] row = rows.get(n);
+            final long tier;
+            if (matchesPrimary(row, token)) {
+                tier = 0;
+            } else if (matchesSecondary(row, token)) {
+                tier = 1;
+            } else {
+                continue;
+            }
+            final Object[] copy = row.clone();
+            copy[Index.COLUMN_INDEX_TIER] = tier;
+            result.add(copy);
+        }
+        Collections.sort(result, RESULT_COMPARATOR);
+        return result;
+    }
+
+    private static boolean matchesPrimary(Object[] row, String token) {
+        final String title = (String) row[Index.COLUMN_INDEX_TITLE];
+        return hasTokenWithPrefix(title, token)
+                || hasTokenWithPrefix(Index.normalizeString(title), token)
+                || hasTokenWithPrefix((String) row[Index.COLUMN_INDEX_KEYWORDS], token);
+    }
+
+    private static boolean matchesSecondary(Object[] row, String token) {
+        final String summaryOn = (String) row[Index.COLUMN_INDEX_SUMMARY_ON];
+        final String summaryOff = (String) row[Index.COLUMN_INDEX_SUMMARY_OFF];
+        return hasTokenWithPrefix(summaryOn, token)
+                || hasTokenWithPrefix(Index.normalizeString(summaryOn), token)
+                || hasTokenWithPrefix(summaryOff, token)
+                || hasTokenWithPrefix(Index.normalizeString(summaryOff), token)
+                || hasTokenWithPrefix((String) row[Index.COLUMN_INDEX_ENTRIES], token);
+    }
+
+    /**
+     * Mirrors the FTS "simple" tokenizer: tokens are separated by ASCII characters that are not
+     * letters or digits, and only ASCII characters are folded to lower case.
+     */
+    private static boolean hasTokenWithPrefix(String value, String token) {
+        if (TextUtils.isEmpty(value)) {
+            return false;
+        }
+        final int length = value.length();
+        final int tokenLength = token.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && isSeparator(value.charAt(start))) {
+                start++;
+            }
+            int n = 0;
+            while (n < tokenLength && start + n < length
+                    && foldAscii(value.charAt(start + n)) == token.charAt(n)) {
+                n++;
+            }
+            if (n == tokenLength) {
+                return true;
+            }
+            while (start < length && !isSeparator(value.charAt(start))) {
+                start++;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSingleToken(String query) {
+        if (TextUtils.isEmpty(query)) {
+            return false;
+        }
+        final int length = query.length();
+        for (int n = 0; n < length; n++) {
+            if (isSeparator(query.charAt(n))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c < 0x80 && !Character.isLetterOrDigit(c);
+    }
+
+    private static char foldAscii(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static long getLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return (value != null) ? Long.parseLong(value.toString()) : 0;
+    }
+
+    private static Cursor toCursor(List<Object[]> rows) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMN_NAMES, rows.size());
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            cursor.addRow(rows.get(n));
+        }
+        return cursor;
+    }
+
+    private static String buildKey(String locale, String query) {
+        return locale + '\u0000' + query;
+    }
+}
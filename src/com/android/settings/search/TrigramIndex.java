@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+import com.android.settings.search.IndexDatabaseHelper.TrigramColumns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Typo tolerant lookup of the search index.
+ *
+ * Every row written to the prefs_index table also gets the trigrams of the words of its
+ * normalized title and keywords stored in a side table, dropped again when the row is deleted
+ * or replaced. When the FTS prefix match finds nothing, the trigrams of the query select a
+ * bounded set of candidate rows, which are then ranked by edit distance between the query words
+ * and the row words, within a fixed time budget.
+ */
+public final class TrigramIndex {
+
+    private static final String TAG = "TrigramIndex";
+
+    // Queries shorter than this are not worth a typo tolerant lookup
+    static final int MIN_QUERY_LENGTH = 3;
+
+    // Tier of the search results found by this index, after the FTS primary and secondary tiers
+    static final int TIER_FUZZY = 2;
+
+    private static final int MAX_QUERY_TRIGRAMS = 32;
+    private static final int MAX_CANDIDATES = 200;
+    private static final long TIME_BUDGET_MS = 30;
+
+    private static final char PADDING = ' ';
+
+    private TrigramIndex() {
+    }
+
+    private static class Match {
+        public final Object[] row;
+        public final int distance;
+        public final long rank;
+
+        public Match(Object[] row, int distance, long rank) {
+            this.row = row;
+            this.distance = distance;
+            this.rank = rank;
+        }
+    }
+
+    private static final Comparator<Match> MATCH_COMPARATOR = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            if (lhs.distance != rhs.distance) {
+                return lhs.distance - rhs.distance;
+            }
+            return Long.compare(lhs.rank, rhs.rank);
+        }
+    };
+
+    /**
+     * Adds the trigrams of a prefs_index row, replacing the ones of the row it replaces if any.
+     */
+    static void addRow(SQLiteDatabase db, ContentValues values) {
+        final Long docId = values.getAsLong(IndexColumns.DOCID);
+        db.delete(Tables.TABLE_PREFS_TRIGRAMS, TrigramColumns.DOCID + " = ?",
+                new String[] { String.valueOf(docId) });
+        addRow(db, values.getAsString(IndexColumns.LOCALE), docId,
+                values.getAsString(IndexColumns.DATA_TITLE_NORMALIZED),
+                values.getAsString(IndexColumns.DATA_KEYWORDS));
+    }
+
+    /**
+     * Deletes the trigrams of the prefs_index rows matching the where clause. Must be called
+     * before the rows themselves are deleted.
+     */
+    static int deleteRows(SQLiteDatabase db, String whereClause, String[] whereArgs) {
+        return db.delete(Tables.TABLE_PREFS_TRIGRAMS, TrigramColumns.DOCID + " IN (SELECT "
+                + IndexColumns.DOCID + " FROM " + Tables.TABLE_PREFS_INDEX + " WHERE "
+                + whereClause + ")", whereArgs);
+    }
+
+    /**
+     * Replaces the trigrams of all the prefs_index rows of a locale, e.g. after they were copied
+     * from another database.
+     */
+    static void addLocale(SQLiteDatabase db, String locale) {
+        db.delete(Tables.TABLE_PREFS_TRIGRAMS, TrigramColumns.LOCALE + " = ?",
+                new String[] { locale });
+        final Cursor cursor = db.query(Tables.TABLE_PREFS_INDEX,
+                new String[] { IndexColumns.DOCID, IndexColumns.DATA_TITLE_NORMALIZED,
+                        IndexColumns.DATA_KEYWORDS },
+                IndexColumns.LOCALE + " = ?", new String[] { locale }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addRow(db, locale, cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addRow(SQLiteDatabase db, String locale, long docId,
+            String normalizedTitle, String keywords) {
+        final Set<String> trigrams = new LinkedHashSet<String>();
+        addTrigrams(trigrams, normalizedTitle);
+        addTrigrams(trigrams, Index.normalizeString(keywords));
+        final ContentValues values = new ContentValues(3);
+        for (String trigram : trigrams) {
+            values.put(TrigramColumns.LOCALE, locale);
+            values.put(TrigramColumns.TRIGRAM, trigram);
+            values.put(TrigramColumns.DOCID, docId);
+            db.insertWithOnConflict(Tables.TABLE_PREFS_TRIGRAMS, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
+    /**
+     * Returns the rows whose words are within a small edit distance of the query words, best
+     * matches first, with the given columns plus a tier column set to {@link #TIER_FUZZY}.
+     */
+    static Cursor search(SQLiteDatabase db, String query, String locale, String[] columns,
+            int maxResults, CancellationSignal cancellationSignal) {
+        final long start = SystemClock.uptimeMillis();
+        final String[] resultColumns = Index.getSearchColumnNames();
+        final MatrixCursor result = new MatrixCursor(resultColumns);
+
+        final String[] queryWords = splitWords(Index.normalizeString(query));
+        final Set<String> trigrams = new LinkedHashSet<String>();
+        for (String word : queryWords) {
+            addWordTrigrams(trigrams, word);
+        }
+        if (trigrams.isEmpty()) {
+            return result;
+        }
+
+        // Candidate generation: rows sharing enough trigrams with the query.
+        final List<String> args = new ArrayList<String>();
+        args.add(locale);
+        final StringBuilder in = new StringBuilder();
+        for (String trigram : trigrams) {
+            if (args.size() > MAX_QUERY_TRIGRAMS) {
+                break;
+            }
+            in.append(in.length() == 0 ? "?" : ", ?");
+            args.add(trigram);
+        }
+        final int minHits = Math.max(1, (args.size() - 1) / 3);
+        final String candidatesSql = "SELECT " + TrigramColumns.DOCID + " FROM "
+                + Tables.TABLE_PREFS_TRIGRAMS + " WHERE " + TrigramColumns.LOCALE + " = ? AND "
+                + TrigramColumns.TRIGRAM + " IN (" + in + ") GROUP BY " + TrigramColumns.DOCID
+                + " HAVING COUNT(*) >= " + minHits + " ORDER BY COUNT(*) DESC LIMIT "
+                + MAX_CANDIDATES;
+
+        final StringBuilder docIds = new StringBuilder();
+        Cursor cursor = db.rawQuery(candidatesSql, args.toArray(new String[args.size()]),
+                cancellationSignal);
+        try {
+            while (cursor.moveToNext()) {
+                if (docIds.length() > 0) {
+                    docIds.append(',');
+                }
+                docIds.append(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (docIds.length() == 0) {
+            return result;
+        }
+
+        // Ranking: edit distance between every query word and its closest row word.
+        final List<Match> matches = new ArrayList<Match>();
+        cursor = db.query(Tables.TABLE_PREFS_INDEX, columns,
+                IndexColumns.DOCID + " IN (" + docIds + ") AND " + IndexColumns.LOCALE
+                        + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                new String[] { locale }, null, null, null);
+        try {
+            final int titleIndex = indexOf(columns, IndexColumns.DATA_TITLE);
+            final int keywordsIndex = indexOf(columns, IndexColumns.DATA_KEYWORDS);
+            final int rankIndex = indexOf(columns, IndexColumns.DATA_RANK);
+            while (cursor.moveToNext()) {
+                if (SystemClock.uptimeMillis() - start > TIME_BUDGET_MS) {
+                    Log.d(TAG, "Time budget exceeded, ranked " + matches.size() + " rows");
+                    break;
+                }
+                final String[] rowWords = splitWords(
+                        Index.normalizeString(cursor.getString(titleIndex)) + " "
+                        + Index.normalizeString(cursor.getString(keywordsIndex)));
+                final int distance = getDistance(queryWords, rowWords);
+                if (distance < 0) {
+                    continue;
+                }
+                final Object[] row = new Object[resultColumns.length];
+                for (int n = 0; n < columns.length; n++) {
+                    row[n] = cursor.isNull(n) ? null : cursor.getString(n);
+                }
+                row[Index.COLUMN_INDEX_TIER] = TIER_FUZZY;
+                matches.add(new Match(row, distance, cursor.getLong(rankIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Collections.sort(matches, MATCH_COMPARATOR);
+        final int count = Math.min(matches.size(), maxResults);
+        for (int n = 0; n < count; n++) {
+            result.addRow(matches.get(n).row);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sum of the edit distances of each query word to its closest row word (or row
+     * word prefix, for partially typed words), or -1 if a query word has no close enough match.
+     */
+    private static int getDistance(String[] queryWords, String[] rowWords) {
+        int total = 0;
+        for (String queryWord : queryWords) {
+            final int maxDistance = (queryWord.length() <= 4) ? 1 : 2;
+            int best = maxDistance + 1;
+            for (String rowWord : rowWords) {
+                best = Math.min(best, editDistance(queryWord, rowWord));
+                if (rowWord.length() > queryWord.length()) {
+                    best = Math.min(best,
+                            editDistance(queryWord, rowWord.substring(0, queryWord.length())));
+                }
+                if (best == 0) {
+                    break;
+                }
+            }
+            if (best > maxDistance) {
+                return -1;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    /**
+     * Optimal string alignment distance: insertions, deletions, substitutions and adjacent
+     * transpositions all cost one.
+     */
+    static int editDistance(String a, String b) {
+        final int la = a.length();
+        final int lb = b.length();
+        int[] prev2 = new int[lb + 1];
+        int[] prev = new int[lb + 1];
+        int[] cur = new int[lb + 1];
+        for (int j = 0; j <= lb; j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= la; i++) {
+            cur[0] = i;
+            for (int j = 1; j <= lb; j++) {
+                final int cost = (a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1;
+                int d = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2)
+                        && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d = Math.min(d, prev2[j - 2] + 1);
+                }
+                cur[j] = d;
+            }
+            final int[] tmp = prev2;
+            prev2 = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[lb];
+    }
+
+    private static void addTrigrams(Set<String> trigrams, String text) {
+        for (String word : splitWords(text)) {
+            addWordTrigrams(trigrams, word);
+        }
+    }
+
+    private static void addWordTrigrams(Set<String> trigrams, String word) {
+        final String padded = PADDING + word + PADDING;
+        for (int n = 0; n + 3 <= padded.length(); n++) {
+            trigrams.add(padded.substring(n, n + 3));
+        }
+    }
+
+    private static String[] splitWords(String text) {
+        if (TextUtils.isEmpty(text)) {
+            return new String[0];
+        }
+        final List<String> words = new ArrayList<String>();
+        final int length = text.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean letter = n < length && Character.isLetterOrDigit(text.charAt(n));
+            if (letter && start < 0) {
+                start = n;
+            } else if (!letter && start >= 0) {
+                words.add(text.substring(start, n));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int n = 0; n < columns.length; n++) {
+            if (columns[n].equals(column)) {
+                return n;
+            }
+        }
+        throw new IllegalArgumentException("Missing column " + column);
+    }
+}
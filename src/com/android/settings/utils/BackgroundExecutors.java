@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.utils;
+
+import android.os.Process;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the bounded pools that run work off the main thread.
+ *
+ * Threads run at {@link Process#THREAD_PRIORITY_BACKGROUND}, are named after their pool, and
+ * exit once the pool has been idle for a while, so an unused pool costs no thread.
+ */
+public final class BackgroundExecutors {
+
+    public static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private BackgroundExecutors() {
+    }
+
+    /**
+     * Returns a pool of {@code size} threads running tasks in the order of the given queue.
+     */
+    public static ThreadPoolExecutor newPool(final String name, int size,
+            BlockingQueue<Runnable> queue) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + " #" + mCount.getAndIncrement());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns a single thread pool running tasks one at a time, in the order they are submitted.
+     */
+    public static ThreadPoolExecutor newSerialPool(String name) {
+        return newPool(name, 1, new LinkedBlockingQueue<Runnable>());
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Process wide cache of the icons shown in lists, with a memory budget in bytes.
+ *
+ * Icons are keyed by the caller (an {@link android.graphics.drawable.Icon}, a
+ * {@link #getPackageKey package key}, etc.) and by the size of the view they are displayed in.
+ * Bitmaps larger than that size are downscaled before being cached. The least recently used
+ * icons are evicted first, and the cache shrinks or empties itself when the system asks the
+ * process to trim its memory. Icons under a package key are also dropped when the package is
+ * changed, replaced or removed.
+ */
+public class IconCache implements ComponentCallbacks2 {
+
+    private static final String TAG = "IconCache";
+
+    // Budget of the cache: a sixteenth of the heap, at most 8MB
+    private static final int MAX_SIZE_BYTES = (int) Math.min(
+            Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+
+    // Size accounted for icons whose size is unknown, e.g. vector drawables
+    private static final int DEFAULT_ICON_BYTES = 4 * 1024;
+
+    private static IconCache sInstance;
+
+    public interface IconLoader {
+        /**
+         * Loads the icon, called on a cache miss. Can return null.
+         */
+        Drawable loadIcon();
+    }
+
+    private final Resources mResources;
+    private final LruCache<Key, Drawable> mCache;
+
+    private IconCache(Context context) {
+        mResources = context.getResources();
+        mCache = new LruCache<Key, Drawable>(MAX_SIZE_BYTES) {
+            @Override
+            protected int sizeOf(Key key, Drawable drawable) {
+                return getByteCount(drawable);
+            }
+        };
+    }
+
+    public static synchronized IconCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new IconCache(appContext);
+            appContext.registerComponentCallbacks(sInstance);
+            final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addDataScheme("package");
+            appContext.registerReceiver(sInstance.mPackageReceiver, filter);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the key of an icon of the given package, which is evicted when the package
+     * changes.
+     *
+     * @param detail what tells the icon apart from the other icons of the package, e.g. the
+     *         component and the user.
+     */
+    public static Object getPackageKey(String packageName, String detail) {
+        return new PackageKey(packageName, detail);
+    }
+
+    /**
+     * Returns the icon for the key, loading it on a miss.
+     *
+     * @param sizePx the size of the view showing the icon, or 0 to keep the icon size.
+     */
+    public Drawable getIcon(Object key, int sizePx, IconLoader loader) {
+        final Key cacheKey = new Key(key, sizePx);
+        Drawable drawable = mCache.get(cacheKey);
+        if (drawable == null) {
+            drawable = loader.loadIcon();
+            if (drawable == null) {
+                return null;
+            }
+            drawable = downscale(drawable, sizePx);
+            mCache.put(cacheKey, drawable);
+        }
+        // Views must not share a drawable, they share its bitmap.
+        final Drawable.ConstantState state = drawable.getConstantState();
+        return (state != null) ? state.newDrawable(mResources) : drawable;
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    private void evictPackage(String packageName) {
+        int count = 0;
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.mKey instanceof PackageKey
+                    && ((PackageKey) key.mKey).mPackageName.equals(packageName)) {
+                mCache.remove(key);
+                count++;
+            }
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Evicted " + count + " icons of " + packageName);
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String packageName = (intent.getData() != null)
+                    ? intent.getData().getSchemeSpecificPart() : null;
+            if (packageName != null) {
+                evictPackage(packageName);
+            }
+        }
+    };
+
+    public JSONObject dump() throws JSONException {
+        final JSONObject obj = new JSONObject();
+        obj.put("size", mCache.size());
+        obj.put("maxSize", mCache.maxSize());
+        obj.put("hits", mCache.hitCount());
+        obj.put("misses", mCache.missCount());
+        obj.put("evictions", mCache.evictionCount());
+        return obj;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_UI_HIDDEN) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onTrimMemory " + level + ", size " + mCache.size());
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Icons can depend on the density and the theme.
+        mCache.evictAll();
+    }
+
+    private Drawable downscale(Drawable drawable, int sizePx) {
+        if (sizePx <= 0 || !(drawable instanceof BitmapDrawable)) {
+            return drawable;
+        }
+        final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        if (bitmap == null) {
+            return drawable;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width <= sizePx && height <= sizePx) {
+            return drawable;
+        }
+        final float scale = (float) sizePx / Math.max(width, height);
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)),
+                true);
+        return new BitmapDrawable(mResources, scaled);
+    }
+
+    private static int getByteCount(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getAllocationByteCount();
+            }
+        }
+        final int width = drawable.getIntrinsicWidth();
+        final int height = drawable.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            return width * height * 4;
+        }
+        return DEFAULT_ICON_BYTES;
+    }
+
+    private static final class PackageKey {
+        private final String mPackageName;
+        private final String mDetail;
+
+        public PackageKey(String packageName, String detail) {
+            mPackageName = packageName;
+            mDetail = detail;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PackageKey)) {
+                return false;
+            }
+            final PackageKey other = (PackageKey) o;
+            return mPackageName.equals(other.mPackageName)
+                    && TextUtils.equals(mDetail, other.mDetail);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mPackageName.hashCode() + (mDetail != null ? mDetail.hashCode() : 0);
+        }
+    }
+
+    private static final class Key {
+        private final Object mKey;
+        private final int mSize;
+
+        public Key(Object key, int size) {
+            mKey = key;
+            mSize = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mSize == other.mSize && mKey.equals(other.mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mKey.hashCode() + mSize;
+        }
+    }
+}
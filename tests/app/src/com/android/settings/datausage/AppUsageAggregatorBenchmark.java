@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.net.NetworkStats;
+import android.net.TrafficStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.UidDetailProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares collapsing a synthetic 10k entries summary with {@link AppUsageAggregator} against
+ * the per entry collapsing the data usage list used to do, and checks both give the same items.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppUsageAggregatorBenchmark {
+
+    private static final String TAG = "AppUsageAggregatorBenchmark";
+
+    private static final int ENTRIES = 10000;
+    private static final int APPS_PER_USER = 400;
+    private static final int ITERATIONS = 20;
+
+    private static final int CURRENT_USER = 0;
+    private static final int MANAGED_PROFILE = 10;
+    private static final int OTHER_USER = 11;
+    private static final int REMOVED_USER = 12;
+    private static final int[] PROFILES = { CURRENT_USER, MANAGED_PROFILE };
+    private static final int[] USERS = { CURRENT_USER, MANAGED_PROFILE, OTHER_USER };
+
+    @Test
+    public void testAggregateThroughput() {
+        final NetworkStats stats = buildStats();
+        final int[] restrictedUids = {
+                UserHandle.getUid(CURRENT_USER, Process.FIRST_APPLICATION_UID + 3),
+                UserHandle.getUid(CURRENT_USER, Process.LAST_APPLICATION_UID),
+                UserHandle.getUid(OTHER_USER, Process.FIRST_APPLICATION_UID + 5),
+        };
+        final AppUsageAggregator aggregator = new AppUsageAggregator(CURRENT_USER, PROFILES,
+                USERS, -1);
+
+        // Warm up.
+        aggregator.aggregate(stats, restrictedUids);
+        aggregateLegacy(stats, restrictedUids);
+
+        long aggregatorElapsed = 0;
+        long legacyElapsed = 0;
+        AppUsageAggregator.Result result = null;
+        AppUsageAggregator.Result legacy = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            result = aggregator.aggregate(stats, restrictedUids);
+            aggregatorElapsed += SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            legacy = aggregateLegacy(stats, restrictedUids);
+            legacyElapsed += SystemClock.elapsedRealtime() - start;
+        }
+
+        assertEquals(legacy.items.size(), result.items.size());
+        for (int i = 0; i < legacy.items.size(); i++) {
+            final AppItem expected = legacy.items.get(i);
+            final AppItem actual = result.items.get(i);
+            assertEquals(expected.key, actual.key);
+            assertEquals(expected.category, actual.category);
+            assertEquals(expected.total, actual.total);
+            assertEquals(expected.restricted, actual.restricted);
+            assertEquals(expected.uids.size(), actual.uids.size());
+            for (int j = 0; j < expected.uids.size(); j++) {
+                assertEquals(expected.uids.keyAt(j), actual.uids.keyAt(j));
+            }
+        }
+        assertEquals(legacy.largest, result.largest);
+
+        Log.i(TAG, ENTRIES + " entries, " + result.items.size() + " items, aggregator: "
+                + aggregatorElapsed / ITERATIONS + "ms, per entry collapsing: "
+                + legacyElapsed / ITERATIONS + "ms");
+    }
+
+    /**
+     * Apps of all the users, the system and the removed and tethering uids, with several
+     * entries per uid for the sets and tags.
+     */
+    private static NetworkStats buildStats() {
+        final Random random = new Random(0);
+        final int[] users = { CURRENT_USER, MANAGED_PROFILE, OTHER_USER, REMOVED_USER };
+        final int[] specialUids = { Process.SYSTEM_UID, Process.PHONE_UID, Process.MEDIA_UID,
+                0, TrafficStats.UID_REMOVED, TrafficStats.UID_TETHERING };
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), ENTRIES);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.iface = NetworkStats.IFACE_ALL;
+        for (int i = 0; i < ENTRIES; i++) {
+            if (random.nextInt(20) == 0) {
+                entry.uid = specialUids[random.nextInt(specialUids.length)];
+            } else {
+                entry.uid = UserHandle.getUid(users[random.nextInt(users.length)],
+                        Process.FIRST_APPLICATION_UID + random.nextInt(APPS_PER_USER));
+            }
+            entry.set = random.nextInt(2);
+            entry.tag = random.nextInt(4) == 0 ? random.nextInt(8) + 1 : NetworkStats.TAG_NONE;
+            entry.rxBytes = random.nextInt(1 << 20);
+            entry.txBytes = random.nextInt(1 << 18);
+            stats.addValues(entry);
+        }
+        return stats;
+    }
+
+    /**
+     * The collapsing the list used to do while binding the stats, with the users looked up in
+     * the same sets as the aggregator instead of the user manager.
+     */
+    private static AppUsageAggregator.Result aggregateLegacy(NetworkStats stats,
+            int[] restrictedUids) {
+        final ArrayList<AppItem> items = new ArrayList<>();
+        long largest = 0;
+        final List<UserHandle> profiles = new ArrayList<>();
+        for (int profile : PROFILES) {
+            profiles.add(new UserHandle(profile));
+        }
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+
+        NetworkStats.Entry entry = null;
+        final int size = stats.size();
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            final int uid = entry.uid;
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profiles.contains(new UserHandle(userId))) {
+                    if (userId != CURRENT_USER) {
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        largest = accumulate(managedKey, knownItems, entry,
+                                AppItem.CATEGORY_USER, items, largest);
+                    }
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    if (!contains(USERS, userId)) {
+                        collapseKey = TrafficStats.UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
+                    } else {
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                    }
+                }
+            } else if (uid == TrafficStats.UID_REMOVED || uid == TrafficStats.UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            largest = accumulate(collapseKey, knownItems, entry, category, items, largest);
+        }
+
+        for (int i = 0; i < restrictedUids.length; ++i) {
+            final int uid = restrictedUids[i];
+            if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
+                continue;
+            }
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        Collections.sort(items);
+        return new AppUsageAggregator.Result(items, largest);
+    }
+
+    private static long accumulate(int collapseKey, SparseArray<AppItem> knownItems,
+            NetworkStats.Entry entry, int itemCategory, ArrayList<AppItem> items, long largest) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = itemCategory;
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        item.addUid(entry.uid);
+        item.total += entry.rxBytes + entry.txBytes;
+        return Math.max(largest, item.total);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the rows/second of a cold search index parse on the calling thread against the
+ * parallel parse stage of {@link Index}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IndexBenchmark {
+
+    private static final String TAG = "IndexBenchmark";
+
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void testParallelParseThroughput() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Index index = new Index(context, "com.android.settings");
+
+        // Warm up class loading and resources.
+        final int expectedRows = index.parseLocalResources(false);
+        assertTrue(expectedRows > 0);
+
+        final long serialRowsPerSecond = measure(index, false, expectedRows);
+        final long parallelRowsPerSecond = measure(index, true, expectedRows);
+
+        Log.i(TAG, "Serial parse: " + serialRowsPerSecond + " rows/s, parallel parse: "
+                + parallelRowsPerSecond + " rows/s");
+    }
+
+    private static long measure(Index index, boolean parallel, int expectedRows) {
+        long elapsed = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long start = SystemClock.elapsedRealtime();
+            final int rows = index.parseLocalResources(parallel);
+            elapsed += SystemClock.elapsedRealtime() - start;
+            assertEquals(expectedRows, rows);
+        }
+        return expectedRows * ITERATIONS * 1000L / Math.max(1, elapsed);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Produces the prebuilt search index snapshot for the device locale.
+ *
+ * Run it once per locale on a device running the target build, then copy
+ * search_index_snapshot.db from the Settings files directory to
+ * packages/apps/Settings/prebuilt/ before building the final image:
+ *
+ *   adb shell am instrument -w -e class com.android.settings.search.SearchIndexSnapshotGenerator \
+ *       com.android.settings.tests/android.support.test.runner.AndroidJUnitRunner
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SearchIndexSnapshotGenerator {
+
+    private static final String TAG = "SearchIndexSnapshotGenerator";
+
+    @Test
+    public void generateSnapshot() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final File file = new File(context.getFilesDir(), "search_index_snapshot.db");
+        SearchIndexSnapshot.export(context, file);
+        assertTrue(file.exists());
+        Log.i(TAG, "Search index snapshot written to " + file);
+    }
+}
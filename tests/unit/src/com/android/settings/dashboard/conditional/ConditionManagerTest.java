@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard.conditional;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.os.PersistableBundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ConditionManagerTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testBinaryState_roundTrip() throws Exception {
+        final PersistableBundle airplane = new PersistableBundle();
+        airplane.putBoolean("silence", true);
+        airplane.putLong("last_state", 1234567890123L);
+        final PersistableBundle dnd = new PersistableBundle();
+        dnd.putInt("state", 2);
+        dnd.putString("summary", "Until 7:00");
+
+        final List<String> classes = new ArrayList<>();
+        final List<PersistableBundle> bundles = new ArrayList<>();
+        assertTrue(ConditionManager.readStates(toInput(toBytes(
+                Arrays.asList("AirplaneModeCondition", "DndCondition"),
+                Arrays.asList(airplane, dnd))), classes, bundles));
+
+        assertEquals(Arrays.asList("AirplaneModeCondition", "DndCondition"), classes);
+        assertEquals(true, bundles.get(0).getBoolean("silence"));
+        assertEquals(1234567890123L, bundles.get(0).getLong("last_state"));
+        assertEquals(2, bundles.get(1).getInt("state"));
+        assertEquals("Until 7:00", bundles.get(1).getString("summary"));
+    }
+
+    @SmallTest
+    public void testBinaryState_dropsUnsupportedTypes() throws Exception {
+        final PersistableBundle bundle = new PersistableBundle();
+        bundle.putBoolean("silence", false);
+        bundle.putDouble("ratio", 0.5);
+        bundle.putIntArray("values", new int[] { 1, 2 });
+
+        final List<String> classes = new ArrayList<>();
+        final List<PersistableBundle> bundles = new ArrayList<>();
+        assertTrue(ConditionManager.readStates(toInput(toBytes(
+                Arrays.asList("HotspotCondition"), Arrays.asList(bundle))), classes, bundles));
+
+        assertEquals(1, bundles.get(0).size());
+        assertFalse(bundles.get(0).getBoolean("silence", true));
+    }
+
+    @SmallTest
+    public void testBinaryState_unknownVersion() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ConditionManager.FILE_VERSION + 1);
+        out.writeInt(0);
+        out.flush();
+
+        final List<String> classes = new ArrayList<>();
+        assertFalse(ConditionManager.readStates(toInput(bytes.toByteArray()), classes,
+                new ArrayList<PersistableBundle>()));
+        assertTrue(classes.isEmpty());
+    }
+
+    @SmallTest
+    public void testXmlMigration() throws Exception {
+        final PersistableBundle airplane = new PersistableBundle();
+        airplane.putBoolean("silence", true);
+        final PersistableBundle dnd = new PersistableBundle();
+        dnd.putInt("state", 1);
+
+        // Written the way the XML state file used to be, once with a full class name
+        final StringWriter writer = new StringWriter();
+        final XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(writer);
+        serializer.startDocument("UTF-8", true);
+        serializer.startTag("", "cs");
+        serializer.startTag("", "c");
+        serializer.attribute("", "cls", "AirplaneModeCondition");
+        airplane.saveToXml(serializer);
+        serializer.endTag("", "c");
+        serializer.startTag("", "c");
+        serializer.attribute("", "cls", DndCondition.class.getName());
+        dnd.saveToXml(serializer);
+        serializer.endTag("", "c");
+        serializer.endTag("", "cs");
+        serializer.flush();
+
+        final List<String> classes = new ArrayList<>();
+        final List<PersistableBundle> bundles = new ArrayList<>();
+        ConditionManager.readStatesFromXml(new StringReader(writer.toString()), classes,
+                bundles);
+        assertEquals(Arrays.asList("AirplaneModeCondition", "DndCondition"), classes);
+
+        // Migrated states read back from the binary format are the same
+        final List<String> migratedClasses = new ArrayList<>();
+        final List<PersistableBundle> migratedBundles = new ArrayList<>();
+        assertTrue(ConditionManager.readStates(toInput(toBytes(classes, bundles)),
+                migratedClasses, migratedBundles));
+        assertEquals(classes, migratedClasses);
+        assertEquals(true, migratedBundles.get(0).getBoolean("silence"));
+        assertEquals(1, migratedBundles.get(1).getInt("state"));
+    }
+
+    private static byte[] toBytes(List<String> classes, List<PersistableBundle> bundles)
+            throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        ConditionManager.writeStates(out, classes, bundles);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream toInput(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
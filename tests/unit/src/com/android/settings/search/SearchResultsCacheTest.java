@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SearchResultsCacheTest extends AndroidTestCase {
+    private static final int GENERATION = 1;
+    private static final String LOCALE = "en_US";
+
+    private SearchResultsCache mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mCache = new SearchResultsCache();
+        // Makes the cache current for GENERATION
+        mCache.get(GENERATION, LOCALE, "");
+    }
+
+    @SmallTest
+    public void testNarrowFromPrefix_filtersAndRetiersRows() {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(buildRow(3, "Bluetooth", null, 0));
+        rows.add(buildRow(1, "Wi-Fi", "Blue light filter", 1));
+        rows.add(buildRow(2, "Display", "Brightness", 1));
+        mCache.put(GENERATION, LOCALE, "bl", new SearchResultsCache.Entry(rows, true));
+
+        final SearchResultsCache.Entry entry =
+                mCache.narrowFromPrefix(GENERATION, LOCALE, "blu");
+
+        assertNotNull(entry);
+        assertEquals(2, entry.rows.size());
+        assertEquals("Bluetooth", entry.rows.get(0)[Index.COLUMN_INDEX_TITLE]);
+        assertEquals(0L, entry.rows.get(0)[Index.COLUMN_INDEX_TIER]);
+        assertEquals("Wi-Fi", entry.rows.get(1)[Index.COLUMN_INDEX_TITLE]);
+        assertEquals(1L, entry.rows.get(1)[Index.COLUMN_INDEX_TIER]);
+        assertSame(entry, mCache.get(GENERATION, LOCALE, "blu"));
+    }
+
+    @SmallTest
+    public void testNarrowFromPrefix_incompletePrefix() {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(buildRow(1, "Bluetooth", null, 0));
+        mCache.put(GENERATION, LOCALE, "bl", new SearchResultsCache.Entry(rows, false));
+
+        assertNull(mCache.narrowFromPrefix(GENERATION, LOCALE, "blu"));
+    }
+
+    @SmallTest
+    public void testNarrowFromPrefix_emptyLongQueryFallsThrough() {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(buildRow(1, "Bluetooth", null, 0));
+        mCache.put(GENERATION, LOCALE, "bl", new SearchResultsCache.Entry(rows, true));
+
+        // "blx" may be a typo only the database can look up.
+        assertNull(mCache.narrowFromPrefix(GENERATION, LOCALE, "blx"));
+        assertNull(mCache.get(GENERATION, LOCALE, "blx"));
+    }
+
+    @SmallTest
+    public void testNarrowFromPrefix_emptyShortQuery() {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(buildRow(1, "Bluetooth", null, 0));
+        mCache.put(GENERATION, LOCALE, "b", new SearchResultsCache.Entry(rows, true));
+
+        final SearchResultsCache.Entry entry =
+                mCache.narrowFromPrefix(GENERATION, LOCALE, "bx");
+
+        assertNotNull(entry);
+        assertEquals(0, entry.rows.size());
+    }
+
+    @SmallTest
+    public void testNarrowFromPrefix_otherGeneration() {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(buildRow(1, "Bluetooth", null, 0));
+        mCache.put(GENERATION, LOCALE, "bl", new SearchResultsCache.Entry(rows, true));
+
+        assertNull(mCache.narrowFromPrefix(GENERATION + 1, LOCALE, "blu"));
+    }
+
+    private static Object[] buildRow(long rank, String title, String summaryOn, long tier) {
+        final Object[] row = new Object[Index.getSearchColumnNames().length];
+        row[Index.COLUMN_INDEX_RANK] = rank;
+        row[Index.COLUMN_INDEX_TITLE] = title;
+        row[Index.COLUMN_INDEX_SUMMARY_ON] = summaryOn;
+        row[Index.COLUMN_INDEX_TIER] = tier;
+        return row;
+    }
+}
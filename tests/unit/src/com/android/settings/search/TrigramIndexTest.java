@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import static junit.framework.Assert.assertEquals;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class TrigramIndexTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testEditDistance_identical() {
+        assertEquals(0, TrigramIndex.editDistance("bluetooth", "bluetooth"));
+        assertEquals(0, TrigramIndex.editDistance("", ""));
+    }
+
+    @SmallTest
+    public void testEditDistance_empty() {
+        assertEquals(4, TrigramIndex.editDistance("wifi", ""));
+        assertEquals(4, TrigramIndex.editDistance("", "wifi"));
+    }
+
+    @SmallTest
+    public void testEditDistance_singleEdits() {
+        // Substitution, insertion and deletion
+        assertEquals(1, TrigramIndex.editDistance("blietooth", "bluetooth"));
+        assertEquals(1, TrigramIndex.editDistance("bluetoth", "bluetooth"));
+        assertEquals(1, TrigramIndex.editDistance("bluetoooth", "bluetooth"));
+    }
+
+    @SmallTest
+    public void testEditDistance_transposition() {
+        assertEquals(1, TrigramIndex.editDistance("bluetooht", "bluetooth"));
+        assertEquals(1, TrigramIndex.editDistance("lbuetooth", "bluetooth"));
+    }
+
+    @SmallTest
+    public void testEditDistance_symmetric() {
+        assertEquals(TrigramIndex.editDistance("display", "dsiplya"),
+                TrigramIndex.editDistance("dsiplya", "display"));
+        assertEquals(2, TrigramIndex.editDistance("display", "dsiplya"));
+    }
+
+    @SmallTest
+    public void testEditDistance_unrelated() {
+        assertEquals(5, TrigramIndex.editDistance("sound", "wi-fi"));
+    }
+}